@@ -0,0 +1,174 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for onupdate bodies and offsets headers, so that the module needs no dependencies.
+ * Objects parse to maps in document order, arrays to lists, integers to Long, other numbers to Double.
+ */
+final class Json {
+
+  private final String json;
+
+  private int i = 0;
+
+  private Json(String json) {
+    this.json = json;
+  }
+
+  /**
+   * @throws IllegalArgumentException If it isn't a single JSON value
+   */
+  static Object parse(String json) {
+    Json parser = new Json(json);
+    Object value = parser.value();
+    parser.whitespace();
+    if (parser.i != json.length()) {
+      throw parser.error("Unexpected content");
+    }
+    return value;
+  }
+
+  static void writeString(String s, StringBuilder out) {
+    out.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at " + i + " in JSON " + json);
+  }
+
+  private void whitespace() {
+    while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+  }
+
+  private void expect(char c) {
+    whitespace();
+    if (i >= json.length() || json.charAt(i) != c) {
+      throw error("Expected " + c);
+    }
+    i++;
+  }
+
+  private boolean next(char c) {
+    whitespace();
+    if (i < json.length() && json.charAt(i) == c) {
+      i++;
+      return true;
+    }
+    return false;
+  }
+
+  private Object value() {
+    whitespace();
+    if (i >= json.length()) throw error("Unexpected end");
+    char c = json.charAt(i);
+    if (c == '{') return object();
+    if (c == '[') return array();
+    if (c == '"') return string();
+    if (json.startsWith("true", i)) { i += 4; return Boolean.TRUE; }
+    if (json.startsWith("false", i)) { i += 5; return Boolean.FALSE; }
+    if (json.startsWith("null", i)) { i += 4; return null; }
+    return number();
+  }
+
+  private Map<String, Object> object() {
+    expect('{');
+    Map<String, Object> object = new LinkedHashMap<>();
+    if (next('}')) return object;
+    do {
+      whitespace();
+      String key = string();
+      expect(':');
+      object.put(key, value());
+    } while (next(','));
+    expect('}');
+    return object;
+  }
+
+  private List<Object> array() {
+    expect('[');
+    List<Object> array = new ArrayList<>();
+    if (next(']')) return array;
+    do {
+      array.add(value());
+    } while (next(','));
+    expect(']');
+    return array;
+  }
+
+  private String string() {
+    expect('"');
+    StringBuilder s = new StringBuilder();
+    while (true) {
+      if (i >= json.length()) throw error("Unterminated string");
+      char c = json.charAt(i++);
+      if (c == '"') return s.toString();
+      if (c != '\\') {
+        s.append(c);
+        continue;
+      }
+      if (i >= json.length()) throw error("Unterminated escape");
+      char e = json.charAt(i++);
+      switch (e) {
+        case 'b': s.append('\b'); break;
+        case 'f': s.append('\f'); break;
+        case 'n': s.append('\n'); break;
+        case 'r': s.append('\r'); break;
+        case 't': s.append('\t'); break;
+        case 'u':
+          if (i + 4 > json.length()) throw error("Unterminated escape");
+          try {
+            s.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+          } catch (NumberFormatException ex) {
+            throw error("Invalid escape");
+          }
+          i += 4;
+          break;
+        default: s.append(e);
+      }
+    }
+  }
+
+  private Number number() {
+    int start = i;
+    while (i < json.length() && "+-0123456789.eE".indexOf(json.charAt(i)) != -1) i++;
+    String n = json.substring(start, i);
+    try {
+      if (n.indexOf('.') == -1 && n.indexOf('e') == -1 && n.indexOf('E') == -1) {
+        return Long.parseLong(n);
+      }
+      return Double.parseDouble(n);
+    } catch (NumberFormatException e) {
+      throw error("Unexpected value");
+    }
+  }
+
+}
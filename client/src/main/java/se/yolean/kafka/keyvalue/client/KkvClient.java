@@ -0,0 +1,243 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads values from kafka-keyvalue through a bounded near-cache.
+ *
+ * Cached entries, including keys that were not found, stay until evicted or until {@link #onUpdate(Updates)}
+ * says that they changed, so kafka-keyvalue should have the application's onupdate endpoint as a target,
+ * see {@link OnUpdateEndpoint}. Misses are fetched in bulk with POST /cache/v1/raw, and with the offsets
+ * of the latest onupdate in x-kkv-min-offsets so that a replica that lags behind doesn't respond with values
+ * older than the ones that were invalidated.
+ *
+ * Thread safe.
+ */
+public class KkvClient {
+
+  public static final String HEADER_MIN_OFFSETS = "x-kkv-min-offsets";
+
+  static final String RAW_PATH = "/cache/v1/raw";
+
+  private final HttpClient http;
+
+  private final URI raw;
+
+  private final Duration timeout;
+
+  private final NearCache near;
+
+  /**
+   * Per topic and partition, guarded by itself.
+   */
+  private final Map<String, Map<Integer, Long>> offsets = new LinkedHashMap<>();
+
+  /**
+   * @param kkv Base URI, like http://kkv:8080
+   * @param maxEntries Near-cache size
+   * @param timeout For each request to kafka-keyvalue
+   */
+  public KkvClient(URI kkv, int maxEntries, Duration timeout) {
+    this(HttpClient.newBuilder().connectTimeout(timeout).build(), kkv, maxEntries, timeout);
+  }
+
+  public KkvClient(HttpClient http, URI kkv, int maxEntries, Duration timeout) {
+    this.http = http;
+    this.raw = kkv.resolve(RAW_PATH);
+    this.timeout = timeout;
+    this.near = new NearCache(maxEntries);
+  }
+
+  /**
+   * @return The value, or null if kafka-keyvalue doesn't have the key
+   * @throws UncheckedIOException If the value wasn't cached and couldn't be fetched
+   */
+  public byte[] get(String key) {
+    return getAll(Collections.singletonList(key)).get(key);
+  }
+
+  /**
+   * Fetches the keys that aren't cached in one request.
+   *
+   * @return Values in the order of the keys, null for keys that kafka-keyvalue doesn't have
+   * @throws UncheckedIOException If some value wasn't cached and couldn't be fetched
+   */
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    Map<String, byte[]> values = new LinkedHashMap<>();
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (values.containsKey(key)) continue;
+      byte[] value = near.get(key);
+      if (value == null) {
+        missing.add(key);
+        values.put(key, null);
+      } else {
+        values.put(key, value == NearCache.ABSENT ? null : value);
+      }
+    }
+    if (!missing.isEmpty()) {
+      NearCache.Fetch fetch = near.beginFetch(missing);
+      try {
+        Map<String, byte[]> fetched = fetch(missing);
+        near.putAll(fetched, fetch);
+        values.putAll(fetched);
+      } finally {
+        near.endFetch(fetch);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Drops changed keys from the near-cache, and remembers offsets for fetches that follow.
+   */
+  public void onUpdate(Updates updates) {
+    synchronized (offsets) {
+      Map<Integer, Long> topic = offsets.computeIfAbsent(updates.getTopic(), t -> new HashMap<>());
+      updates.getOffsets().forEach((partition, offset) -> topic.merge(partition, offset, Math::max));
+    }
+    near.invalidate(updates.getKeys());
+  }
+
+  /**
+   * Drops all cached entries, for example after missing onupdate requests.
+   */
+  public void invalidateAll() {
+    near.invalidateAll();
+  }
+
+  /**
+   * @return The offsets from onupdate so far, as {"topic":{"partition":offset}}, or null if none
+   */
+  String getMinOffsets() {
+    synchronized (offsets) {
+      if (offsets.isEmpty()) {
+        return null;
+      }
+      StringBuilder json = new StringBuilder("{");
+      offsets.forEach((topic, partitions) -> {
+        if (json.length() > 1) json.append(',');
+        Json.writeString(topic, json);
+        json.append(":{");
+        int start = json.length();
+        partitions.forEach((partition, offset) -> {
+          if (json.length() > start) json.append(',');
+          json.append('"').append(partition).append("\":").append(offset);
+        });
+        json.append('}');
+      });
+      return json.append('}').toString();
+    }
+  }
+
+  /**
+   * @return Values, or null for keys that weren't found
+   */
+  Map<String, byte[]> fetch(List<String> keys) {
+    StringBuilder body = new StringBuilder("[");
+    for (String key : keys) {
+      if (body.length() > 1) body.append(',');
+      Json.writeString(key, body);
+    }
+    body.append(']');
+    HttpRequest.Builder request = HttpRequest.newBuilder(raw)
+        .timeout(timeout)
+        .header("Content-Type", "application/json")
+        .header("Accept", "application/octet-stream")
+        .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+    String minOffsets = getMinOffsets();
+    if (minOffsets != null) {
+      request.header(HEADER_MIN_OFFSETS, minOffsets);
+    }
+    HttpResponse<byte[]> response;
+    try {
+      response = http.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to fetch " + keys.size() + " keys from " + raw, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while fetching from " + raw, e);
+    }
+    if (response.statusCode() != 200) {
+      throw new UncheckedIOException(new IOException("Unexpected status " + response.statusCode() + " from " + raw));
+    }
+    return parseValues(keys, response.body());
+  }
+
+  /**
+   * @param keys Distinct, as the response has one value per distinct key
+   * @param body Per key a 32-bit big-endian length, -1 if not found, followed by the value
+   */
+  static Map<String, byte[]> parseValues(List<String> keys, byte[] body) {
+    Map<String, byte[]> values = new LinkedHashMap<>();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    try {
+      for (String key : keys) {
+        int length = in.readInt();
+        if (length == -1) {
+          values.put(key, null);
+        } else {
+          byte[] value = new byte[length];
+          in.readFully(value);
+          values.put(key, value);
+        }
+      }
+    } catch (EOFException e) {
+      throw new UncheckedIOException("Response ended after " + values.size() + " of " + keys.size() + " values", e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return values;
+  }
+
+  /**
+   * @return Lookups that the near-cache answered
+   */
+  public long getHits() {
+    return near.getHits();
+  }
+
+  public long getMisses() {
+    return near.getMisses();
+  }
+
+  public int getCachedEntries() {
+    return near.size();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + raw + ",cached=" + near.size() + "]";
+  }
+
+}
@@ -0,0 +1,144 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Least recently used values, including keys known to be absent, up to a number of entries.
+ *
+ * A fetch that started before an invalidation of some of its keys may have read their old values,
+ * so results are only stored for the keys that weren't invalidated since the fetch began.
+ */
+class NearCache {
+
+  /**
+   * Marks keys that the cache didn't have, by identity.
+   */
+  static final byte[] ABSENT = new byte[0];
+
+  private final LinkedHashMap<String, byte[]> entries;
+
+  /**
+   * Keys of a fetch in progress that haven't been invalidated since it began.
+   */
+  static final class Fetch {
+
+    private final Set<String> pending;
+
+    private Fetch(Collection<String> keys) {
+      this.pending = new HashSet<>(keys);
+    }
+
+  }
+
+  private final List<Fetch> fetches = new ArrayList<>(1);
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+  NearCache(final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("Max entries must be at least 1, got " + maxEntries);
+    }
+    this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return The value, {@link #ABSENT}, or null if not cached
+   */
+  synchronized byte[] get(String key) {
+    byte[] value = entries.get(key);
+    if (value == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return value;
+  }
+
+  /**
+   * @return To pass to {@link #putAll(Map, Fetch)} with the results of a fetch that starts now,
+   *         and then to {@link #endFetch(Fetch)}
+   */
+  synchronized Fetch beginFetch(Collection<String> keys) {
+    Fetch fetch = new Fetch(keys);
+    fetches.add(fetch);
+    return fetch;
+  }
+
+  synchronized void endFetch(Fetch fetch) {
+    fetches.remove(fetch);
+  }
+
+  /**
+   * @param values With {@link #ABSENT} or null for keys that weren't found
+   * @return The number of values that were discarded because of an invalidation since the fetch began
+   */
+  synchronized int putAll(Map<String, byte[]> values, Fetch fetch) {
+    int discarded = 0;
+    for (Map.Entry<String, byte[]> value : values.entrySet()) {
+      if (fetch.pending.contains(value.getKey())) {
+        entries.put(value.getKey(), value.getValue() == null ? ABSENT : value.getValue());
+      } else {
+        discarded++;
+      }
+    }
+    return discarded;
+  }
+
+  synchronized void invalidate(Collection<String> keys) {
+    for (Fetch fetch : fetches) {
+      fetch.pending.removeAll(keys);
+    }
+    for (String key : keys) {
+      entries.remove(key);
+    }
+  }
+
+  synchronized void invalidateAll() {
+    for (Fetch fetch : fetches) {
+      fetch.pending.clear();
+    }
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+}
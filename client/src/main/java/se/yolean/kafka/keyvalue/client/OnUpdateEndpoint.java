@@ -0,0 +1,86 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.System.Logger.Level;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Listens for kafka-keyvalue's onupdate requests, for applications that don't have an HTTP server to
+ * call {@link KkvClient#onUpdate(Updates)} from. kafka-keyvalue's target, e.g. env target1,
+ * should be http://{app}:{port}{path}.
+ *
+ * Every request is acknowledged, because kafka-keyvalue stops dispatching updates on errors.
+ * A body that can't be parsed drops the whole near-cache instead.
+ */
+public class OnUpdateEndpoint implements Closeable {
+
+  private static final System.Logger logger = System.getLogger(OnUpdateEndpoint.class.getName());
+
+  private final KkvClient client;
+
+  private final HttpServer server;
+
+  public OnUpdateEndpoint(KkvClient client, InetSocketAddress address, String path) throws IOException {
+    this.client = client;
+    this.server = HttpServer.create(address, 0);
+    server.createContext(path, this::handle);
+    server.start();
+  }
+
+  void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = in.readAllBytes();
+      }
+      try {
+        client.onUpdate(Updates.parse(
+            exchange.getRequestHeaders().getFirst(Updates.HEADER_TOPIC),
+            exchange.getRequestHeaders().getFirst(Updates.HEADER_OFFSETS),
+            body));
+      } catch (IllegalArgumentException e) {
+        logger.log(Level.WARNING, "Dropping all cached entries after an unexpected onupdate request", e);
+        client.invalidateAll();
+      }
+      exchange.sendResponseHeaders(204, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return The port, useful if it was 0 to pick any
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+}
@@ -0,0 +1,121 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One onupdate request, i.e. the keys of one topic that changed during a poll,
+ * like {"v":1,"topic":"mytopic","offsets":{"0":1234},"updates":{"mykey":{}}}.
+ */
+public final class Updates {
+
+  public static final String HEADER_TOPIC = "x-kkv-topic";
+
+  public static final String HEADER_OFFSETS = "x-kkv-offsets";
+
+  private final String topic;
+
+  private final Map<Integer, Long> offsets;
+
+  private final Set<String> keys;
+
+  Updates(String topic, Map<Integer, Long> offsets, Set<String> keys) {
+    this.topic = topic;
+    this.offsets = Collections.unmodifiableMap(offsets);
+    this.keys = Collections.unmodifiableSet(keys);
+  }
+
+  /**
+   * @param topicHeader Value of {@value #HEADER_TOPIC}, or null to read the topic from the body
+   * @param offsetsHeader Value of {@value #HEADER_OFFSETS}, or null to read offsets from the body
+   * @param body The request body, UTF-8 JSON
+   * @throws IllegalArgumentException If the body isn't an onupdate body, or disagrees with the headers
+   */
+  public static Updates parse(String topicHeader, String offsetsHeader, byte[] body) {
+    Object json = Json.parse(new String(body, StandardCharsets.UTF_8));
+    if (!(json instanceof Map)) {
+      throw new IllegalArgumentException("Expected an onupdate body object");
+    }
+    Map<?, ?> object = (Map<?, ?>) json;
+    Object topic = object.get("topic");
+    if (!(topic instanceof String)) {
+      throw new IllegalArgumentException("Expected a topic in the onupdate body");
+    }
+    if (topicHeader != null && !topicHeader.equals(topic)) {
+      throw new IllegalArgumentException("Header " + HEADER_TOPIC + " " + topicHeader + " doesn't match body topic " + topic);
+    }
+    Object updates = object.get("updates");
+    if (!(updates instanceof Map)) {
+      throw new IllegalArgumentException("Expected updates in the onupdate body");
+    }
+    @SuppressWarnings("unchecked")
+    Set<String> keys = ((Map<String, ?>) updates).keySet();
+    Map<Integer, Long> offsets = parseOffsets(offsetsHeader != null ? Json.parse(offsetsHeader) : object.get("offsets"));
+    return new Updates((String) topic, offsets, keys);
+  }
+
+  /**
+   * @param json Like {"0":1234}
+   */
+  static Map<Integer, Long> parseOffsets(Object json) {
+    Map<Integer, Long> offsets = new LinkedHashMap<>();
+    if (json == null) {
+      return offsets;
+    }
+    if (!(json instanceof Map)) {
+      throw new IllegalArgumentException("Expected offsets as {\"partition\":offset}");
+    }
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) json).entrySet()) {
+      if (!(entry.getValue() instanceof Long)) {
+        throw new IllegalArgumentException("Expected offsets as {\"partition\":offset}");
+      }
+      try {
+        offsets.put(Integer.parseInt((String) entry.getKey()), (Long) entry.getValue());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Expected offsets as {\"partition\":offset}");
+      }
+    }
+    return offsets;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  /**
+   * @return Per partition, the offset of the last record that these updates include
+   */
+  public Map<Integer, Long> getOffsets() {
+    return offsets;
+  }
+
+  /**
+   * @return Keys that got a new value or were deleted
+   */
+  public Set<String> getKeys() {
+    return keys;
+  }
+
+  @Override
+  public String toString() {
+    return "Updates[topic=" + topic + ",offsets=" + offsets + ",keys=" + keys.size() + "]";
+  }
+
+}
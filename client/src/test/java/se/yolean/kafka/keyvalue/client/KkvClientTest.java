@@ -0,0 +1,203 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+class KkvClientTest {
+
+  HttpServer kkv;
+
+  Map<String, String> values = new ConcurrentHashMap<>();
+
+  List<List<Object>> requests = new ArrayList<>();
+
+  int status = 200;
+
+  KkvClient client;
+
+  /**
+   * Serves POST /cache/v1/raw like kafka-keyvalue, for a JSON array of keys without escapes.
+   */
+  @BeforeEach
+  void start() throws IOException {
+    kkv = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    kkv.createContext("/cache/v1/raw", exchange -> {
+      String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      List<String> keys = Arrays.asList(body.substring(2, body.length() - 2).split("\",\""));
+      synchronized (requests) {
+        requests.add(Arrays.asList(keys, String.valueOf(exchange.getRequestHeaders().getFirst(KkvClient.HEADER_MIN_OFFSETS))));
+      }
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      DataOutputStream data = new DataOutputStream(response);
+      for (String key : keys) {
+        String value = values.get(key);
+        if (value == null) {
+          data.writeInt(-1);
+        } else {
+          data.writeInt(value.length());
+          data.write(value.getBytes(StandardCharsets.UTF_8));
+        }
+      }
+      exchange.sendResponseHeaders(status, response.size());
+      try (OutputStream out = exchange.getResponseBody()) {
+        response.writeTo(out);
+      }
+    });
+    kkv.start();
+    client = new KkvClient(URI.create("http://127.0.0.1:" + kkv.getAddress().getPort()), 3, Duration.ofSeconds(5));
+  }
+
+  @AfterEach
+  void stop() {
+    kkv.stop(0);
+  }
+
+  static String string(byte[] value) {
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void testGetFromNearCache() {
+    values.put("a", "1");
+    assertEquals("1", string(client.get("a")));
+    assertEquals("1", string(client.get("a")));
+    assertNull(client.get("b"));
+    assertNull(client.get("b"), "Absent keys should be cached too");
+    assertEquals(2, requests.size());
+    assertEquals(2, client.getHits());
+    assertEquals(2, client.getMisses());
+  }
+
+  @Test
+  void testGetAllBatchesMisses() {
+    values.put("a", "1");
+    values.put("c", "3");
+    client.get("a");
+    Map<String, byte[]> all = client.getAll(List.of("c", "a", "b", "c"));
+    assertEquals(List.of("c", "a", "b"), new ArrayList<>(all.keySet()));
+    assertEquals("3", string(all.get("c")));
+    assertEquals("1", string(all.get("a")));
+    assertNull(all.get("b"));
+    assertEquals(List.of("c", "b"), requests.get(1).get(0), "Only misses should be fetched, once each");
+  }
+
+  @Test
+  void testEviction() {
+    values.put("a", "1");
+    client.getAll(List.of("a", "b", "c", "d"));
+    assertEquals(3, client.getCachedEntries());
+    client.get("a");
+    assertEquals(2, requests.size(), "Least recently used should be evicted");
+  }
+
+  @Test
+  void testOnUpdateInvalidates() {
+    values.put("a", "1");
+    values.put("b", "2");
+    client.getAll(List.of("a", "b"));
+    values.put("a", "1b");
+    values.put("b", "2b");
+    client.onUpdate(new Updates("t1", Map.of(0, 12L), Set.of("a")));
+    assertEquals("1b", string(client.get("a")));
+    assertEquals("2", string(client.get("b")), "Keys that weren't updated should stay cached");
+    assertEquals("{\"t1\":{\"0\":12}}", requests.get(1).get(1));
+    assertEquals("null", requests.get(0).get(1));
+    client.onUpdate(new Updates("t1", Map.of(0, 10L, 1, 3L), Set.of()));
+    assertEquals("{\"t1\":{\"0\":12,\"1\":3}}", client.getMinOffsets());
+  }
+
+  @Test
+  void testInvalidationDuringFetch() {
+    NearCache near = new NearCache(10);
+    NearCache.Fetch fetch = near.beginFetch(List.of("a", "b"));
+    NearCache.Fetch other = near.beginFetch(List.of("c"));
+    near.invalidate(List.of("a"));
+    assertEquals(1, near.putAll(Map.of("a", "old".getBytes(), "b", "2".getBytes()), fetch));
+    near.endFetch(fetch);
+    assertNull(near.get("a"));
+    assertEquals("2", string(near.get("b")), "Keys that weren't invalidated during the fetch should be cached");
+    near.invalidateAll();
+    assertEquals(1, near.putAll(Map.of("c", "old".getBytes()), other));
+    near.endFetch(other);
+    assertNull(near.get("c"));
+    NearCache.Fetch after = near.beginFetch(List.of("c"));
+    assertEquals(0, near.putAll(Map.of("c", "3".getBytes()), after));
+    near.endFetch(after);
+    assertEquals("3", string(near.get("c")));
+  }
+
+  @Test
+  void testUnready() {
+    status = 503;
+    assertThrows(UncheckedIOException.class, () -> client.get("a"));
+    assertEquals(0, client.getCachedEntries());
+  }
+
+  @Test
+  void testEndpoint() throws Exception {
+    values.put("a", "1");
+    client.get("a");
+    values.put("a", "2");
+    try (OnUpdateEndpoint endpoint = new OnUpdateEndpoint(client,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/kkv")) {
+      HttpClient http = HttpClient.newHttpClient();
+      HttpResponse<Void> response = http.send(HttpRequest
+          .newBuilder(URI.create("http://127.0.0.1:" + endpoint.getPort() + "/kkv"))
+          .header(Updates.HEADER_TOPIC, "t1")
+          .header(Updates.HEADER_OFFSETS, "{\"0\":1}")
+          .POST(HttpRequest.BodyPublishers.ofString(
+              "{\"v\":1,\"topic\":\"t1\",\"offsets\":{\"0\":1},\"updates\":{\"a\":{}}}"))
+          .build(), HttpResponse.BodyHandlers.discarding());
+      assertEquals(204, response.statusCode());
+      assertEquals("2", string(client.get("a")));
+
+      values.put("a", "3");
+      response = http.send(HttpRequest
+          .newBuilder(URI.create("http://127.0.0.1:" + endpoint.getPort() + "/kkv"))
+          .POST(HttpRequest.BodyPublishers.ofString("not json"))
+          .build(), HttpResponse.BodyHandlers.discarding());
+      assertEquals(204, response.statusCode(), "kafka-keyvalue halts onupdate on errors");
+      assertEquals("3", string(client.get("a")), "Unexpected bodies should invalidate all");
+    }
+  }
+
+}
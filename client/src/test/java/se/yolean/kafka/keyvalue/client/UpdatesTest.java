@@ -0,0 +1,62 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class UpdatesTest {
+
+  static byte[] body(String json) {
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void testParse() {
+    // As produced by UpdatesBodyPerTopicJSON
+    Updates updates = Updates.parse("t1", "{\"0\":12,\"3\":5}",
+        body("{\"v\":1,\"topic\":\"t1\",\"offsets\":{\"0\":12,\"3\":5},\"updates\":{\"k1\":{},\"k\\\"2\\u00e5\":{}}}"));
+    assertEquals("t1", updates.getTopic());
+    assertEquals(Map.of(0, 12L, 3, 5L), updates.getOffsets());
+    assertEquals(Set.of("k1", "k\"2å"), updates.getKeys());
+  }
+
+  @Test
+  void testWithoutHeaders() {
+    Updates updates = Updates.parse(null, null,
+        body("{ \"v\": 1, \"topic\": \"t1\", \"offsets\": {\"1\": 7}, \"updates\": {} }"));
+    assertEquals("t1", updates.getTopic());
+    assertEquals(Map.of(1, 7L), updates.getOffsets());
+    assertTrue(updates.getKeys().isEmpty());
+  }
+
+  @Test
+  void testInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> Updates.parse(null, null, body("[]")));
+    assertThrows(IllegalArgumentException.class, () -> Updates.parse(null, null, body("{\"topic\":\"t1\"}")));
+    assertThrows(IllegalArgumentException.class, () -> Updates.parse("t2", null,
+        body("{\"topic\":\"t1\",\"updates\":{}}")), "Header and body topics should match");
+    assertThrows(IllegalArgumentException.class, () -> Updates.parse(null, "{\"0\":\"x\"}",
+        body("{\"topic\":\"t1\",\"updates\":{}}")));
+    assertThrows(IllegalArgumentException.class, () -> Updates.parse(null, null,
+        body("{\"topic\":\"t1\",\"updates\":{}")));
+  }
+
+}
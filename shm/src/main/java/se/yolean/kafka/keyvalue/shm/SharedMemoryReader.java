@@ -0,0 +1,275 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.shm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Looks up values in the memory-mapped file that a co-located kafka-keyvalue
+ * exports with cache_shm_path, in the layout that README.md describes.
+ *
+ * Thread safe, lock-free, and without system calls except when the writer has replaced the file.
+ * A file that the writer flagged stale, because it replaced it or stopped, is read until a replacement shows up.
+ * Lookups retry while the writer is changing the index, which takes nanoseconds.
+ */
+public class SharedMemoryReader {
+
+  static final int MAGIC = 0x53564b4b;
+
+  static final int VERSION = 1;
+
+  static final int HEADER_SIZE = 64;
+
+  static final int SLOT_SIZE = 16;
+
+  static final int RECORD_HEADER_SIZE = 8;
+
+  static final int SEQUENCE_POSITION = 8;
+  static final int STALE_POSITION = 16;
+  static final int CAPACITY_POSITION = 24;
+  static final int COUNT_POSITION = 32;
+  static final int READY_POSITION = 56;
+
+  static final long EMPTY = 0;
+
+  static final long DELETED = 1;
+
+  static final int READ_ATTEMPTS = 1000;
+
+  /**
+   * How often to look for a file that replaces a stale one, which if the writer has stopped will never come.
+   */
+  static final long REMAP_INTERVAL_NANOS = 1_000_000_000L;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final class Mapping {
+
+    final MappedByteBuffer buffer;
+    final int mask;
+    /**
+     * Guarded by the reader's monitor. Initially long enough ago for the first remap to be immediate.
+     */
+    long remapped = System.nanoTime() - REMAP_INTERVAL_NANOS;
+
+    Mapping(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      this.mask = (int) buffer.getLong(CAPACITY_POSITION) - 1;
+    }
+
+    boolean isStale() {
+      return (long) LONGS.getAcquire(buffer, STALE_POSITION) != 0;
+    }
+
+  }
+
+  private final Path path;
+
+  private volatile Mapping mapping;
+
+  /**
+   * @param path The writer's cache_shm_path
+   * @throws UncheckedIOException If the file can't be mapped
+   * @throws IllegalArgumentException If the file isn't an export in a layout version that this reader knows
+   */
+  public SharedMemoryReader(Path path) {
+    this.path = path;
+    this.mapping = map(path);
+  }
+
+  private static Mapping map(Path path) {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to map " + path, e);
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("Not a kafka-keyvalue shared memory export: " + path);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Unsupported layout version " + buffer.getInt(4) + " at " + path);
+    }
+    return new Mapping(buffer);
+  }
+
+  /**
+   * @return true if there's a new mapping to retry with,
+   *         false to keep reading the stale one because the writer hasn't replaced it
+   */
+  private synchronized boolean remap(Mapping stale) {
+    if (mapping != stale) {
+      return true;
+    }
+    long now = System.nanoTime();
+    if (now - stale.remapped < REMAP_INTERVAL_NANOS) {
+      return false;
+    }
+    stale.remapped = now;
+    Mapping next;
+    try {
+      next = map(path);
+    } catch (UncheckedIOException | IllegalArgumentException e) {
+      return false;
+    }
+    if (next.isStale()) {
+      return false;
+    }
+    mapping = next;
+    return true;
+  }
+
+  private Mapping current() {
+    Mapping m = mapping;
+    if (m.isStale() && remap(m)) {
+      return mapping;
+    }
+    return m;
+  }
+
+  /**
+   * The hash that the writer indexes keys by.
+   */
+  static long hash(byte[] key) {
+    long h = FNV_OFFSET;
+    for (byte b : key) {
+      h ^= b & 0xff;
+      h *= FNV_PRIME;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == EMPTY || h == DELETED ? 2 : h;
+  }
+
+  /**
+   * Plain reads, to be validated against the sequence, so positions are checked against bounds.
+   *
+   * @return The key's record position, or -1
+   */
+  private static int find(Mapping m, byte[] key, long hash) {
+    final ByteBuffer b = m.buffer;
+    int slot = (int) hash & m.mask;
+    for (int probe = 0; probe <= m.mask; probe++, slot = (slot + 1) & m.mask) {
+      int position = HEADER_SIZE + slot * SLOT_SIZE;
+      long h = b.getLong(position);
+      if (h == EMPTY) return -1;
+      if (h != hash) continue;
+      long record = b.getLong(position + 8);
+      if (record < HEADER_SIZE || record + RECORD_HEADER_SIZE + key.length > b.capacity()) continue;
+      if (matches(b, (int) record, key)) return (int) record;
+    }
+    return -1;
+  }
+
+  private static boolean matches(ByteBuffer b, int record, byte[] key) {
+    if (b.getInt(record) != key.length) return false;
+    for (int i = 0; i < key.length; i++) {
+      if (b.get(record + RECORD_HEADER_SIZE + i) != key[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param key UTF-8 encoded
+   * @return The value as a read-only buffer over the shared memory, or null if not found
+   * @throws IllegalStateException If the writer kept changing the index during all attempts
+   */
+  public ByteBuffer getBuffer(byte[] key) {
+    final long hash = hash(key);
+    for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+      final Mapping m = mapping;
+      final long before = (long) LONGS.getAcquire(m.buffer, SEQUENCE_POSITION);
+      if ((before & 1) == 0) {
+        int record = find(m, key, hash);
+        VarHandle.loadLoadFence();
+        if ((long) LONGS.getAcquire(m.buffer, SEQUENCE_POSITION) == before) {
+          if (m.isStale() && remap(m)) {
+            continue;
+          }
+          if (record == -1) {
+            return null;
+          }
+          // Records are immutable, so the value needs no validation
+          int start = record + RECORD_HEADER_SIZE + key.length;
+          ByteBuffer value = m.buffer.duplicate();
+          value.limit(start + m.buffer.getInt(record + 4));
+          value.position(start);
+          return value.slice().asReadOnlyBuffer();
+        }
+      }
+      Thread.onSpinWait();
+    }
+    throw new IllegalStateException("Failed to read a consistent index in " + READ_ATTEMPTS + " attempts");
+  }
+
+  public ByteBuffer getBuffer(String key) {
+    return getBuffer(key.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return A copy of the value, or null if not found
+   */
+  public byte[] get(String key) {
+    ByteBuffer buffer = getBuffer(key);
+    if (buffer == null) {
+      return null;
+    }
+    byte[] value = new byte[buffer.remaining()];
+    buffer.get(value);
+    return value;
+  }
+
+  public boolean containsKey(String key) {
+    return getBuffer(key) != null;
+  }
+
+  /**
+   * @return Live keys, as of the latest completed write
+   */
+  public long size() {
+    return (long) LONGS.getAcquire(current().buffer, COUNT_POSITION);
+  }
+
+  /**
+   * @return true if the writer's cache was ready, i.e. up to date with the topic, as of its latest change
+   */
+  public boolean isReady() {
+    return (long) LONGS.getAcquire(current().buffer, READY_POSITION) == 1;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + path + "]";
+  }
+
+}
@@ -0,0 +1,179 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.shm;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharedMemoryReaderTest {
+
+  @TempDir
+  Path dir;
+
+  /**
+   * Writes the layout from README.md, like kafka-keyvalue does, for an index of 16 slots.
+   */
+  static void write(Path path, Map<String, String> entries, boolean ready) throws IOException {
+    final int capacity = 16;
+    final int data = SharedMemoryReader.HEADER_SIZE + capacity * SharedMemoryReader.SLOT_SIZE;
+    Path tmp = path.resolveSibling("tmp");
+    MappedByteBuffer b;
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      b = channel.map(FileChannel.MapMode.READ_WRITE, 0, data + 4096);
+    }
+    b.order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(0, SharedMemoryReader.MAGIC);
+    b.putInt(4, SharedMemoryReader.VERSION);
+    b.putLong(SharedMemoryReader.CAPACITY_POSITION, capacity);
+    b.putLong(SharedMemoryReader.COUNT_POSITION, entries.size());
+    b.putLong(SharedMemoryReader.READY_POSITION, ready ? 1 : 0);
+    b.position(data);
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+      int record = b.position();
+      b.putInt(key.length).putInt(value.length).put(key).put(value);
+      b.position((b.position() + 7) & ~7);
+      long hash = SharedMemoryReader.hash(key);
+      int slot = (int) hash & (capacity - 1);
+      while (b.getLong(SharedMemoryReader.HEADER_SIZE + slot * SharedMemoryReader.SLOT_SIZE) != 0) {
+        slot = (slot + 1) & (capacity - 1);
+      }
+      b.putLong(SharedMemoryReader.HEADER_SIZE + slot * SharedMemoryReader.SLOT_SIZE, hash);
+      b.putLong(SharedMemoryReader.HEADER_SIZE + slot * SharedMemoryReader.SLOT_SIZE + 8, record);
+    }
+    b.putLong(48, b.position());
+    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  static void flagStale(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      channel.map(FileChannel.MapMode.READ_WRITE, 0, SharedMemoryReader.HEADER_SIZE)
+          .order(ByteOrder.LITTLE_ENDIAN).putLong(SharedMemoryReader.STALE_POSITION, 1);
+    }
+  }
+
+  static Map<String, String> entries(String... keysAndValues) {
+    Map<String, String> entries = new LinkedHashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      entries.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return entries;
+  }
+
+  @Test
+  void testGet() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    write(path, entries("a", "1", "å", "{\"x\":2}", "empty", ""), true);
+    SharedMemoryReader reader = new SharedMemoryReader(path);
+    assertEquals("1", new String(reader.get("a"), StandardCharsets.UTF_8));
+    assertEquals("{\"x\":2}", new String(reader.get("å"), StandardCharsets.UTF_8));
+    assertEquals(0, reader.get("empty").length);
+    assertNull(reader.get("b"));
+    assertTrue(reader.containsKey("a"));
+    assertFalse(reader.containsKey("b"));
+    assertEquals(3, reader.size());
+    assertTrue(reader.isReady());
+    ByteBuffer value = reader.getBuffer("a");
+    assertTrue(value.isReadOnly());
+    assertEquals(1, value.remaining());
+    assertEquals('1', value.get(0));
+  }
+
+  @Test
+  void testReplaced() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    write(path, entries("a", "1"), false);
+    SharedMemoryReader reader = new SharedMemoryReader(path);
+    assertFalse(reader.isReady());
+    write(path, entries("a", "2", "b", "3"), true);
+    assertEquals("1", new String(reader.get("a")), "Until flagged stale the old file is current");
+    flagStale(dir.resolve("cache.kkv"));
+    assertEquals("1", new String(reader.get("a")), "The flag was set on the new file, not the mapped one");
+  }
+
+  @Test
+  void testReplacedAndFlagged() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    write(path, entries("a", "1"), false);
+    SharedMemoryReader reader = new SharedMemoryReader(path);
+    Path old = dir.resolve("old.kkv");
+    Files.createLink(old, path);
+    write(path, entries("a", "2", "b", "3"), true);
+    flagStale(old);
+    assertEquals("2", new String(reader.get("a")));
+    assertEquals("3", new String(reader.get("b")));
+    assertEquals(2, reader.size());
+    assertTrue(reader.isReady());
+  }
+
+  @Test
+  void testWriterStopped() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    write(path, entries("a", "1"), true);
+    SharedMemoryReader reader = new SharedMemoryReader(path);
+    flagStale(path);
+    assertEquals("1", new String(reader.get("a")), "A stale file should be read until it's replaced");
+    assertNull(reader.get("b"));
+  }
+
+  @Test
+  void testNotAnExport() throws IOException {
+    Path path = dir.resolve("other");
+    Files.write(path, new byte[SharedMemoryReader.HEADER_SIZE]);
+    assertThrows(IllegalArgumentException.class, () -> new SharedMemoryReader(path));
+  }
+
+  /**
+   * Written by kafka-keyvalue's SharedMemoryExportTest, which fails if the writer no longer produces it.
+   */
+  @Test
+  void testExportFixture() throws Exception {
+    SharedMemoryReader reader = new SharedMemoryReader(Path.of(getClass().getResource("/export-v1.kkv").toURI()));
+    assertEquals(11, reader.size());
+    assertTrue(reader.isReady());
+    assertEquals("2", new String(reader.get("a"), StandardCharsets.UTF_8));
+    assertEquals("{\"x\":2}", new String(reader.get("å"), StandardCharsets.UTF_8));
+    assertEquals(0, reader.get("empty").length);
+    assertNull(reader.get("removed"));
+    for (int i = 0; i < 8; i++) {
+      assertEquals("v" + i, new String(reader.get("k" + i), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  void testHash() {
+    assertEquals(0x82a2a958a9bece5bL, SharedMemoryReader.hash("a".getBytes(StandardCharsets.UTF_8)),
+        "Must equal the writer's hash");
+    assertEquals(0x8f06410810eeac89L, SharedMemoryReader.hash("å".getBytes(StandardCharsets.UTF_8)));
+  }
+
+}
@@ -0,0 +1,166 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * The consume loop's per-partition state, in arrays indexed by a slot that's fixed at assignment,
+ * so that applying a record neither allocates nor boxes.
+ *
+ * Current offsets are written by the consume loop only, and can be read by any thread.
+ */
+public class AssignedPartitions {
+
+  public static final long NONE = -1;
+
+  /**
+   * Per topic, slots indexed by partition number, -1 for partitions that aren't assigned.
+   */
+  private final Map<String, int[]> slots = new HashMap<>();
+
+  private final TopicPartition[] partitions;
+
+  private final long[] endOffsets;
+
+  private final AtomicLongArray currentOffsets;
+
+  /**
+   * Per slot, true once the consume loop has skipped a record. Consume loop only.
+   */
+  private final boolean[] held;
+
+  public AssignedPartitions(Collection<TopicPartition> assigned) {
+    this.partitions = assigned.toArray(new TopicPartition[0]);
+    this.endOffsets = new long[partitions.length];
+    this.currentOffsets = new AtomicLongArray(partitions.length);
+    this.held = new boolean[partitions.length];
+    for (int slot = 0; slot < partitions.length; slot++) {
+      TopicPartition partition = partitions[slot];
+      int[] topic = slots.get(partition.topic());
+      if (topic == null || topic.length <= partition.partition()) {
+        int[] grown = new int[partition.partition() + 1];
+        Arrays.fill(grown, -1);
+        if (topic != null) System.arraycopy(topic, 0, grown, 0, topic.length);
+        topic = grown;
+        slots.put(partition.topic(), topic);
+      }
+      topic[partition.partition()] = slot;
+      currentOffsets.set(slot, NONE);
+    }
+  }
+
+  /**
+   * @return The slot, or -1 if the partition isn't assigned
+   */
+  public int find(String topic, int partition) {
+    int[] topicSlots = slots.get(topic);
+    if (topicSlots == null || partition < 0 || partition >= topicSlots.length) {
+      return -1;
+    }
+    return topicSlots[partition];
+  }
+
+  /**
+   * @throws IllegalStateException If the partition isn't assigned
+   */
+  public int slot(String topic, int partition) {
+    int slot = find(topic, partition);
+    if (slot == -1) {
+      throw new IllegalStateException("Topic-partition " + topic + "-" + partition + " not found in " + Arrays.toString(partitions));
+    }
+    return slot;
+  }
+
+  public int size() {
+    return partitions.length;
+  }
+
+  public TopicPartition getPartition(int slot) {
+    return partitions[slot];
+  }
+
+  /**
+   * @return The consumer's position at assignment, i.e. the first offset that onupdate targets are interested in
+   */
+  public long getEndOffset(int slot) {
+    return endOffsets[slot];
+  }
+
+  void setEndOffset(int slot, long offset) {
+    endOffsets[slot] = offset;
+  }
+
+  /**
+   * @return The offset of the last record applied, or {@value #NONE}
+   */
+  public long getCurrentOffset(int slot) {
+    return currentOffsets.get(slot);
+  }
+
+  /**
+   * Consume loop only. Volatile, not just ordered, because {@link OffsetWaiters} reads its thresholds after this
+   * and waiters write thresholds before reading this, so one side always sees the other.
+   */
+  public void setCurrentOffset(int slot, long offset) {
+    currentOffsets.set(slot, offset);
+  }
+
+  /**
+   * Consume loop only. Keeps the current offset before a record that wasn't applied, for as long as the assignment lasts,
+   * so that neither checkpoints nor offset waiters count it as applied, and a restart reads it again.
+   */
+  public void holdCurrentOffset(int slot) {
+    held[slot] = true;
+  }
+
+  public boolean isCurrentOffsetHeld(int slot) {
+    return held[slot];
+  }
+
+  /**
+   * @return The offset of the last record applied, or null if none or if the partition isn't assigned
+   */
+  public Long getCurrentOffset(String topic, int partition) {
+    int slot = find(topic, partition);
+    if (slot == -1) return null;
+    long offset = currentOffsets.get(slot);
+    return offset == NONE ? null : offset;
+  }
+
+  /**
+   * @return A copy, with the partitions that have an applied offset
+   */
+  public Map<TopicPartition, Long> getCurrentOffsets() {
+    Map<TopicPartition, Long> offsets = new HashMap<>(partitions.length * 2);
+    for (int slot = 0; slot < partitions.length; slot++) {
+      long offset = currentOffsets.get(slot);
+      if (offset != NONE) offsets.put(partitions[slot], offset);
+    }
+    return offsets;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + Arrays.toString(partitions);
+  }
+
+}
@@ -0,0 +1,56 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+
+import se.yolean.kafka.keyvalue.store.Snapshot;
+
+/**
+ * The cache as of a point between two consumed records, and the offsets of the records applied up to there.
+ * Close to let the store drop the values that it keeps for this snapshot.
+ */
+public class CacheSnapshot implements Closeable {
+
+  private final Snapshot entries;
+
+  private final Map<TopicPartition, Long> offsets;
+
+  public CacheSnapshot(Snapshot entries, Map<TopicPartition, Long> offsets) {
+    this.entries = entries;
+    this.offsets = offsets;
+  }
+
+  /**
+   * @return Per topic-partition the offset of the last record included
+   */
+  public Map<TopicPartition, Long> getOffsets() {
+    return offsets;
+  }
+
+  public Iterator<Map.Entry<String, byte[]>> getEntries() {
+    return entries.iterator();
+  }
+
+  @Override
+  public void close() {
+    entries.close();
+  }
+
+}
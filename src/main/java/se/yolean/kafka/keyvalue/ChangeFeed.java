@@ -0,0 +1,242 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fans out applied changes to any number of subscribers, each with its own bounded ring buffer.
+ *
+ * The consume loop never waits for a subscriber. One that falls a full buffer behind
+ * is closed with overflow, and must re-read what it needs before subscribing again,
+ * because a feed with gaps would be worse than none.
+ */
+public class ChangeFeed {
+
+  static final Logger logger = LoggerFactory.getLogger(ChangeFeed.class);
+
+  public static final class Change {
+
+    private final TopicPartition topicPartition;
+    private final long offset;
+    private final String key;
+    private final byte[] value;
+
+    public Change(TopicPartition topicPartition, long offset, String key, byte[] value) {
+      this.topicPartition = topicPartition;
+      this.offset = offset;
+      this.key = key;
+      this.value = value;
+    }
+
+    public TopicPartition getTopicPartition() {
+      return topicPartition;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return The new value, or null for deletes
+     */
+    public byte[] getValue() {
+      return value;
+    }
+
+  }
+
+  public interface Listener {
+
+    /**
+     * @return Completes when the change is sent, exceptionally if the subscriber is gone
+     */
+    CompletionStage<?> onChange(Change change);
+
+    /**
+     * Called once, after which there are no more changes.
+     *
+     * @param overflow True if the subscriber was dropped for falling behind
+     */
+    void onClose(boolean overflow);
+
+  }
+
+  /**
+   * Single producer, the consume loop, and single consumer, the drain task.
+   */
+  final class Subscriber {
+
+    private final Listener listener;
+
+    private final Change[] ring;
+
+    private volatile long head = 0;
+
+    private volatile long tail = 0;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile boolean overflow = false;
+
+    Subscriber(Listener listener, int capacity) {
+      this.listener = listener;
+      this.ring = new Change[capacity];
+    }
+
+    /**
+     * @return false if the ring buffer is full
+     */
+    boolean offer(Change change) {
+      final long t = tail;
+      if (t - head == ring.length) {
+        return false;
+      }
+      ring[(int) (t % ring.length)] = change;
+      tail = t + 1;
+      return true;
+    }
+
+    private Change poll() {
+      final long h = head;
+      if (h == tail) {
+        return null;
+      }
+      final int i = (int) (h % ring.length);
+      Change change = ring[i];
+      ring[i] = null;
+      head = h + 1;
+      return change;
+    }
+
+    void schedule() {
+      if (draining.compareAndSet(false, true)) {
+        executor.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      while (!closed.get()) {
+        Change change = poll();
+        if (change == null) {
+          if (overflow) {
+            close(true);
+            return;
+          }
+          draining.set(false);
+          if (head != tail) {
+            schedule();
+          }
+          return;
+        }
+        CompletableFuture<?> sent;
+        try {
+          sent = listener.onChange(change).toCompletableFuture();
+        } catch (RuntimeException e) {
+          sent = CompletableFuture.failedFuture(e);
+        }
+        if (!sent.isDone()) {
+          sent.whenComplete((result, error) -> {
+            if (error != null) {
+              close(false);
+            } else {
+              executor.execute(this::drain);
+            }
+          });
+          return;
+        }
+        if (sent.isCompletedExceptionally()) {
+          close(false);
+          return;
+        }
+      }
+    }
+
+    /**
+     * Delivers what's already buffered before telling the listener about overflow.
+     */
+    void overflow() {
+      overflow = true;
+      subscribers.remove(this);
+      schedule();
+    }
+
+    void close(boolean overflow) {
+      if (closed.compareAndSet(false, true)) {
+        subscribers.remove(this);
+        listener.onClose(overflow);
+      }
+    }
+
+  }
+
+  private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+
+  private final Executor executor;
+
+  /**
+   * @param executor For sending, never the consume loop's thread
+   */
+  public ChangeFeed(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * @param bufferSize Max changes that the subscriber may lag behind
+   */
+  public void subscribe(Listener listener, int bufferSize) {
+    subscribers.add(new Subscriber(listener, bufferSize));
+  }
+
+  public boolean hasSubscribers() {
+    return !subscribers.isEmpty();
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * Called by the consume loop for every applied change.
+   */
+  public void publish(TopicPartition topicPartition, long offset, String key, byte[] value) {
+    if (subscribers.isEmpty()) return;
+    Change change = new Change(topicPartition, offset, key, value);
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.offer(change)) {
+        subscriber.schedule();
+      } else {
+        logger.warn("Dropping change subscriber that is {} changes behind, at {}", subscriber.ring.length, change.getOffset());
+        subscriber.overflow();
+      }
+    }
+  }
+
+}
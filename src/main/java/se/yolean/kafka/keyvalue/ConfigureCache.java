@@ -14,8 +14,11 @@
 
 package se.yolean.kafka.keyvalue;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 import javax.enterprise.inject.Produces;
 import javax.inject.Provider;
@@ -25,15 +28,41 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import se.yolean.kafka.keyvalue.store.CompactKeyMap;
+import se.yolean.kafka.keyvalue.store.CompressedValueMap;
+import se.yolean.kafka.keyvalue.store.DedupValueMap;
+import se.yolean.kafka.keyvalue.store.OffHeapValueMap;
+import se.yolean.kafka.keyvalue.store.PersistentMappedMap;
+import se.yolean.kafka.keyvalue.store.SingleWriterHashMap;
+import se.yolean.kafka.keyvalue.store.SortedKeyMap;
+import se.yolean.kafka.keyvalue.store.TieredMap;
+
 /**
  * Cache types
- * {@value #CACHE_TYPE_INMEMORY}
+ * {@value #CACHE_TYPE_INMEMORY},
+ * {@value #CACHE_TYPE_CONCURRENT} (safe for REST reads during consume),
+ * {@value #CACHE_TYPE_OFFHEAP} (values in direct memory, see -XX:MaxDirectMemorySize),
+ * {@value #CACHE_TYPE_PERSISTENT} (memory-mapped files that survive restarts, requires cache_persistent_path),
+ * {@value #CACHE_TYPE_COMPACT} (UTF-8 keys in an arena, for many small entries),
+ * {@value #CACHE_TYPE_TIERED} (hot entries in memory up to a budget, cold on disk, requires cache_tiered_path).
+ *
+ * Any of them can be combined with cache_compression {@value #CACHE_COMPRESSION_GZIP}.
+ * The types that keep values on heap can also share identical values with cache_dedup.
+ * With cache_sorted_keys any type gets an ordered key index for prefix and range scans.
  */
 @Singleton
 public class ConfigureCache implements Provider<Map<String, byte[]>> {
 
   // ConfigProperty didn't work with Enum
   public static final String CACHE_TYPE_INMEMORY = "inmemory";
+  public static final String CACHE_TYPE_CONCURRENT = "concurrent";
+  public static final String CACHE_TYPE_OFFHEAP = "offheap";
+  public static final String CACHE_TYPE_PERSISTENT = "persistent";
+  public static final String CACHE_TYPE_COMPACT = "compact";
+  public static final String CACHE_TYPE_TIERED = "tiered";
+
+  public static final String CACHE_COMPRESSION_NONE = "none";
+  public static final String CACHE_COMPRESSION_GZIP = "gzip";
 
   final Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -43,14 +72,92 @@ public class ConfigureCache implements Provider<Map<String, byte[]>> {
   @ConfigProperty(name="cache_type", defaultValue=CACHE_TYPE_INMEMORY)
   String cacheType;
 
+  @ConfigProperty(name="cache_offheap_arena_size", defaultValue="67108864")
+  int offheapArenaSize;
+
+  @ConfigProperty(name="cache_persistent_path")
+  Optional<String> persistentPath;
+
+  @ConfigProperty(name="cache_persistent_segment_size", defaultValue="67108864")
+  int persistentSegmentSize;
+
+  @ConfigProperty(name="cache_tiered_path")
+  Optional<String> tieredPath;
+
+  @ConfigProperty(name="cache_tiered_memory_budget", defaultValue="268435456")
+  long tieredMemoryBudget;
+
+  @ConfigProperty(name="cache_snapshot_max_age", defaultValue="10m")
+  Duration snapshotMaxAge;
+
+  @ConfigProperty(name="cache_sorted_keys", defaultValue="false")
+  boolean sortedKeys;
+
+  @ConfigProperty(name="cache_dedup", defaultValue="false")
+  boolean dedup;
+
+  @ConfigProperty(name="cache_compression", defaultValue=CACHE_COMPRESSION_NONE)
+  String compression;
+
+  @ConfigProperty(name="cache_compression_min_size", defaultValue="256")
+  int compressionMinSize;
+
   @Produces
   //@javax.inject.Named("cache")
   @Override
   public Map<String, byte[]> get() {
+    Map<String, byte[]> store = getStore();
+    if (sortedKeys) {
+      logger.info("Indexing keys in order");
+      store = new SortedKeyMap(store);
+    }
+    if (dedup) {
+      if (!CACHE_TYPE_INMEMORY.equals(cacheType) && !CACHE_TYPE_CONCURRENT.equals(cacheType)
+          && !CACHE_TYPE_COMPACT.equals(cacheType)) {
+        throw new RuntimeException("Cache type " + cacheType + " copies values, so cache_dedup would only add a pool");
+      }
+      logger.info("Sharing identical values");
+      store = new DedupValueMap(store);
+    }
+    if (CACHE_COMPRESSION_GZIP.equals(compression)) {
+      logger.info("Compressing values of at least {} bytes", compressionMinSize);
+      return new CompressedValueMap(store, compressionMinSize);
+    }
+    if (!CACHE_COMPRESSION_NONE.equals(compression)) {
+      throw new RuntimeException("Unsupported cache compression: " + compression);
+    }
+    return store;
+  }
+
+  Map<String, byte[]> getStore() {
     if (CACHE_TYPE_INMEMORY.equals(cacheType)) {
       logger.info("Providing new in-memory cache, initial size {}", initialSize);
       return new HashMap<String, byte[]>(initialSize);
     }
+    if (CACHE_TYPE_CONCURRENT.equals(cacheType)) {
+      logger.info("Providing new single-writer concurrent cache, initial size {}", initialSize);
+      return new SingleWriterHashMap(initialSize, snapshotMaxAge);
+    }
+    if (CACHE_TYPE_OFFHEAP.equals(cacheType)) {
+      logger.info("Providing new off-heap cache, initial size {}, arena size {}", initialSize, offheapArenaSize);
+      return new OffHeapValueMap(initialSize, offheapArenaSize);
+    }
+    if (CACHE_TYPE_PERSISTENT.equals(cacheType)) {
+      Path path = Path.of(persistentPath.orElseThrow(() ->
+          new RuntimeException("Cache type " + cacheType + " requires cache_persistent_path")));
+      logger.info("Providing persistent cache at {}, segment size {}", path, persistentSegmentSize);
+      return new PersistentMappedMap(path, initialSize, persistentSegmentSize);
+    }
+    if (CACHE_TYPE_COMPACT.equals(cacheType)) {
+      logger.info("Providing new compact-key cache, initial size {}", initialSize);
+      return new CompactKeyMap(initialSize);
+    }
+    if (CACHE_TYPE_TIERED.equals(cacheType)) {
+      Path path = Path.of(tieredPath.orElseThrow(() ->
+          new RuntimeException("Cache type " + cacheType + " requires cache_tiered_path")));
+      logger.info("Providing new tiered cache at {}, memory budget {}", path, tieredMemoryBudget);
+      return new TieredMap(path, initialSize, tieredMemoryBudget);
+    }
     throw new RuntimeException("Unsupported cache type: " + cacheType);
   }
 
@@ -14,21 +14,45 @@
 
 package se.yolean.kafka.keyvalue;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
+import javax.json.JsonStructure;
 
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.ConfigProvider;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.health.HealthCheck;
 import org.eclipse.microprofile.health.HealthCheckResponse;
@@ -38,11 +62,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionTimer;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
 import io.smallrye.common.annotation.Identifier;
 import io.smallrye.reactive.messaging.kafka.KafkaConsumerRebalanceListener;
+import se.yolean.kafka.keyvalue.store.BufferEntryStore;
+import se.yolean.kafka.keyvalue.store.CheckpointStore;
+import se.yolean.kafka.keyvalue.store.CompressedValueMap;
+import se.yolean.kafka.keyvalue.store.DedupValueMap;
+import se.yolean.kafka.keyvalue.store.DelegatingStore;
+import se.yolean.kafka.keyvalue.store.JsonFieldIndex;
+import se.yolean.kafka.keyvalue.store.KeyMetadata;
+import se.yolean.kafka.keyvalue.store.MemoryAccounting;
+import se.yolean.kafka.keyvalue.store.SharedMemoryExport;
+import se.yolean.kafka.keyvalue.store.Snapshot;
+import se.yolean.kafka.keyvalue.store.SnapshotStore;
+import se.yolean.kafka.keyvalue.store.SortedKeyMap;
+import se.yolean.kafka.keyvalue.store.Utf8KeyStore;
+import se.yolean.kafka.keyvalue.store.ValueLengthStore;
 
 @ApplicationScoped
 @Identifier("kkv")
@@ -70,18 +110,76 @@ public class ConsumerAtLeastOnce implements KafkaConsumerRebalanceListener, Kafk
   @ConfigProperty(name = "kkc.assignments.timeout", defaultValue="90s")
   private Duration assignmentsTimeout;
 
+  @ConfigProperty(name = "cache_checkpoint_interval", defaultValue="10s")
+  Duration checkpointInterval;
+
+  /**
+   * At most the topic's delete.retention.ms, after which the log cleaner may drop tombstones that a restored cache missed.
+   */
+  @ConfigProperty(name = "cache_checkpoint_max_age", defaultValue="24h")
+  Duration checkpointMaxAge;
+
+  /**
+   * Logical bytes, see {@link MemoryAccounting}.
+   */
+  @ConfigProperty(name = "cache_memory_budget", defaultValue="0")
+  long memoryBudget;
+
+  @ConfigProperty(name = "cache_json_indexes")
+  Optional<String> jsonIndexesConfig;
+
+  @ConfigProperty(name = "cache_key_metadata", defaultValue="false")
+  boolean keyMetadataEnabled;
+
+  @ConfigProperty(name = "cache_shm_path")
+  Optional<String> shmPath;
+
+  @ConfigProperty(name = "cache_shm_data_size", defaultValue="67108864")
+  int shmDataSize;
+
+  @ConfigProperty(name = "min_offsets_timeout", defaultValue="10s")
+  Duration minOffsetsTimeout;
+
+  @ConfigProperty(name = "changes_buffer_size", defaultValue="1024")
+  int changesBufferSize;
+
+  @ConfigProperty(name = "replay_parallelism", defaultValue="1")
+  int replayParallelism;
+
   @Inject
   Map<String, byte[]> cache;
 
   @Inject
   OnUpdate onupdate;
 
-  private Map<TopicPartition, Long> endOffsets = null;
+  /**
+   * Set once at assignment.
+   */
+  private volatile AssignedPartitions assigned = null;
 
   private Map<TopicPartition, Long> lowWaterMarkAtStart = null;
 
   private boolean readinessOkOnResetting = false;
 
+  static final String CHANNEL_CONFIG_PREFIX = "mp.messaging.incoming.topic.";
+
+  /**
+   * Set at assignment if partitions are replayed in parallel, and cleared by the consume loop once it has waited for them.
+   */
+  volatile ParallelReplay replay = null;
+
+  /**
+   * Replay consumers, given a group number, replaceable for tests.
+   */
+  IntFunction<Consumer<String, byte[]>> replayConsumers = this::createReplayConsumer;
+
+  /**
+   * Serializes writes from replay consumers, as the cache and everything derived from it expect one writer at a time.
+   */
+  private final Object replayLock = new Object();
+
+  private volatile String replayFailed = null;
+
   private Set<String> topics = new HashSet<>();
 
   Stage stage = Stage.Created;
@@ -90,34 +188,131 @@ public class ConsumerAtLeastOnce implements KafkaConsumerRebalanceListener, Kafk
       .named("consume-loop")
       .down();
 
-  Map<TopicPartition,Long> currentOffsets = new HashMap<>(1);
+  final OffsetWaiters offsetWaiters = new OffsetWaiters(ForkJoinPool.commonPool());
+
+  final ChangeFeed changes = new ChangeFeed(ForkJoinPool.commonPool());
 
-  private boolean pollHasUpdates = false;
+  /**
+   * Odd while a record is being applied, so that snapshots can tell if offsets match cache state.
+   */
+  private volatile long applying = 0;
+
+  static final int SNAPSHOT_ATTEMPTS = 1000;
+
+  private long lastCheckpoint = System.currentTimeMillis();
 
   private final Counter meterNullKeys;
 
+  private final Counter meterTombstones;
+
+  private final MeterRegistry registry;
+
+  final MemoryAccounting memory = new MemoryAccounting();
+
+  private volatile String memoryBudgetExceeded = null;
+
+  private final Counter meterMemoryRejected;
+
+  /**
+   * By name, set at startup.
+   */
+  volatile Map<String, JsonFieldIndex> jsonIndexes = Collections.emptyMap();
+
+  private final Counter meterIndexUnparseable;
+
+  /**
+   * Set at startup if enabled.
+   */
+  volatile KeyMetadata keyMetadata = null;
+
+  /**
+   * Set at startup if enabled, then written only by the consume loop.
+   */
+  SharedMemoryExport shm = null;
+
   public ConsumerAtLeastOnce(MeterRegistry registry) {
+    this.registry = registry;
     registry.gauge("kkv.stage", this, ConsumerAtLeastOnce::getStageMetric);
+    registry.gauge("kkv.keys", this, ConsumerAtLeastOnce::getKeysMetric);
     this.meterNullKeys = registry.counter("kkv.null.keys");
+    this.meterTombstones = registry.counter("kkv.tombstones");
+    registry.gauge("kkv.compression.ratio", this, ConsumerAtLeastOnce::getCompressionRatioMetric);
+    FunctionTimer.builder("kkv.compression.decode", this,
+        c -> c.getCompressed() == null ? 0 : c.getCompressed().getDecodeCount(),
+        c -> c.getCompressed() == null ? 0 : c.getCompressed().getDecodeNanos(),
+        TimeUnit.NANOSECONDS)
+        .register(registry);
+    registry.gauge("kkv.dedup.saved.bytes", this, ConsumerAtLeastOnce::getDedupSavedBytesMetric);
+    registry.gauge("kkv.memory.budget.bytes", this, c -> c.memoryBudget);
+    registry.gauge("kkv.memory.restored.logical.bytes", memory.getRestoredBytes());
+    this.meterMemoryRejected = registry.counter("kkv.memory.rejected");
+    this.meterIndexUnparseable = registry.counter("kkv.index.unparseable");
+    registry.gauge("kkv.changes.subscribers", this, c -> c.changes.getSubscriberCount());
   }
 
   Integer getStageMetric() {
     return stage.metricValue;
   }
 
+  CompressedValueMap getCompressed() {
+    return DelegatingStore.find(cache, CompressedValueMap.class);
+  }
+
+  Double getCompressionRatioMetric() {
+    CompressedValueMap compressed = getCompressed();
+    return compressed == null ? Double.NaN : compressed.getCompressionRatio();
+  }
+
+  Double getDedupSavedBytesMetric() {
+    DedupValueMap dedup = DelegatingStore.find(cache, DedupValueMap.class);
+    return dedup == null ? Double.NaN : dedup.getSavedBytes();
+  }
+
+  /**
+   * @return Live entries, i.e. keys whose latest record isn't a tombstone
+   */
+  Integer getKeysMetric() {
+    return cache == null ? 0 : cache.size();
+  }
+
   void start(@Observes StartupEvent ev) {
     logger.info("Build meta, if present: branch={}, commit={}, image={}",
         System.getenv("SOURCE_BRANCH"),
         System.getenv("SOURCE_COMMIT"),
         System.getenv("IMAGE_NAME"));
     logger.info("Cache: {}", cache);
+    if (jsonIndexesConfig.isPresent()) {
+      Map<String, JsonFieldIndex> indexes = new LinkedHashMap<>();
+      JsonFieldIndex.parse(jsonIndexesConfig.get()).forEach(index -> indexes.put(index.getName(), index));
+      logger.info("Indexing JSON fields {}", indexes.values());
+      jsonIndexes = Collections.unmodifiableMap(indexes);
+    }
+    if (keyMetadataEnabled) {
+      keyMetadata = new KeyMetadata(cache.size());
+      logger.info("Tracking source record per key");
+    }
+    if (shmPath.isPresent()) {
+      shm = new SharedMemoryExport(Path.of(shmPath.get()), cache.size(), shmDataSize);
+      cache.forEach(shm::put);
+    }
+    if (!cache.isEmpty()) {
+      cache.forEach((key, value) -> memory.onRestored(key, value.length));
+      cache.forEach(this::updateIndexes);
+      logger.info("Cache restored {} entries of {} logical key and value bytes", cache.size(), memory.getTotalBytes());
+    }
   }
 
   public void stop(@Observes ShutdownEvent ev) {
     logger.info("Stopping");
+    ParallelReplay running = replay;
+    if (running != null) running.stop();
+    if (shm != null) shm.close();
   }
 
   public boolean isReady() {
+    if (memoryBudgetExceeded != null || replayFailed != null) {
+      return false;
+    }
     if (readinessOkOnResetting && this.stage == Stage.Resetting) {
       logger.info("Reporting readiness OK at phase Resetting, presumably low==high watermark");
       return true;
@@ -135,20 +330,25 @@ public class ConsumerAtLeastOnce implements KafkaConsumerRebalanceListener, Kafk
     } else {
       health = health.down();
     }
-    return health.withData("stage", stage.toString()).build();
+    health = health.withData("stage", stage.toString());
+    if (memoryBudgetExceeded != null) {
+      health = health.withData("memoryBudgetExceeded", memoryBudgetExceeded);
+    }
+    if (replayFailed != null) {
+      health = health.withData("replayFailed", replayFailed);
+    }
+    return health.build();
   }
 
   /**
    * @return The last offset that targets are _not_ interested in onupdate for
    */
   public long getEndOffset(TopicPartition topicPartition) {
-    if (this.endOffsets == null) {
+    AssignedPartitions partitions = this.assigned;
+    if (partitions == null) {
       throw new IllegalStateException("Waiting for partition assignment");
     }
-    if (!endOffsets.containsKey(topicPartition)) {
-      throw new IllegalStateException("Topic-partition " + topicPartition + " not found in " + endOffsets.keySet());
-    }
-    return endOffsets.get(topicPartition);
+    return partitions.getEndOffset(partitions.slot(topicPartition.topic(), topicPartition.partition()));
   }
 
   public long getLowWaterMarkAtStart(TopicPartition topicPartition) {
@@ -169,93 +369,414 @@ public class ConsumerAtLeastOnce implements KafkaConsumerRebalanceListener, Kafk
    */
   @Override
   public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
-    if (this.endOffsets != null) {
+    if (this.assigned != null) {
       logger.warn("Partition re-assignment ignored, with no check for differences in the set of partitions");
       return;
     }
     this.stage = Stage.Assigning;
-    this.endOffsets = new HashMap<>();
+    AssignedPartitions assigned = new AssignedPartitions(partitions);
     this.lowWaterMarkAtStart = consumer.beginningOffsets(partitions, assignmentsTimeout);
-    for (TopicPartition partition : partitions) {
+    Map<TopicPartition, Long> checkpoints = getCheckpointOffsets();
+    if (!checkpoints.isEmpty()) {
+      Instant checkpointTime = getCheckpointTime();
+      if (checkpointTime == null || checkpointTime.plus(checkpointMaxAge).isBefore(Instant.now())) {
+        clearRestored("checkpoint from " + checkpointTime + " is older than cache_checkpoint_max_age " + checkpointMaxAge
+            + ", so the log cleaner may have removed tombstones");
+        checkpoints = Collections.emptyMap();
+      }
+    }
+    for (int slot = 0; slot < assigned.size(); slot++) {
+      TopicPartition partition = assigned.getPartition(slot);
+      long position = consumer.position(partition, assignmentsTimeout);
+      assigned.setEndOffset(slot, position);
+      Long checkpointed = checkpoints.get(partition);
+      if (checkpointed == null) continue;
+      if (checkpointed + 1 < getLowWaterMarkAtStart(partition)) {
+        clearRestored("checkpoint " + checkpointed + " for " + partition + " is older than low water mark "
+            + getLowWaterMarkAtStart(partition) + ", so deletes may have been compacted away");
+        checkpoints = Collections.emptyMap();
+      } else if (checkpointed + 1 > position) {
+        clearRestored("checkpoint " + checkpointed + " for " + partition + " is beyond assigned offset " + position
+            + "; was the topic recreated?");
+        checkpoints = Collections.emptyMap();
+      }
+    }
+    Map<TopicPartition, Long> seeks = new LinkedHashMap<>();
+    for (int slot = 0; slot < assigned.size(); slot++) {
+      TopicPartition partition = assigned.getPartition(slot);
       topics.add(partition.topic());
+      registry.gauge("kkv.memory.logical.bytes",
+          Tags.of("topic", partition.topic(), "partition", Integer.toString(partition.partition())),
+          memory.getPartitionBytes(partition));
       long startOffset = getLowWaterMarkAtStart(partition);
-      long position = consumer.position(partition, assignmentsTimeout);
-      this.endOffsets.put(partition, position);
+      long position = assigned.getEndOffset(slot);
       if (position == 0) {
         logger.info("Got assigned offset {} for {}; topic is empty or someone wants onupdate for existing messages", position, partition);
         this.stage = Stage.Polling;
         continue;
       }
+      Long checkpointed = checkpoints.get(partition);
+      if (checkpointed != null && checkpointed + 1 > startOffset) {
+        long resumeOffset = checkpointed + 1;
+        // The cache already has these records, and the next checkpoint must not lose track of the partition
+        assigned.setCurrentOffset(slot, resumeOffset - 1);
+        if (resumeOffset == position) {
+          logger.info("Got assigned offset {} for {}; checkpoint is up to date", position, partition);
+          this.stage = Stage.Polling;
+          continue;
+        }
+        this.stage = Stage.Resetting;
+        logger.info("Got assigned offset {} for {}; seeking to checkpoint {} + 1", position, partition, checkpointed);
+        seeks.put(partition, resumeOffset);
+        continue;
+      }
       this.stage = Stage.Resetting;
       logger.info("Got assigned offset {} for {}; seeking to low water mark {}", position, partition, startOffset);
       if (startOffset > 0) this.readinessOkOnResetting = true;
-      consumer.seek(partition, startOffset);
+      seeks.put(partition, startOffset);
+    }
+    offsetWaiters.assign(assigned);
+    this.assigned = assigned;
+    if (replayParallelism > 1 && !seeks.isEmpty()) {
+      startReplay(assigned, seeks);
+    } else {
+      seeks.forEach(consumer::seek);
     }
     onupdate.pollStart(topics);
+    synchronized (replayLock) {
+      if (shm != null) shm.setReady(isReady());
+    }
   }
 
+  /**
+   * Drops every entry restored from disk, when some partition can't resume from its checkpoint.
+   * The store doesn't know which partition a key came from, so all partitions are then replayed from their low water marks.
+   */
+  void clearRestored(String reason) {
+    if (cache.isEmpty()) return;
+    logger.warn("Clearing {} entries restored from disk, because {}", cache.size(), reason);
+    for (String key : new ArrayList<>(cache.keySet())) {
+      memory.onRestoredCleared(key, removeForLength(key));
+      updateIndexes(key, null);
+      if (keyMetadata != null) keyMetadata.remove(key);
+      if (shm != null) shm.remove(key);
+    }
+  }
+
+  /**
+   * Applies one poll's records in order, then dispatches onupdate for them before the next poll.
+   */
   @Incoming("topic")
-  public void consume(ConsumerRecord<String, byte[]> record) {
-    // If we find a way to consume the entire batch we wouln't need the KafkaPollListener hack
-    // or the pollHasUpdates instance state
-    //for (ConsumerRecord<String, byte[]> record : records)  {
-      try {
-        UpdateRecord update = new UpdateRecord(record.topic(), record.partition(), record.offset(), record.key());
-        toStats(update);
-        if (update.getKey() != null) {
-          cache.put(record.key(), record.value());
-        }
-        long start = getEndOffset(update.getTopicPartition());
-        if (record.offset() >= start) {
-          if (update.getKey() != null) {
-            if (logger.isTraceEnabled()) logger.trace("onupdate {}", record.offset());
-            onupdate.handle(update);
-            pollHasUpdates = true;
-          } else {
-            if (logger.isTraceEnabled()) logger.debug("onNullKey {}", record.offset());
-            onNullKey(update);
+  public void consume(ConsumerRecords<String, byte[]> records) {
+    awaitReplay();
+    final AssignedPartitions partitions = assigned;
+    boolean pollHasUpdates = false;
+    for (ConsumerRecord<String, byte[]> record : records) {
+      pollHasUpdates |= apply(partitions, record);
+    }
+    pollEnd(records.count(), pollHasUpdates);
+  }
+
+  /**
+   * Allocates nothing of its own unless the record is dispatched to onupdate,
+   * so that replay produces no garbage per record beyond what the store needs.
+   *
+   * @return true if the record was passed on to onupdate
+   */
+  boolean apply(AssignedPartitions partitions, ConsumerRecord<String, byte[]> record) {
+    try {
+      if (partitions == null) {
+        throw new IllegalStateException("Waiting for partition assignment");
+      }
+      final int slot = partitions.slot(record.topic(), record.partition());
+      final TopicPartition partition = partitions.getPartition(slot);
+      final String key = record.key();
+      final long offset = record.offset();
+      final boolean applied = store(partitions, slot, record);
+      boolean dispatched = false;
+      final long start = partitions.getEndOffset(slot);
+      if (offset >= start) {
+        if (key != null) {
+          if (applied) {
+            if (logger.isTraceEnabled()) logger.trace("onupdate {}", offset);
+            onupdate.handle(new UpdateRecord(record.topic(), record.partition(), offset, key, record.timestamp()));
+            dispatched = true;
           }
         } else {
-          if (record.offset() == start - 1) {
-            this.stage = Stage.Polling;
-            logger.info("Reached last historical message for {} at offset {}", update.getTopicPartition(), update.getOffset());
-            this.readinessOkOnResetting = false;
-            // TODO do we want to restore this tracking from the old consumer logic?
-            // lastCommittedNotReached.remove(update.getTopicPartition());
-          } else {
-            this.stage = Stage.PollingHistorical;
+          if (logger.isTraceEnabled()) logger.debug("onNullKey {}", offset);
+          onNullKey(partition, offset);
+        }
+      } else {
+        if (offset == start - 1) {
+          this.stage = Stage.Polling;
+          logger.info("Reached last historical message for {} at offset {}", partition, offset);
+          this.readinessOkOnResetting = false;
+          // TODO do we want to restore this tracking from the old consumer logic?
+          // lastCommittedNotReached.remove(partition);
+        } else {
+          this.stage = Stage.PollingHistorical;
+        }
+        if (logger.isTraceEnabled()) logger.trace("Suppressing onupdate for {}-{} because start offset is {}", partition, offset, start);
+      }
+      if (shm != null) shm.setReady(isReady());
+      return dispatched;
+    } catch (RuntimeException e) {
+      logger.error("Single-message processing error at {}", record);
+      throw e;
+    }
+  }
+
+  /**
+   * Applies the record to the cache and everything derived from it, and advances the partition's current offset
+   * unless a record of the partition has been rejected.
+   *
+   * @return false if the record was rejected
+   */
+  private boolean store(AssignedPartitions partitions, int slot, ConsumerRecord<String, byte[]> record) {
+    final String key = record.key();
+    final long offset = record.offset();
+    boolean applied = true;
+    applying = applying + 1;
+    try {
+      if (key != null) {
+        if (record.value() == null) {
+          onTombstone(partitions.getPartition(slot), offset, key);
+        } else {
+          applied = onValue(partitions.getPartition(slot), offset, key, record.timestamp(), record.value());
+        }
+      }
+      if (!applied) {
+        partitions.holdCurrentOffset(slot);
+      }
+      if (!partitions.isCurrentOffsetHeld(slot)) {
+        partitions.setCurrentOffset(slot, offset);
+      }
+    } finally {
+      applying = applying + 1;
+    }
+    if (!partitions.isCurrentOffsetHeld(slot)) {
+      offsetWaiters.onApplied(slot, offset);
+    }
+    return applied;
+  }
+
+  /**
+   * Leaves the live consumer at its assigned position, while replay consumers read up to it.
+   * Stage goes from PollingHistorical to Polling when they're all done, with or without live records.
+   */
+  void startReplay(AssignedPartitions partitions, Map<TopicPartition, Long> startOffsets) {
+    Map<TopicPartition, Long> endOffsets = new HashMap<>();
+    for (TopicPartition partition : startOffsets.keySet()) {
+      endOffsets.put(partition, partitions.getEndOffset(partitions.slot(partition.topic(), partition.partition())));
+    }
+    this.stage = Stage.PollingHistorical;
+    this.readinessOkOnResetting = false;
+    this.replay = new ParallelReplay(startOffsets, endOffsets, replayParallelism, replayConsumers,
+        new ParallelReplay.Sink() {
+          @Override
+          public void accept(ConsumerRecords<String, byte[]> records) {
+            onReplayed(partitions, records);
           }
-          logger.trace("Suppressing onupdate for {} because start offset is {}", update, start);
+          @Override
+          public void onDone(Throwable failure) {
+            onReplayDone(failure);
+          }
+        });
+  }
+
+  /**
+   * Called concurrently by replay consumers, with records below end offsets only.
+   */
+  void onReplayed(AssignedPartitions partitions, ConsumerRecords<String, byte[]> records) {
+    synchronized (replayLock) {
+      for (ConsumerRecord<String, byte[]> record : records) {
+        try {
+          store(partitions, partitions.slot(record.topic(), record.partition()), record);
+        } catch (RuntimeException e) {
+          logger.error("Single-message processing error in replay at {}", record);
+          throw e;
         }
-      } catch (RuntimeException e) {
-        logger.error("Single-message processing error at {}", record);
-        throw e;
       }
-    // }
-    if (KafkaPollListener.getIsPollEndOnce()) {;
-      if (pollHasUpdates) {
-        pollHasUpdates = false;
-        logger.info("Poll end detected. Dispatching onUpdate.");
-        onupdate.pollEndBlockingUntilTargetsAck();
-        onupdate.pollStart(topics);
+      checkpointIfDue();
+    }
+  }
+
+  void onReplayDone(Throwable failure) {
+    synchronized (replayLock) {
+      if (failure != null) {
+        replayFailed = failure.toString();
+        logger.error("Parallel replay failed", failure);
       } else {
-        logger.info("Poll end detected. No updates to dispatch.");
+        this.stage = Stage.Polling;
+        logger.info("Reached last historical message for all replayed partitions");
+      }
+      if (shm != null) shm.setReady(isReady());
+    }
+  }
+
+  /**
+   * Live records are applied after all historical ones, so that no key goes back to an older value.
+   * Blocks like onupdate dispatch does, while reactive messaging buffers and eventually pauses fetching.
+   */
+  void awaitReplay() {
+    ParallelReplay running = replay;
+    if (running == null) return;
+    logger.info("Waiting for parallel replay to reach end offsets before applying live records");
+    running.await();
+    synchronized (replayLock) {
+      replay = null;
+    }
+  }
+
+  /**
+   * Uses the incoming channel's Kafka config, without a consumer group as replay consumers get partitions assigned.
+   */
+  Consumer<String, byte[]> createReplayConsumer(int group) {
+    Config config = ConfigProvider.getConfig();
+    Set<String> names = ConsumerConfig.configNames();
+    Properties props = new Properties();
+    for (String name : config.getPropertyNames()) {
+      if (name.startsWith(CHANNEL_CONFIG_PREFIX) && names.contains(name.substring(CHANNEL_CONFIG_PREFIX.length()))) {
+        config.getOptionalValue(name, String.class)
+            .ifPresent(value -> props.put(name.substring(CHANNEL_CONFIG_PREFIX.length()), value));
       }
     }
+    props.remove(ConsumerConfig.GROUP_ID_CONFIG);
+    props.remove(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG);
+    props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+    props.put(ConsumerConfig.CLIENT_ID_CONFIG, "kkv-replay-" + group);
+    return new KafkaConsumer<>(props, new StringDeserializer(), new ByteArrayDeserializer());
+  }
+
+  void pollEnd(int count, boolean pollHasUpdates) {
+    checkpointIfDue();
+    if (pollHasUpdates) {
+      logger.info("Poll of {} records applied. Dispatching onUpdate.", count);
+      onupdate.pollEndBlockingUntilTargetsAck();
+      onupdate.pollStart(topics);
+    } else {
+      logger.debug("Poll of {} records applied. No updates to dispatch.", count);
+    }
+  }
+
+  Map<TopicPartition, Long> getCheckpointOffsets() {
+    CheckpointStore store = DelegatingStore.find(cache, CheckpointStore.class);
+    if (store != null) {
+      return store.getCheckpointOffsets();
+    }
+    return Collections.emptyMap();
+  }
+
+  Instant getCheckpointTime() {
+    CheckpointStore store = DelegatingStore.find(cache, CheckpointStore.class);
+    return store == null ? null : store.getCheckpointTime();
+  }
+
+  void checkpointIfDue() {
+    CheckpointStore store = DelegatingStore.find(cache, CheckpointStore.class);
+    if (store == null) return;
+    long now = System.currentTimeMillis();
+    if (now - lastCheckpoint < checkpointInterval.toMillis()) return;
+    AssignedPartitions partitions = assigned;
+    if (partitions == null) return;
+    Map<TopicPartition, Long> offsets = partitions.getCurrentOffsets();
+    store.checkpoint(offsets);
+    lastCheckpoint = now;
+    logger.debug("Checkpointed cache at offsets {}", offsets);
+  }
+
+  /**
+   * A null value means delete, and compaction will eventually drop the key from the topic too.
+   */
+  void onTombstone(TopicPartition partition, long offset, String key) {
+    memory.onChange(partition, key, removeForLength(key), ValueLengthStore.ABSENT);
+    updateIndexes(key, null);
+    if (keyMetadata != null) keyMetadata.remove(key);
+    if (shm != null) shm.remove(key);
+    changes.publish(partition, offset, key, null);
+    meterTombstones.increment();
+  }
+
+  /**
+   * Once over budget the cache stays unready, and skips values that would grow it,
+   * rather than risk running out of heap during replay.
+   *
+   * @return false if the value was skipped
+   */
+  boolean onValue(TopicPartition partition, long offset, String key, long timestamp, byte[] value) {
+    if (memoryBudgetExceeded != null
+        && MemoryAccounting.delta(key, getLength(key), value.length) > 0) {
+      meterMemoryRejected.increment();
+      return false;
+    }
+    memory.onChange(partition, key, putForLength(key, value), value.length);
+    updateIndexes(key, value);
+    if (keyMetadata != null) {
+      keyMetadata.put(key, partition, offset, timestamp);
+    }
+    if (shm != null) shm.put(key, value);
+    changes.publish(partition, offset, key, value);
+    if (memoryBudget > 0 && memoryBudgetExceeded == null && memory.getTotalBytes() > memoryBudget) {
+      memoryBudgetExceeded = "Cache holds " + memory.getTotalBytes()
+          + " logical key and value bytes, more than cache_memory_budget " + memoryBudget;
+      logger.error("{} at {}-{}, values that grow the cache will be skipped and hold their partition's offset",
+          memoryBudgetExceeded, partition, offset);
+    }
+    return true;
+  }
+
+  /**
+   * Lengths come from the store if it can tell them without copying or decoding the previous value.
+   */
+  int putForLength(String key, byte[] value) {
+    if (cache instanceof ValueLengthStore) {
+      return ((ValueLengthStore) cache).putForLength(key, value);
+    }
+    return MemoryAccounting.length(cache.put(key, value));
+  }
+
+  int removeForLength(String key) {
+    if (cache instanceof ValueLengthStore) {
+      return ((ValueLengthStore) cache).removeForLength(key);
+    }
+    return MemoryAccounting.length(cache.remove(key));
   }
 
-  private void toStats(UpdateRecord update) {
-    currentOffsets.put(update.getTopicPartition(), update.getOffset());
+  int getLength(String key) {
+    if (cache instanceof ValueLengthStore) {
+      return ((ValueLengthStore) cache).getLength(key);
+    }
+    return MemoryAccounting.length(cache.get(key));
+  }
+
+  /**
+   * Parses the value once for all indexes. A value that isn't JSON drops the key from them.
+   */
+  void updateIndexes(String key, byte[] value) {
+    if (jsonIndexes.isEmpty()) return;
+    JsonStructure json = null;
+    if (value != null) {
+      json = JsonFieldIndex.read(value);
+      if (json == null) meterIndexUnparseable.increment();
+    }
+    for (JsonFieldIndex index : jsonIndexes.values()) {
+      index.update(key, json);
+    }
   }
 
-  void onNullKey(UpdateRecord update) {
+  void onNullKey(TopicPartition partition, long offset) {
     meterNullKeys.increment();
-    logger.error("Ignoring null key at {}", update);
+    logger.error("Ignoring null key at {}-{}", partition, offset);
+  }
+
+  Long getCurrentOffset(TopicPartition partition) {
+    return getCurrentOffset(partition.topic(), partition.partition());
   }
 
   @Override
   public Long getCurrentOffset(String topicName, int partition) {
-    return currentOffsets.get(new TopicPartition(topicName, partition));
+    AssignedPartitions partitions = assigned;
+    return partitions == null ? null : partitions.getCurrentOffset(topicName, partition);
   }
 
   @Override
@@ -263,14 +784,111 @@ public class ConsumerAtLeastOnce implements KafkaConsumerRebalanceListener, Kafk
     return cache.get(key);
   }
 
+  @Override
+  public byte[] getValueGzip(String key) {
+    CompressedValueMap compressed = getCompressed();
+    return compressed == null ? null : compressed.getGzip(key);
+  }
+
   @Override
   public Iterator<String> getKeys() {
     return cache.keySet().iterator();
   }
 
+  @Override
+  public int getSize() {
+    return cache.size();
+  }
+
+  @Override
+  public void writeKeys(OutputStream out, byte separator) throws IOException {
+    Utf8KeyStore utf8 = DelegatingStore.find(cache, Utf8KeyStore.class);
+    if (utf8 != null) {
+      utf8.writeKeys(out, separator);
+      return;
+    }
+    Iterator<String> keys = getKeys();
+    while (keys.hasNext()) {
+      out.write(keys.next().getBytes(StandardCharsets.UTF_8));
+      out.write(separator);
+    }
+  }
+
+  /**
+   * Stored buffers hold compressed values if there's compression on top, so then entries are read through it.
+   */
+  @Override
+  public void writeEntries(WritableByteChannel out) throws IOException {
+    BufferEntryStore buffers = DelegatingStore.find(cache, BufferEntryStore.class);
+    if (buffers != null && getCompressed() == null) {
+      buffers.writeEntries(out);
+      return;
+    }
+    BufferEntryStore.writeEntries(cache.entrySet().iterator(), out);
+  }
+
+  @Override
+  public CompletionStage<Boolean> awaitOffsets(Map<TopicPartition, Long> minOffsets) {
+    return offsetWaiters.await(minOffsets, minOffsetsTimeout);
+  }
+
+  @Override
+  public void subscribe(ChangeFeed.Listener listener) {
+    changes.subscribe(listener, changesBufferSize);
+  }
+
+  @Override
+  public KeyMetadata.Source getSource(String key) {
+    KeyMetadata metadata = keyMetadata;
+    return metadata == null ? null : metadata.get(key);
+  }
+
+  @Override
+  public NavigableSet<String> getKeyRange(String from, String to) {
+    SortedKeyMap sorted = DelegatingStore.find(cache, SortedKeyMap.class);
+    return sorted == null ? null : sorted.range(from, to);
+  }
+
+  @Override
+  public NavigableSet<String> getKeysWithPrefix(String prefix) {
+    SortedKeyMap sorted = DelegatingStore.find(cache, SortedKeyMap.class);
+    return sorted == null ? null : sorted.prefix(prefix);
+  }
+
+  @Override
+  public Set<String> getIndexedKeys(String index, String field) {
+    JsonFieldIndex json = jsonIndexes.get(index);
+    return json == null ? null : json.getKeys(field);
+  }
+
   @Override
   public Iterator<byte[]> getValues() {
     return cache.values().iterator();
   }
 
+  /**
+   * Retries until it has pinned the store and copied offsets with no record applied in between,
+   * which with a store that pins in nanoseconds only takes more than one attempt under heavy ingest.
+   */
+  @Override
+  public CacheSnapshot getSnapshot() {
+    for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+      final long before = applying;
+      if ((before & 1) == 0) {
+        Snapshot snapshot = SnapshotStore.snapshot(cache);
+        if (snapshot == null) {
+          return null;
+        }
+        AssignedPartitions partitions = assigned;
+        Map<TopicPartition, Long> offsets = partitions == null ? new HashMap<>() : partitions.getCurrentOffsets();
+        if (applying == before) {
+          return new CacheSnapshot(snapshot, Collections.unmodifiableMap(offsets));
+        }
+        snapshot.close();
+      }
+      Thread.onSpinWait();
+    }
+    throw new IllegalStateException("Failed to pin a snapshot between two records in " + SNAPSHOT_ATTEMPTS + " attempts");
+  }
+
 }
@@ -14,7 +14,19 @@
 
 package se.yolean.kafka.keyvalue;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+import org.apache.kafka.common.TopicPartition;
+
+import se.yolean.kafka.keyvalue.store.BufferEntryStore;
+import se.yolean.kafka.keyvalue.store.KeyMetadata;
 
 /**
  * The read-access contract for external API.
@@ -32,6 +44,18 @@ public interface KafkaCache {
 
   byte[] getValue(String key);
 
+  /**
+   * @param key To look up
+   * @return The value as a gzip member, if it's stored compressed, or null if not stored compressed or not found
+   */
+  byte[] getValueGzip(String key);
+
+  /**
+   * @param key To look up
+   * @return The record that the key's current value came from, or null if not tracked or not found
+   */
+  KeyMetadata.Source getSource(String key);
+
   /**
    * @param topicName
    * @param partition
@@ -39,8 +63,65 @@ public interface KafkaCache {
    */
   Long getCurrentOffset(String topicName, int partition);
 
+  /**
+   * Lets requests wait for records they know have been produced, without holding a thread.
+   *
+   * @param minOffsets Per topic-partition the offset of a record that the cache should include
+   * @return Completes with true when the cache includes all, or false on timeout
+   */
+  CompletionStage<Boolean> awaitOffsets(Map<TopicPartition, Long> minOffsets);
+
   Iterator<String> getKeys();
 
+  /**
+   * @return Number of keys in this instance
+   */
+  int getSize();
+
+  /**
+   * Streams keys UTF-8 encoded, straight from stored bytes if the cache type keeps keys that way.
+   *
+   * @param out To write every key to, each followed by the separator
+   */
+  void writeKeys(OutputStream out, byte separator) throws IOException;
+
+  /**
+   * Streams entries in the {@link BufferEntryStore} framing,
+   * straight from stored buffers if the cache type keeps values that way.
+   */
+  void writeEntries(WritableByteChannel out) throws IOException;
+
+  /**
+   * @param from Inclusive, or null for the first key
+   * @param to Exclusive, or null for past the last key
+   * @return Keys in order, live, or null if the cache has no sorted key index
+   */
+  NavigableSet<String> getKeyRange(String from, String to);
+
+  /**
+   * @return Keys that start with the prefix in order, live, or null if the cache has no sorted key index
+   */
+  NavigableSet<String> getKeysWithPrefix(String prefix);
+
+  /**
+   * @param index Name of a JSON field index
+   * @param field The field value to look up
+   * @return Keys whose value currently has the field value, live, or null if there's no such index
+   */
+  Set<String> getIndexedKeys(String index, String field);
+
   Iterator<byte[]> getValues();
 
+  /**
+   * @param listener To get every change that the cache applies from now on, until it's closed
+   */
+  void subscribe(ChangeFeed.Listener listener);
+
+  /**
+   * Pins the cache between two records, without blocking consumption, for bulk reads that must be consistent.
+   *
+   * @return A snapshot to be closed after use, or null if the cache type doesn't support snapshots
+   */
+  CacheSnapshot getSnapshot();
+
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Requests that wait for the cache to include given offsets, without a thread each.
+ *
+ * The consume loop calls {@link #onApplied(int, long)} per record, which costs a volatile read
+ * until some waiter's offset in that partition could have been reached, and then completes every satisfied waiter
+ * in a single task on the executor, never on the consume loop's thread.
+ *
+ * Waiters publish thresholds before they check current offsets, and the consume loop stores current offsets
+ * before it reads thresholds, both volatile, so a record can't slip between a waiter's check and its registration.
+ */
+public class OffsetWaiters {
+
+  private static final class Waiter {
+
+    final CompletableFuture<Boolean> reached = new CompletableFuture<>();
+
+    final List<Pending> pending = new ArrayList<>();
+
+    int remaining = 0;
+
+  }
+
+  private static final class Pending implements Comparable<Pending> {
+
+    final TopicPartition partition;
+    final long offset;
+    final Waiter waiter;
+
+    Pending(TopicPartition partition, long offset, Waiter waiter) {
+      this.partition = partition;
+      this.offset = offset;
+      this.waiter = waiter;
+    }
+
+    @Override
+    public int compareTo(Pending o) {
+      return Long.compare(offset, o.offset);
+    }
+
+  }
+
+  private final Executor executor;
+
+  private final Map<TopicPartition, PriorityQueue<Pending>> pending = new HashMap<>();
+
+  /**
+   * Set once at assignment.
+   */
+  private volatile AssignedPartitions partitions = null;
+
+  /**
+   * Per slot the lowest offset waited for, so that records below it needn't take the lock.
+   */
+  private volatile AtomicLongArray thresholds = new AtomicLongArray(0);
+
+  private volatile int count = 0;
+
+  public OffsetWaiters(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Before the consume loop applies records, so that {@link #onApplied(int, long)} gets slots of these partitions.
+   */
+  public void assign(AssignedPartitions assigned) {
+    synchronized (this) {
+      this.thresholds = new AtomicLongArray(assigned.size());
+      this.partitions = assigned;
+      updateThresholds();
+    }
+    wake();
+  }
+
+  private boolean isReached(TopicPartition partition, long offset) {
+    AssignedPartitions assigned = partitions;
+    if (assigned == null) return false;
+    Long at = assigned.getCurrentOffset(partition.topic(), partition.partition());
+    return at != null && at >= offset;
+  }
+
+  /**
+   * Sets each slot once, so that no slot with waiters passes through a higher threshold.
+   */
+  private void updateThresholds() {
+    AssignedPartitions assigned = partitions;
+    if (assigned == null) return;
+    long[] lowest = new long[assigned.size()];
+    Arrays.fill(lowest, Long.MAX_VALUE);
+    for (Map.Entry<TopicPartition, PriorityQueue<Pending>> queue : pending.entrySet()) {
+      int slot = assigned.find(queue.getKey().topic(), queue.getKey().partition());
+      if (slot != -1) lowest[slot] = queue.getValue().peek().offset;
+    }
+    for (int slot = 0; slot < lowest.length; slot++) {
+      thresholds.set(slot, lowest[slot]);
+    }
+  }
+
+  /**
+   * @param minOffsets Per partition the offset that the cache should include
+   * @return Completes with true once all are included, or false after the timeout
+   */
+  public CompletableFuture<Boolean> await(Map<TopicPartition, Long> minOffsets, Duration timeout) {
+    Waiter waiter = new Waiter();
+    synchronized (this) {
+      minOffsets.forEach((partition, offset) -> {
+        if (!isReached(partition, offset)) {
+          waiter.pending.add(new Pending(partition, offset, waiter));
+        }
+      });
+      if (waiter.pending.isEmpty()) {
+        waiter.reached.complete(true);
+        return waiter.reached;
+      }
+      waiter.remaining = waiter.pending.size();
+      for (Pending p : waiter.pending) {
+        pending.computeIfAbsent(p.partition, tp -> new PriorityQueue<>()).add(p);
+      }
+      count++;
+      updateThresholds();
+    }
+    // A record applied between the checks above and the new thresholds didn't wake anyone
+    wake();
+    CompletableFuture.delayedExecutor(timeout.toMillis(), TimeUnit.MILLISECONDS, executor)
+        .execute(() -> timeout(waiter));
+    return waiter.reached;
+  }
+
+  private void timeout(Waiter waiter) {
+    synchronized (this) {
+      if (waiter.remaining == 0) return;
+      waiter.remaining = 0;
+      for (Pending p : waiter.pending) {
+        PriorityQueue<Pending> queue = pending.get(p.partition);
+        if (queue != null && queue.remove(p) && queue.isEmpty()) {
+          pending.remove(p.partition);
+        }
+      }
+      count--;
+      updateThresholds();
+    }
+    waiter.reached.complete(false);
+  }
+
+  /**
+   * @param slot The record's partition in the assigned partitions
+   * @param offset Of the record that the consume loop just applied, after storing it as the current offset
+   */
+  public void onApplied(int slot, long offset) {
+    if (offset < thresholds.get(slot)) return;
+    wake();
+  }
+
+  /**
+   * Completes all waiters whose offsets the cache now includes.
+   */
+  public void wake() {
+    if (count == 0) return;
+    List<Waiter> reached = new ArrayList<>();
+    synchronized (this) {
+      Iterator<Map.Entry<TopicPartition, PriorityQueue<Pending>>> queues = pending.entrySet().iterator();
+      while (queues.hasNext()) {
+        Map.Entry<TopicPartition, PriorityQueue<Pending>> partition = queues.next();
+        PriorityQueue<Pending> queue = partition.getValue();
+        while (!queue.isEmpty() && isReached(partition.getKey(), queue.peek().offset)) {
+          Waiter waiter = queue.poll().waiter;
+          if (--waiter.remaining == 0) {
+            reached.add(waiter);
+            count--;
+          }
+        }
+        if (queue.isEmpty()) {
+          queues.remove();
+        }
+      }
+      updateThresholds();
+    }
+    if (!reached.isEmpty()) {
+      executor.execute(() -> reached.forEach(waiter -> waiter.reached.complete(true)));
+    }
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+}
@@ -0,0 +1,217 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads partitions from start offsets up to, but not including, end offsets,
+ * with one consumer per group of partitions, each on its own thread.
+ *
+ * Records of a partition reach the sink in order, from one thread, but partitions in different groups
+ * reach it concurrently, so the sink has to accept concurrent calls.
+ * Records at or beyond a partition's end offset are left to the consumer that continues from there.
+ */
+public class ParallelReplay {
+
+  public interface Sink {
+
+    void accept(ConsumerRecords<String, byte[]> records);
+
+    /**
+     * Called once, before {@link ParallelReplay#await()} returns.
+     *
+     * @param failure null if all partitions reached their end offsets
+     */
+    default void onDone(Throwable failure) {
+    }
+
+  }
+
+  static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+  private static final Logger logger = LoggerFactory.getLogger(ParallelReplay.class);
+
+  private final Map<TopicPartition, Long> startOffsets;
+
+  private final Map<TopicPartition, Long> endOffsets;
+
+  private final List<List<TopicPartition>> groups;
+
+  private final CompletableFuture<Void> done;
+
+  private volatile boolean stopped = false;
+
+  /**
+   * Starts right away.
+   *
+   * @param startOffsets Per partition, the first offset to read
+   * @param endOffsets Per partition, the first offset not to read
+   * @param parallelism The maximum number of consumers
+   * @param consumers Creates a consumer, given the group number, without a consumer group as partitions are assigned
+   */
+  public ParallelReplay(Map<TopicPartition, Long> startOffsets, Map<TopicPartition, Long> endOffsets,
+      int parallelism, IntFunction<Consumer<String, byte[]>> consumers, Sink sink) {
+    this.startOffsets = startOffsets;
+    this.endOffsets = endOffsets;
+    this.groups = groups(startOffsets.keySet(), parallelism);
+    logger.info("Replaying {} partitions with {} consumers", startOffsets.size(), groups.size());
+    AtomicInteger threads = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(groups.size(), runnable -> {
+      Thread thread = new Thread(runnable, "kkv-replay-" + threads.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+    List<CompletableFuture<Void>> fetchers = new ArrayList<>(groups.size());
+    for (int i = 0; i < groups.size(); i++) {
+      final int group = i;
+      fetchers.add(CompletableFuture.runAsync(() -> fetch(group, consumers.apply(group), sink), executor)
+          .whenComplete((result, failure) -> {
+            if (failure != null) stopped = true;
+          }));
+    }
+    this.done = CompletableFuture.allOf(fetchers.toArray(new CompletableFuture<?>[0]))
+        .whenComplete((result, failure) -> {
+          executor.shutdown();
+          sink.onDone(failure instanceof CompletionException ? failure.getCause() : failure);
+        });
+  }
+
+  /**
+   * Round robin, so that each group gets about as many partitions.
+   */
+  static List<List<TopicPartition>> groups(Collection<TopicPartition> partitions, int parallelism) {
+    int count = Math.max(1, Math.min(parallelism, partitions.size()));
+    List<List<TopicPartition>> groups = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      groups.add(new ArrayList<>());
+    }
+    int i = 0;
+    for (TopicPartition partition : partitions) {
+      groups.get(i++ % count).add(partition);
+    }
+    return groups;
+  }
+
+  List<List<TopicPartition>> getGroups() {
+    return groups;
+  }
+
+  private void fetch(int group, Consumer<String, byte[]> consumer, Sink sink) {
+    try (consumer) {
+      List<TopicPartition> partitions = groups.get(group);
+      consumer.assign(partitions);
+      Set<TopicPartition> remaining = new HashSet<>(partitions);
+      for (TopicPartition partition : partitions) {
+        consumer.seek(partition, startOffsets.get(partition));
+      }
+      long records = 0;
+      while (!remaining.isEmpty()) {
+        if (stopped) {
+          logger.info("Replay stopped in group {} with {} partitions remaining", group, remaining.size());
+          return;
+        }
+        ConsumerRecords<String, byte[]> polled = consumer.poll(POLL_TIMEOUT);
+        ConsumerRecords<String, byte[]> historical = belowEndOffsets(polled, endOffsets);
+        if (!historical.isEmpty()) {
+          sink.accept(historical);
+          records += historical.count();
+        }
+        Iterator<TopicPartition> it = remaining.iterator();
+        while (it.hasNext()) {
+          TopicPartition partition = it.next();
+          if (consumer.position(partition) >= endOffsets.get(partition)) {
+            consumer.pause(List.of(partition));
+            it.remove();
+            logger.info("Replay reached end offset {} for {}", endOffsets.get(partition), partition);
+          }
+        }
+      }
+      logger.info("Replay group {} done with {} records", group, records);
+    }
+  }
+
+  /**
+   * @return The same instance unless some partition has records at or beyond its end offset
+   */
+  static ConsumerRecords<String, byte[]> belowEndOffsets(ConsumerRecords<String, byte[]> records,
+      Map<TopicPartition, Long> endOffsets) {
+    Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> filtered = null;
+    for (TopicPartition partition : records.partitions()) {
+      List<ConsumerRecord<String, byte[]>> list = records.records(partition);
+      long end = endOffsets.get(partition);
+      if (list.get(list.size() - 1).offset() < end) continue;
+      if (filtered == null) {
+        filtered = new HashMap<>();
+        for (TopicPartition p : records.partitions()) {
+          filtered.put(p, records.records(p));
+        }
+      }
+      int below = 0;
+      while (below < list.size() && list.get(below).offset() < end) below++;
+      if (below == 0) {
+        filtered.remove(partition);
+      } else {
+        filtered.put(partition, list.subList(0, below));
+      }
+    }
+    return filtered == null ? records : new ConsumerRecords<>(filtered);
+  }
+
+  /**
+   * Blocks until all partitions have reached their end offsets.
+   *
+   * @throws RuntimeException If some consumer or the sink failed
+   */
+  public void await() {
+    try {
+      done.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Makes consumers stop at their next poll.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+}
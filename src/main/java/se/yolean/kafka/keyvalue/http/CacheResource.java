@@ -14,35 +14,95 @@
 
 package se.yolean.kafka.keyvalue.http;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
 import javax.json.stream.JsonGenerator;
 import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 
+import org.apache.kafka.common.TopicPartition;
 import org.eclipse.microprofile.health.HealthCheck;
 import org.eclipse.microprofile.health.HealthCheckResponse;
 
 import io.smallrye.common.annotation.Identifier;
+import io.vertx.ext.web.RoutingContext;
+import se.yolean.kafka.keyvalue.CacheSnapshot;
+import se.yolean.kafka.keyvalue.ChangeFeed;
 import se.yolean.kafka.keyvalue.KafkaCache;
+import se.yolean.kafka.keyvalue.store.BufferEntryStore;
+import se.yolean.kafka.keyvalue.store.KeyMetadata;
+import se.yolean.kafka.keyvalue.onupdate.UpdatesBodyPerTopic;
 
 @Path("/cache/v1")
 public class CacheResource implements HealthCheck {
 
+  /**
+   * Set on bulk responses that were streamed from a snapshot, to the offsets that the snapshot includes.
+   */
+  public static final String HEADER_SNAPSHOT_OFFSETS = UpdatesBodyPerTopic.HEADER_PREFIX + "snapshot-offsets";
+
+  /**
+   * Set on value responses to the offset of the record that the value came from.
+   */
+  public static final String HEADER_OFFSET = UpdatesBodyPerTopic.HEADER_PREFIX + "offset";
+
+  /**
+   * Makes value and bulk requests wait until the cache includes these offsets, in the same format as snapshot offsets.
+   */
+  public static final String HEADER_MIN_OFFSETS = UpdatesBodyPerTopic.HEADER_PREFIX + "min-offsets";
+
+  public static final String EVENT_CHANGE = "change";
+
+  public static final String EVENT_OVERFLOW = "overflow";
+
+  public static final String ENTRIES_DEFAULT_LIMIT = "1000";
+
   @Inject // Note that this can be null if cache is still in it's startup event handler
   @Identifier("kkv")
   KafkaCache cache = null;
@@ -86,12 +146,180 @@ public class CacheResource implements HealthCheck {
     return value;
   }
 
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] params = coding.split(";");
+      if (!"gzip".equalsIgnoreCase(params[0].trim())) continue;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  static String getEntityTagValue(KeyMetadata.Source source) {
+    TopicPartition partition = source.getTopicPartition();
+    return partition.topic() + '-' + partition.partition() + '-' + source.getOffset();
+  }
+
+  /**
+   * Weak, because the same record is served both gzipped and not.
+   */
+  static EntityTag getEntityTag(KeyMetadata.Source source) {
+    return new EntityTag(getEntityTagValue(source), true);
+  }
+
+  static Date getLastModified(KeyMetadata.Source source) {
+    return source.getTimestamp() < 0 ? null : new Date(source.getTimestamp());
+  }
+
+  static Response.ResponseBuilder withSource(Response.ResponseBuilder response, KeyMetadata.Source source) {
+    if (source == null) {
+      return response;
+    }
+    Date lastModified = getLastModified(source);
+    if (lastModified != null) {
+      response.lastModified(lastModified);
+    }
+    return response.tag(getEntityTag(source)).header(HEADER_OFFSET, source.getOffset());
+  }
+
+  /**
+   * With cache_key_metadata responses carry ETag, Last-Modified and {@value #HEADER_OFFSET},
+   * and conditional requests for values that haven't changed get 304 without a value lookup.
+   */
   @GET
   @Path("/raw/{key}")
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
-  public byte[] valueByKey(@PathParam("key") final String key, @Context UriInfo uriInfo) {
+  public CompletionStage<Response> valueByKey(@PathParam("key") final String key, @Context UriInfo uriInfo,
+      @Context Request request, @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+      @HeaderParam(HEADER_MIN_OFFSETS) String minOffsets) {
+    return afterMinOffsets(minOffsets, () -> valueByKeyNow(key, request, acceptEncoding));
+  }
+
+  Response valueByKeyNow(String key, Request request, String acceptEncoding) {
+    requireUpToDateCache();
+    KeyMetadata.Source source = key == null ? null : cache.getSource(key);
+    if (source != null && request != null) {
+      Date lastModified = getLastModified(source);
+      Response.ResponseBuilder notModified = lastModified == null
+          ? request.evaluatePreconditions(getEntityTag(source))
+          : request.evaluatePreconditions(lastModified, getEntityTag(source));
+      if (notModified != null) {
+        return withSource(notModified, source).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+      }
+    }
+    if (acceptsGzip(acceptEncoding) && key != null) {
+      byte[] gzip = cache.getValueGzip(key);
+      if (gzip != null) {
+        return withSource(Response.ok(gzip), source)
+            .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+            .build();
+      }
+    }
+    return withSource(Response.ok(getCacheValue(key)), source)
+        .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+  }
+
+  /**
+   * @param body A JSON array of strings, or with any other content type one key per line
+   * @return Distinct keys in request order
+   */
+  static Collection<String> parseKeys(String body, String contentType) throws BadRequestException {
+    Set<String> keys = new LinkedHashSet<>();
+    if (contentType != null && MediaType.valueOf(contentType).isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+      try (JsonReader reader = Json.createReader(new StringReader(body))) {
+        reader.readArray().forEach(key -> keys.add(((JsonString) key).getString()));
+      } catch (JsonException | ClassCastException e) {
+        throw new BadRequestException("Expected a JSON array of keys");
+      }
+    } else {
+      for (String key : body.split("\n")) {
+        if (!key.isEmpty()) keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Values for many keys in one request, as a JSON object with the keys in request order
+   * and values as strings, or null for keys that aren't found.
+   */
+  @POST
+  @Path("/raw")
+  @Consumes({ MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN })
+  @Produces(MediaType.APPLICATION_JSON)
+  public CompletionStage<Response> valuesByKeysJson(String body,
+      @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+      @HeaderParam(HEADER_MIN_OFFSETS) String minOffsets) {
+    return afterMinOffsets(minOffsets, () -> valuesByKeysJsonNow(parseKeys(body, contentType)));
+  }
+
+  Response valuesByKeysJsonNow(Collection<String> keys) {
+    requireUpToDateCache();
+
+    StreamingOutput stream = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException, WebApplicationException {
+        JsonGenerator json = Json.createGenerator(out);
+        json.writeStartObject();
+        for (String key : keys) {
+          byte[] value = cache.getValue(key);
+          if (value == null) {
+            json.writeNull(key);
+          } else {
+            json.write(key, new String(value, StandardCharsets.UTF_8));
+          }
+        }
+        json.writeEnd();
+        json.close();
+      }
+    };
+    return Response.ok(stream).build();
+  }
+
+  /**
+   * Values for many keys in one request, binary, in request order.
+   * Each value is preceded by its length as a 32-bit big-endian integer, which is -1 for keys that aren't found.
+   */
+  @POST
+  @Path("/raw")
+  @Consumes({ MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN })
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  public CompletionStage<Response> valuesByKeys(String body,
+      @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+      @HeaderParam(HEADER_MIN_OFFSETS) String minOffsets) {
+    return afterMinOffsets(minOffsets, () -> valuesByKeysNow(parseKeys(body, contentType)));
+  }
+
+  Response valuesByKeysNow(Collection<String> keys) {
     requireUpToDateCache();
-    return getCacheValue(key);
+
+    StreamingOutput stream = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException, WebApplicationException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        for (String key : keys) {
+          byte[] value = cache.getValue(key);
+          if (value == null) {
+            data.writeInt(-1);
+          } else {
+            data.writeInt(value.length);
+            data.write(value);
+          }
+        }
+        data.flush();
+      }
+    };
+    return Response.ok(stream).build();
   }
 
   @GET
@@ -110,23 +338,127 @@ public class CacheResource implements HealthCheck {
     return cache.getCurrentOffset(topic, partition);
   }
 
+  /**
+   * @return JSON with topic names as keys and objects with partition:offset as values
+   */
+  static String formatOffsets(Map<TopicPartition, Long> offsets) {
+    Map<String, JsonObjectBuilder> topics = new HashMap<>();
+    offsets.forEach((tp, offset) -> topics.computeIfAbsent(tp.topic(), t -> Json.createObjectBuilder())
+        .add(Integer.toString(tp.partition()), offset));
+    JsonObjectBuilder json = Json.createObjectBuilder();
+    topics.forEach(json::add);
+    return json.build().toString();
+  }
+
+  static NavigableSet<String> requireSortedKeys(NavigableSet<String> keys) {
+    if (keys == null) {
+      throw new WebApplicationException("Key scans require cache_sorted_keys", Status.NOT_IMPLEMENTED);
+    }
+    return keys;
+  }
+
+  /**
+   * @param json As produced by {@link #formatOffsets(Map)}
+   */
+  static Map<TopicPartition, Long> parseOffsets(String json) throws BadRequestException {
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    try (JsonReader reader = Json.createReader(new StringReader(json))) {
+      reader.readObject().forEach((topic, partitions) -> ((JsonObject) partitions).forEach((partition, offset) ->
+          offsets.put(new TopicPartition(topic, Integer.parseInt(partition)), ((JsonNumber) offset).longValueExact())));
+    } catch (JsonException | ClassCastException | ArithmeticException | NumberFormatException e) {
+      throw new BadRequestException("Expected " + HEADER_MIN_OFFSETS + " as {\"topic\":{\"partition\":offset}}");
+    }
+    return offsets;
+  }
+
+  /**
+   * Responds once the cache includes the offsets, if any, without blocking a thread in the meantime.
+   */
+  CompletionStage<Response> afterMinOffsets(String minOffsets, Supplier<Response> response) {
+    if (minOffsets == null) {
+      return CompletableFuture.completedFuture(response.get());
+    }
+    requireUpToDateCache();
+    return cache.awaitOffsets(parseOffsets(minOffsets)).thenApply(reached -> {
+      if (!reached) {
+        throw new javax.ws.rs.ServiceUnavailableException("Timed out waiting for " + HEADER_MIN_OFFSETS);
+      }
+      return response.get();
+    });
+  }
+
+  interface SnapshotWriter {
+    void write(Iterator<Map.Entry<String, byte[]>> entries, OutputStream out) throws IOException;
+  }
+
+  /**
+   * Streams from the snapshot and closes it when done,
+   * or when the request ends without the entity being written, as on HEAD or if the client disconnected.
+   *
+   * @param routing The request's context, null to only close after writing
+   */
+  static Response streamSnapshot(CacheSnapshot snapshot, RoutingContext routing, SnapshotWriter writer) {
+    if (routing != null) {
+      routing.addEndHandler(ended -> snapshot.close());
+      if (routing.response().ended() || routing.response().closed()) {
+        snapshot.close();
+      }
+    }
+    StreamingOutput stream = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException, WebApplicationException {
+        try {
+          writer.write(snapshot.getEntries(), out);
+        } finally {
+          snapshot.close();
+        }
+      }
+    };
+    return Response.ok(stream).header(HEADER_SNAPSHOT_OFFSETS, formatOffsets(snapshot.getOffsets())).build();
+  }
+
   /**
    * All keys in this instance (none from the partitions not represented here),
    * newline separated.
+   *
+   * @param prefix Optional, to list only keys that start with it, in order
    */
   @GET()
   @Path("/keys")
-  public Response keys() {
+  public CompletionStage<Response> keys(@QueryParam("prefix") String prefix,
+      @HeaderParam(HEADER_MIN_OFFSETS) String minOffsets, @Context RoutingContext routing) {
+    return afterMinOffsets(minOffsets, () -> keysNow(prefix, routing));
+  }
+
+  Response keysNow(String prefix, RoutingContext routing) {
     requireUpToDateCache();
-    Iterator<String> all = cache.getKeys();
+    if (prefix != null) {
+      NavigableSet<String> keys = requireSortedKeys(cache.getKeysWithPrefix(prefix));
+      StreamingOutput stream = new StreamingOutput() {
+        @Override
+        public void write(OutputStream out) throws IOException, WebApplicationException {
+          for (String key : keys) {
+            out.write(key.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+          }
+        }
+      };
+      return Response.ok(stream).build();
+    }
+    CacheSnapshot snapshot = cache.getSnapshot();
+    if (snapshot != null) {
+      return streamSnapshot(snapshot, routing, (entries, out) -> {
+        while (entries.hasNext()) {
+          out.write(entries.next().getKey().getBytes(StandardCharsets.UTF_8));
+          out.write('\n');
+        }
+      });
+    }
 
     StreamingOutput stream = new StreamingOutput() {
       @Override
       public void write(OutputStream out) throws IOException, WebApplicationException {
-        while (all.hasNext()) {
-          out.write(all.next().getBytes());
-          out.write('\n');
-        }
+        cache.writeKeys(out, (byte) '\n');
       }
     };
     return Response.ok(stream).build();
@@ -134,12 +466,47 @@ public class CacheResource implements HealthCheck {
 
   /**
    * All keys in this instance (none from the partitions not represented here).
+   *
+   * @param prefix Optional, to list only keys that start with it, in order
    */
   @GET()
   @Path("/keys")
   @Produces(MediaType.APPLICATION_JSON)
-  public Response keysJson() {
+  public CompletionStage<Response> keysJson(@QueryParam("prefix") String prefix,
+      @HeaderParam(HEADER_MIN_OFFSETS) String minOffsets, @Context RoutingContext routing) {
+    return afterMinOffsets(minOffsets, () -> keysJsonNow(prefix, routing));
+  }
+
+  Response keysJsonNow(String prefix, RoutingContext routing) {
     requireUpToDateCache();
+    if (prefix != null) {
+      NavigableSet<String> keys = requireSortedKeys(cache.getKeysWithPrefix(prefix));
+      StreamingOutput stream = new StreamingOutput() {
+        @Override
+        public void write(OutputStream out) throws IOException, WebApplicationException {
+          JsonGenerator json = Json.createGenerator(out);
+          JsonGenerator list = json.writeStartArray();
+          for (String key : keys) {
+            list.write(key);
+          }
+          list.writeEnd();
+          json.close();
+        }
+      };
+      return Response.ok(stream).build();
+    }
+    CacheSnapshot snapshot = cache.getSnapshot();
+    if (snapshot != null) {
+      return streamSnapshot(snapshot, routing, (entries, out) -> {
+        JsonGenerator json = Json.createGenerator(out);
+        JsonGenerator list = json.writeStartArray();
+        while (entries.hasNext()) {
+          list.write(entries.next().getKey());
+        }
+        list.writeEnd();
+        json.close();
+      });
+    }
     Iterator<String> all = cache.getKeys();
 
     StreamingOutput stream = new StreamingOutput() {
@@ -163,8 +530,22 @@ public class CacheResource implements HealthCheck {
   @GET()
   @Path("/values")
   @Produces(MediaType.TEXT_PLAIN)
-  public Response values() {
+  public CompletionStage<Response> values(@HeaderParam(HEADER_MIN_OFFSETS) String minOffsets,
+      @Context RoutingContext routing) {
+    return afterMinOffsets(minOffsets, () -> valuesNow(routing));
+  }
+
+  Response valuesNow(RoutingContext routing) {
     requireUpToDateCache();
+    CacheSnapshot snapshot = cache.getSnapshot();
+    if (snapshot != null) {
+      return streamSnapshot(snapshot, routing, (entries, out) -> {
+        while (entries.hasNext()) {
+          out.write(entries.next().getValue());
+          out.write('\n');
+        }
+      });
+    }
     Iterator<byte[]> values = cache.getValues();
 
     StreamingOutput stream = new StreamingOutput() {
@@ -179,4 +560,173 @@ public class CacheResource implements HealthCheck {
     return Response.ok(stream).build();
   }
 
+  /**
+   * A page of entries in key order, with values as strings, as {"entries":[{"key":,"value":}],"next":}.
+   * For the next page, repeat the request with next as from, until next is null.
+   *
+   * @param from Inclusive, optional
+   * @param to Exclusive, optional
+   * @param limit Max entries in the page
+   */
+  @GET()
+  @Path("/entries")
+  @Produces(MediaType.APPLICATION_JSON)
+  public CompletionStage<Response> entries(@QueryParam("from") String from, @QueryParam("to") String to,
+      @QueryParam("limit") @DefaultValue(ENTRIES_DEFAULT_LIMIT) int limit,
+      @HeaderParam(HEADER_MIN_OFFSETS) String minOffsets) {
+    return afterMinOffsets(minOffsets, () -> entriesNow(from, to, limit));
+  }
+
+  Response entriesNow(String from, String to, int limit) {
+    requireUpToDateCache();
+    if (limit < 1) {
+      throw new BadRequestException("Limit must be at least 1");
+    }
+    NavigableSet<String> keys = requireSortedKeys(cache.getKeyRange(from, to));
+
+    StreamingOutput stream = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException, WebApplicationException {
+        JsonGenerator json = Json.createGenerator(out);
+        json.writeStartObject();
+        json.writeStartArray("entries");
+        Iterator<String> range = keys.iterator();
+        String next = null;
+        int count = 0;
+        while (range.hasNext()) {
+          String key = range.next();
+          if (count == limit) {
+            next = key;
+            break;
+          }
+          byte[] value = cache.getValue(key);
+          if (value == null) continue; // removed since the iterator saw the key
+          json.writeStartObject()
+              .write("key", key)
+              .write("value", new String(value, StandardCharsets.UTF_8))
+              .writeEnd();
+          count++;
+        }
+        json.writeEnd();
+        if (next == null) {
+          json.writeNull("next");
+        } else {
+          json.write("next", next);
+        }
+        json.writeEnd();
+        json.close();
+      }
+    };
+    return Response.ok(stream).build();
+  }
+
+  /**
+   * All entries in this instance, as int key length, int value length, UTF-8 key and value per entry,
+   * with big endian ints, in no particular order.
+   */
+  @GET()
+  @Path("/entries")
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  public CompletionStage<Response> entriesBinary(@HeaderParam(HEADER_MIN_OFFSETS) String minOffsets,
+      @Context RoutingContext routing) {
+    return afterMinOffsets(minOffsets, () -> entriesBinaryNow(routing));
+  }
+
+  Response entriesBinaryNow(RoutingContext routing) {
+    requireUpToDateCache();
+    CacheSnapshot snapshot = cache.getSnapshot();
+    if (snapshot != null) {
+      return streamSnapshot(snapshot, routing,
+          (entries, out) -> BufferEntryStore.writeEntries(entries, Channels.newChannel(out)));
+    }
+
+    StreamingOutput stream = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException, WebApplicationException {
+        cache.writeEntries(Channels.newChannel(out));
+      }
+    };
+    return Response.ok(stream).build();
+  }
+
+  /**
+   * @return Keys whose value has the field value, as a JSON array
+   */
+  @GET()
+  @Path("/index/{name}/{value}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public CompletionStage<Response> indexedKeys(@PathParam("name") String name, @PathParam("value") String value,
+      @HeaderParam(HEADER_MIN_OFFSETS) String minOffsets) {
+    return afterMinOffsets(minOffsets, () -> indexedKeysNow(name, value));
+  }
+
+  Response indexedKeysNow(String name, String value) {
+    requireUpToDateCache();
+    Set<String> keys = cache.getIndexedKeys(name, value);
+    if (keys == null) {
+      throw new NotFoundException("No such index: " + name);
+    }
+
+    StreamingOutput stream = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException, WebApplicationException {
+        JsonGenerator json = Json.createGenerator(out);
+        JsonGenerator list = json.writeStartArray();
+        for (String key : keys) {
+          list.write(key);
+        }
+        list.writeEnd();
+        json.close();
+      }
+    };
+    return Response.ok(stream).build();
+  }
+
+  static String formatChange(ChangeFeed.Change change, boolean withValue) {
+    JsonObjectBuilder json = Json.createObjectBuilder()
+        .add("key", change.getKey())
+        .add("topic", change.getTopicPartition().topic())
+        .add("partition", change.getTopicPartition().partition())
+        .add("offset", change.getOffset());
+    if (change.getValue() == null) {
+      json.add("deleted", true);
+    } else if (withValue) {
+      json.add("value", new String(change.getValue(), StandardCharsets.UTF_8));
+    }
+    return json.build().toString();
+  }
+
+  /**
+   * Server-sent events named change, one per record that the cache applies from now on,
+   * with data {"key":,"topic":,"partition":,"offset":} and "deleted":true for deletes.
+   * A subscriber that falls changes_buffer_size behind gets an overflow event and is disconnected.
+   *
+   * @param values To include "value" for updates, as a string
+   */
+  @GET()
+  @Path("/changes")
+  @Produces(MediaType.SERVER_SENT_EVENTS)
+  public void changes(@QueryParam("values") boolean values, @Context SseEventSink sink, @Context Sse sse) {
+    requireUpToDateCache();
+    cache.subscribe(new ChangeFeed.Listener() {
+      @Override
+      public CompletionStage<?> onChange(ChangeFeed.Change change) {
+        if (sink.isClosed()) {
+          return CompletableFuture.failedFuture(new IllegalStateException("Subscriber disconnected"));
+        }
+        return sink.send(sse.newEvent(EVENT_CHANGE, formatChange(change, values)));
+      }
+
+      @Override
+      public void onClose(boolean overflow) {
+        if (overflow && !sink.isClosed()) {
+          sink.send(sse.newEvent(EVENT_OVERFLOW, "Fell behind, re-read and subscribe again"))
+              .whenComplete((result, error) -> sink.close());
+        } else {
+          sink.close();
+        }
+      }
+    });
+  }
+
 }
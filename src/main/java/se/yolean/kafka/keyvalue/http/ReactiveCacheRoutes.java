@@ -0,0 +1,209 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.http;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.kafka.common.TopicPartition;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.smallrye.common.annotation.Identifier;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import se.yolean.kafka.keyvalue.ConfigureCache;
+import se.yolean.kafka.keyvalue.KafkaCache;
+import se.yolean.kafka.keyvalue.store.KeyMetadata;
+
+/**
+ * Serves single value lookups of {@link CacheResource} on the event loop, with http_reactive=true.
+ * Misses are plain 404 responses, without exceptions.
+ * Cache types that may read from disk do the lookup on a worker thread instead.
+ * Bulk endpoints and anything else under /cache/v1 are left to {@link CacheResource} on worker threads.
+ */
+@ApplicationScoped
+public class ReactiveCacheRoutes {
+
+  /**
+   * Ahead of the JAX-RS resources.
+   */
+  static final int ROUTE_ORDER = -1;
+
+  static final String PATH_PREFIX = "/cache/v1";
+
+  @ConfigProperty(name = "http_reactive", defaultValue = "false")
+  boolean enabled;
+
+  @ConfigProperty(name = "cache_type", defaultValue = ConfigureCache.CACHE_TYPE_INMEMORY)
+  String cacheType;
+
+  @Inject // Note that this can be null if cache is still in it's startup event handler
+  @Identifier("kkv")
+  KafkaCache cache = null;
+
+  void init(@Observes Router router) {
+    if (!enabled) return;
+    Handler<RoutingContext> serve = isDiskBacked(cacheType) ? this::valueByKeyBlocking : this::valueByKey;
+    router.get(PATH_PREFIX + "/raw/:key").order(ROUTE_ORDER).handler(ctx -> afterMinOffsets(ctx, serve));
+  }
+
+  /**
+   * @return true for cache types where a lookup can wait for disk reads or page faults
+   */
+  static boolean isDiskBacked(String cacheType) {
+    return ConfigureCache.CACHE_TYPE_PERSISTENT.equals(cacheType)
+        || ConfigureCache.CACHE_TYPE_TIERED.equals(cacheType);
+  }
+
+  static void respond(RoutingContext ctx, int status, String message) {
+    ctx.response().setStatusCode(status).putHeader(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN).end(message);
+  }
+
+  /**
+   * @return false after responding 503, like {@link CacheResource#requireUpToDateCache()}
+   */
+  boolean requireUpToDateCache(RoutingContext ctx) {
+    if (cache == null) {
+      respond(ctx, 503, "Denied because cache isn't started yet, check /health for status");
+      return false;
+    }
+    if (!cache.isReady()) {
+      respond(ctx, 503, "Denied because cache is unready, check /health for status");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Continues on the request's context once the cache includes the offsets, if any.
+   */
+  void afterMinOffsets(RoutingContext ctx, Handler<RoutingContext> serve) {
+    String minOffsets = ctx.request().getHeader(CacheResource.HEADER_MIN_OFFSETS);
+    if (minOffsets == null) {
+      serve.handle(ctx);
+      return;
+    }
+    if (!requireUpToDateCache(ctx)) return;
+    Map<TopicPartition, Long> offsets;
+    try {
+      offsets = CacheResource.parseOffsets(minOffsets);
+    } catch (BadRequestException e) {
+      respond(ctx, 400, e.getMessage());
+      return;
+    }
+    Context context = Vertx.currentContext();
+    cache.awaitOffsets(offsets).thenAccept(reached -> context.runOnContext(v -> {
+      if (reached) {
+        serve.handle(ctx);
+      } else {
+        respond(ctx, 503, "Timed out waiting for " + CacheResource.HEADER_MIN_OFFSETS);
+      }
+    }));
+  }
+
+  static String formatHttpDate(long millis) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+  }
+
+  /**
+   * Weak comparison of If-None-Match, or if absent If-Modified-Since, as in RFC 7232.
+   */
+  static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, KeyMetadata.Source source) {
+    if (ifNoneMatch != null) {
+      String tag = '"' + CacheResource.getEntityTagValue(source) + '"';
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+        if (candidate.equals("*") || candidate.equals(tag)) return true;
+      }
+      return false;
+    }
+    if (ifModifiedSince != null && source.getTimestamp() >= 0) {
+      try {
+        long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        return source.getTimestamp() / 1000 <= since;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  static HttpServerResponse withSource(HttpServerResponse response, KeyMetadata.Source source) {
+    response.putHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    if (source == null) {
+      return response;
+    }
+    if (source.getTimestamp() >= 0) {
+      response.putHeader(HttpHeaders.LAST_MODIFIED, formatHttpDate(source.getTimestamp()));
+    }
+    return response
+        .putHeader(HttpHeaders.ETAG, "W/\"" + CacheResource.getEntityTagValue(source) + '"')
+        .putHeader(CacheResource.HEADER_OFFSET, Long.toString(source.getOffset()));
+  }
+
+  void valueByKey(RoutingContext ctx) {
+    if (!requireUpToDateCache(ctx)) return;
+    String key = ctx.pathParam("key");
+    KeyMetadata.Source source = cache.getSource(key);
+    HttpServerResponse response = withSource(ctx.response(), source);
+    if (source != null && isNotModified(ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH),
+        ctx.request().getHeader(HttpHeaders.IF_MODIFIED_SINCE), source)) {
+      response.setStatusCode(304).end();
+      return;
+    }
+    if (CacheResource.acceptsGzip(ctx.request().getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+      byte[] gzip = cache.getValueGzip(key);
+      if (gzip != null) {
+        response.putHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM)
+            .putHeader(HttpHeaders.CONTENT_ENCODING, "gzip")
+            .end(Buffer.buffer(gzip));
+        return;
+      }
+    }
+    byte[] value = cache.getValue(key);
+    if (value == null) {
+      response.setStatusCode(404).end();
+      return;
+    }
+    response.putHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM).end(Buffer.buffer(value));
+  }
+
+  void valueByKeyBlocking(RoutingContext ctx) {
+    ctx.vertx().<Void>executeBlocking(promise -> {
+      valueByKey(ctx);
+      promise.complete();
+    }, false, done -> {
+      if (done.failed()) ctx.fail(done.cause());
+    });
+  }
+
+}
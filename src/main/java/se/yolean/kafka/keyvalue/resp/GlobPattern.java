@@ -0,0 +1,102 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+/**
+ * Redis style glob patterns, for SCAN MATCH:
+ * <code>*</code>, <code>?</code>, <code>[abc]</code>, <code>[a-z]</code>, <code>[^a]</code>
+ * and backslash to escape.
+ */
+final class GlobPattern {
+
+  private final String pattern;
+
+  GlobPattern(String pattern) {
+    this.pattern = pattern;
+  }
+
+  boolean matches(String string) {
+    return matches(0, string, 0);
+  }
+
+  private boolean matches(int p, String s, int i) {
+    while (p < pattern.length()) {
+      char c = pattern.charAt(p);
+      switch (c) {
+        case '*':
+          while (p + 1 < pattern.length() && pattern.charAt(p + 1) == '*') p++;
+          if (p + 1 == pattern.length()) return true;
+          for (int j = i; j <= s.length(); j++) {
+            if (matches(p + 1, s, j)) return true;
+          }
+          return false;
+        case '?':
+          if (i == s.length()) return false;
+          i++;
+          p++;
+          break;
+        case '[':
+          if (i == s.length()) return false;
+          p = matchClass(p + 1, s.charAt(i));
+          if (p < 0) return false;
+          i++;
+          break;
+        case '\\':
+          if (p + 1 < pattern.length()) {
+            p++;
+            c = pattern.charAt(p);
+          }
+          // fall through
+        default:
+          if (i == s.length() || s.charAt(i) != c) return false;
+          i++;
+          p++;
+      }
+    }
+    return i == s.length();
+  }
+
+  /**
+   * @param p Index after the opening bracket
+   * @return Index after the closing bracket if the char matched, else -1
+   */
+  private int matchClass(int p, char c) {
+    boolean not = p < pattern.length() && pattern.charAt(p) == '^';
+    if (not) p++;
+    boolean match = false;
+    while (p < pattern.length() && pattern.charAt(p) != ']') {
+      char from = pattern.charAt(p);
+      if (from == '\\' && p + 1 < pattern.length()) {
+        from = pattern.charAt(++p);
+      }
+      if (p + 2 < pattern.length() && pattern.charAt(p + 1) == '-' && pattern.charAt(p + 2) != ']') {
+        char to = pattern.charAt(p + 2);
+        if (from > to) {
+          char t = from;
+          from = to;
+          to = t;
+        }
+        if (c >= from && c <= to) match = true;
+        p += 3;
+      } else {
+        if (c == from) match = true;
+        p++;
+      }
+    }
+    if (p < pattern.length()) p++; // the closing bracket
+    return match != not ? p : -1;
+  }
+
+}
@@ -0,0 +1,167 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental decoder of client commands, as arrays of bulk strings or as inline commands,
+ * for connections that pipeline many commands per read.
+ *
+ * One per connection, not thread safe.
+ */
+class RespReader {
+
+  /**
+   * Like Redis' proto-max-bulk-len default.
+   */
+  static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+
+  static final int MAX_ARGUMENTS = 1024 * 1024;
+
+  /**
+   * Longest inline command or header line.
+   */
+  static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  private byte[] buffer = new byte[1024];
+
+  private int start = 0;
+
+  private int end = 0;
+
+  void feed(byte[] data) {
+    if (end + data.length > buffer.length) {
+      int pending = end - start;
+      if (pending + data.length > buffer.length) {
+        buffer = Arrays.copyOfRange(buffer, start, Math.max(buffer.length * 2, pending + data.length));
+      } else {
+        System.arraycopy(buffer, start, buffer, 0, pending);
+      }
+      start = 0;
+      end = pending;
+    }
+    System.arraycopy(data, 0, buffer, end, data.length);
+    end += data.length;
+  }
+
+  /**
+   * @return Index of the \r of the next \r\n from position, or -1 if it hasn't been fed yet
+   */
+  private int findLineEnd(int position) {
+    for (int i = position; i < end - 1; i++) {
+      if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+        return i;
+      }
+    }
+    if (end - position > MAX_LINE_LENGTH) {
+      throw new IllegalArgumentException("Protocol error: too big line");
+    }
+    return -1;
+  }
+
+  private int parseLength(int from, int to, int max) {
+    long n = 0;
+    if (from == to || to - from > 10) {
+      throw new IllegalArgumentException("Protocol error: invalid length");
+    }
+    for (int i = from; i < to; i++) {
+      int digit = buffer[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new IllegalArgumentException("Protocol error: invalid length");
+      }
+      n = n * 10 + digit;
+    }
+    if (n > max) {
+      throw new IllegalArgumentException("Protocol error: length " + n + " exceeds " + max);
+    }
+    return (int) n;
+  }
+
+  /**
+   * @return The next complete command, or null until more bytes are fed
+   * @throws IllegalArgumentException On protocol errors, after which the connection should be closed
+   */
+  List<byte[]> next() {
+    while (start < end) {
+      if (buffer[start] == '*') {
+        List<byte[]> args = nextArray();
+        if (args == null || !args.isEmpty()) {
+          return args;
+        }
+        continue;
+      }
+      int newline = -1;
+      for (int i = start; i < end; i++) {
+        if (buffer[i] == '\n') {
+          newline = i;
+          break;
+        }
+      }
+      if (newline == -1) {
+        if (end - start > MAX_LINE_LENGTH) {
+          throw new IllegalArgumentException("Protocol error: too big inline request");
+        }
+        return null;
+      }
+      int lineEnd = newline > start && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+      List<byte[]> args = new ArrayList<>();
+      int arg = -1;
+      for (int i = start; i <= lineEnd; i++) {
+        boolean space = i == lineEnd || buffer[i] == ' ' || buffer[i] == '\t';
+        if (space && arg != -1) {
+          args.add(Arrays.copyOfRange(buffer, arg, i));
+          arg = -1;
+        } else if (!space && arg == -1) {
+          arg = i;
+        }
+      }
+      start = newline + 1;
+      if (!args.isEmpty()) {
+        return args;
+      }
+    }
+    return null;
+  }
+
+  private List<byte[]> nextArray() {
+    int lineEnd = findLineEnd(start);
+    if (lineEnd == -1) return null;
+    int count = parseLength(start + 1, lineEnd, MAX_ARGUMENTS);
+    int position = lineEnd + 2;
+    List<byte[]> args = new ArrayList<>(Math.min(count, 16));
+    for (int i = 0; i < count; i++) {
+      if (position >= end) return null;
+      if (buffer[position] != '$') {
+        throw new IllegalArgumentException("Protocol error: expected '$', got '" + (char) buffer[position] + "'");
+      }
+      lineEnd = findLineEnd(position);
+      if (lineEnd == -1) return null;
+      int length = parseLength(position + 1, lineEnd, MAX_BULK_LENGTH);
+      int data = lineEnd + 2;
+      if ((long) data + length + 2 > end) return null;
+      if (buffer[data + length] != '\r' || buffer[data + length + 1] != '\n') {
+        throw new IllegalArgumentException("Protocol error: bulk string not followed by CRLF");
+      }
+      args.add(Arrays.copyOfRange(buffer, data, data + length));
+      position = data + length + 2;
+    }
+    start = position;
+    return args;
+  }
+
+}
@@ -0,0 +1,151 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.common.annotation.Identifier;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.NetSocket;
+import se.yolean.kafka.keyvalue.KafkaCache;
+
+/**
+ * A read-only subset of the Redis protocol (RESP2) on resp_port, for existing Redis clients:
+ * GET, MGET, EXISTS, SCAN and DBSIZE, plus PING, SELECT 0, COMMAND and QUIT.
+ *
+ * Runs on the Vert.x event loop. Every command that a read completes is executed in order
+ * and the replies are written together, so pipelined clients get one write per read.
+ * The key copy that starts a SCAN runs on a worker thread, while the connection waits for it.
+ */
+@ApplicationScoped
+public class RespServer {
+
+  private static final Logger logger = LoggerFactory.getLogger(RespServer.class);
+
+  @ConfigProperty(name = "resp_port", defaultValue = "0")
+  int port;
+
+  @ConfigProperty(name = "resp_host", defaultValue = "0.0.0.0")
+  String host;
+
+  /**
+   * Each holds a copy of the keys until the client has read it all.
+   */
+  @ConfigProperty(name = "resp_max_scans", defaultValue = "16")
+  int maxScans;
+
+  @Inject
+  Vertx vertx;
+
+  @Inject
+  @Identifier("kkv")
+  KafkaCache cache;
+
+  private NetServer server = null;
+
+  private Semaphore scanPermits = null;
+
+  void start(@Observes StartupEvent ev) {
+    if (port == 0) {
+      logger.debug("No resp_port so the Redis protocol listener is disabled");
+      return;
+    }
+    scanPermits = new Semaphore(maxScans);
+    server = vertx.createNetServer(new NetServerOptions().setHost(host).setPort(port).setTcpNoDelay(true))
+        .connectHandler(this::connect);
+    server.listen()
+        .onSuccess(s -> logger.info("Redis protocol listener on {}:{}", host, port))
+        .onFailure(e -> logger.error("Failed to start Redis protocol listener on {}:{}", host, port, e));
+  }
+
+  void stop(@Observes ShutdownEvent ev) {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  void connect(NetSocket socket) {
+    final RespReader reader = new RespReader();
+    final RespWriter writer = new RespWriter();
+    final Context context = vertx.getOrCreateContext();
+    final RespSession session = new RespSession(cache,
+        task -> vertx.executeBlocking(promise -> {
+          task.run();
+          promise.complete();
+        }, false),
+        scanPermits);
+    socket.exceptionHandler(e -> logger.debug("Redis protocol connection failed", e));
+    socket.closeHandler(v -> session.close());
+    socket.handler(data -> {
+      reader.feed(data.getBytes());
+      if (session.getDeferred() == null) {
+        process(socket, reader, writer, session, context);
+      }
+    });
+  }
+
+  /**
+   * Executes buffered commands until there are none left or one defers its reply,
+   * in which case the socket is paused until the reply is written.
+   */
+  void process(NetSocket socket, RespReader reader, RespWriter writer, RespSession session, Context context) {
+    boolean open = true;
+    try {
+      List<byte[]> command;
+      while (open && session.getDeferred() == null && (command = reader.next()) != null) {
+        open = session.execute(command, writer);
+      }
+    } catch (IllegalArgumentException e) {
+      // From the reader, as the session replies with errors itself, after which the stream can't be trusted
+      writer.error("ERR " + e.getMessage());
+      open = false;
+    }
+    if (writer.length() > 0) {
+      socket.write(Buffer.buffer(writer.drain()));
+    }
+    CompletableFuture<?> deferred = session.getDeferred();
+    if (!open) {
+      socket.close();
+    } else if (deferred != null) {
+      socket.pause();
+      deferred.whenComplete((result, failure) -> context.runOnContext(v -> {
+        if (session.resume(writer)) {
+          socket.resume();
+          process(socket, reader, writer, session, context);
+        }
+      }));
+    } else if (socket.writeQueueFull()) {
+      socket.pause();
+      socket.drainHandler(v -> socket.resume());
+    }
+  }
+
+}
@@ -0,0 +1,372 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.yolean.kafka.keyvalue.CacheSnapshot;
+import se.yolean.kafka.keyvalue.KafkaCache;
+
+/**
+ * Executes the read-only commands of one connection, in order, against the cache.
+ *
+ * SCAN cursors refer to positions in a copy of the keys, taken when the scan starts,
+ * from a snapshot where the cache type has them.
+ * So unlike Redis keys added during the scan aren't returned and removed keys may be,
+ * and a cursor is only valid on the connection that got it.
+ * The copy is made by an executor off the event loop, and until it's done the session is deferred:
+ * no other command may execute before {@link #resume(RespWriter)} has written the reply.
+ * Scans in progress hold permits that are shared by all connections.
+ */
+class RespSession {
+
+  static final int SCAN_DEFAULT_COUNT = 10;
+
+  /**
+   * Scans in progress per connection, beyond which the least recently started ones are dropped.
+   */
+  static final int MAX_SCANS = 16;
+
+  static final String ERR_TOO_MANY_SCANS = "ERR too many scans in progress, retry later";
+
+  private static final Logger logger = LoggerFactory.getLogger(RespSession.class);
+
+  private final KafkaCache cache;
+
+  private final Executor copier;
+
+  private final Semaphore scanPermits;
+
+  private final Map<Long, Scan> scans = new LinkedHashMap<Long, Scan>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Scan> eldest) {
+      if (size() <= MAX_SCANS) return false;
+      scanPermits.release();
+      return true;
+    }
+  };
+
+  private long nextCursor = 1;
+
+  private static final class Scan {
+
+    final String[] keys;
+
+    int position = 0;
+
+    Scan(String[] keys) {
+      this.keys = keys;
+    }
+
+  }
+
+  private static final class PendingScan {
+
+    final CompletableFuture<String[]> keys;
+    final GlobPattern match;
+    final int count;
+
+    PendingScan(CompletableFuture<String[]> keys, GlobPattern match, int count) {
+      this.keys = keys;
+      this.match = match;
+      this.count = count;
+    }
+
+  }
+
+  private PendingScan pending = null;
+
+  private boolean closed = false;
+
+  /**
+   * @param copier Runs the key copies that start scans
+   * @param scanPermits One per scan in progress, shared by all sessions
+   */
+  RespSession(KafkaCache cache, Executor copier, Semaphore scanPermits) {
+    this.cache = cache;
+    this.copier = copier;
+    this.scanPermits = scanPermits;
+  }
+
+  /**
+   * Copies keys on the calling thread, with up to {@value #MAX_SCANS} scans in progress.
+   */
+  RespSession(KafkaCache cache) {
+    this(cache, Runnable::run, new Semaphore(MAX_SCANS));
+  }
+
+  static String string(byte[] arg) {
+    return new String(arg, StandardCharsets.UTF_8);
+  }
+
+  static RespWriter wrongArity(RespWriter out, String command) {
+    return out.error("ERR wrong number of arguments for '" + command.toLowerCase(Locale.ROOT) + "' command");
+  }
+
+  private boolean isReady() {
+    return cache != null && cache.isReady();
+  }
+
+  /**
+   * @param command Name and arguments
+   * @return false if the connection should be closed after the reply
+   */
+  boolean execute(List<byte[]> command, RespWriter out) {
+    int start = out.length();
+    try {
+      return dispatch(command, out);
+    } catch (RuntimeException e) {
+      logger.warn("Redis protocol command failed", e);
+      out.truncate(start);
+      out.error("ERR " + e.getClass().getSimpleName());
+      return true;
+    }
+  }
+
+  private boolean dispatch(List<byte[]> command, RespWriter out) {
+    String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+    int args = command.size() - 1;
+    switch (name) {
+      case "PING":
+        if (args == 0) {
+          out.simple("PONG");
+        } else if (args == 1) {
+          out.bulk(command.get(1));
+        } else {
+          wrongArity(out, name);
+        }
+        return true;
+      case "QUIT":
+        out.simple("OK");
+        return false;
+      case "SELECT":
+        if (args != 1) {
+          wrongArity(out, name);
+        } else if ("0".equals(string(command.get(1)))) {
+          out.simple("OK");
+        } else {
+          out.error("ERR DB index is out of range");
+        }
+        return true;
+      case "COMMAND":
+        out.array(0);
+        return true;
+      case "GET":
+      case "MGET":
+      case "EXISTS":
+      case "SCAN":
+      case "DBSIZE":
+        break;
+      default:
+        out.error("ERR unknown command '" + string(command.get(0)) + "', this is a read-only cache");
+        return true;
+    }
+    if (!isReady()) {
+      out.error("LOADING cache is unready, check /health for status");
+      return true;
+    }
+    switch (name) {
+      case "GET":
+        if (args != 1) {
+          wrongArity(out, name);
+        } else {
+          out.bulk(cache.getValue(string(command.get(1))));
+        }
+        break;
+      case "MGET":
+        if (args < 1) {
+          wrongArity(out, name);
+        } else {
+          out.array(args);
+          for (int i = 1; i <= args; i++) {
+            out.bulk(cache.getValue(string(command.get(i))));
+          }
+        }
+        break;
+      case "EXISTS":
+        if (args < 1) {
+          wrongArity(out, name);
+        } else {
+          int found = 0;
+          for (int i = 1; i <= args; i++) {
+            if (cache.getValue(string(command.get(i))) != null) found++;
+          }
+          out.integer(found);
+        }
+        break;
+      case "DBSIZE":
+        out.integer(cache.getSize());
+        break;
+      case "SCAN":
+        scan(command, out);
+        break;
+    }
+    return true;
+  }
+
+  /**
+   * SCAN cursor [MATCH pattern] [COUNT count], where count is the number of keys examined.
+   */
+  void scan(List<byte[]> command, RespWriter out) {
+    if (command.size() < 2 || command.size() % 2 != 0) {
+      wrongArity(out, "SCAN");
+      return;
+    }
+    long cursor;
+    try {
+      cursor = Long.parseUnsignedLong(string(command.get(1)));
+    } catch (NumberFormatException e) {
+      out.error("ERR invalid cursor");
+      return;
+    }
+    GlobPattern match = null;
+    int count = SCAN_DEFAULT_COUNT;
+    for (int i = 2; i < command.size(); i += 2) {
+      String option = string(command.get(i)).toUpperCase(Locale.ROOT);
+      String value = string(command.get(i + 1));
+      if ("MATCH".equals(option)) {
+        match = "*".equals(value) ? null : new GlobPattern(value);
+      } else if ("COUNT".equals(option)) {
+        try {
+          count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+          count = 0;
+        }
+        if (count < 1) {
+          out.error("ERR syntax error");
+          return;
+        }
+      } else {
+        out.error("ERR syntax error");
+        return;
+      }
+    }
+    if (cursor == 0) {
+      if (!scanPermits.tryAcquire()) {
+        out.error(ERR_TOO_MANY_SCANS);
+        return;
+      }
+      pending = new PendingScan(CompletableFuture.supplyAsync(this::copyKeys, copier), match, count);
+      if (pending.keys.isDone()) {
+        resume(out);
+      }
+      return;
+    }
+    Scan scan = scans.remove(cursor);
+    if (scan == null) {
+      out.error("ERR invalid cursor");
+      return;
+    }
+    reply(scan, match, count, out);
+  }
+
+  /**
+   * @return The work that a command is waiting for, or null if the session can execute the next command
+   */
+  CompletableFuture<?> getDeferred() {
+    return pending == null ? null : pending.keys;
+  }
+
+  /**
+   * Writes the reply of the command that deferred, once {@link #getDeferred()} is done.
+   *
+   * @return false if the session was closed meanwhile
+   */
+  boolean resume(RespWriter out) {
+    if (closed) return false;
+    final PendingScan scan = pending;
+    pending = null;
+    final String[] keys;
+    try {
+      keys = scan.keys.join();
+    } catch (CompletionException e) {
+      scanPermits.release();
+      logger.warn("Redis protocol scan failed to copy keys", e.getCause());
+      out.error("ERR " + e.getCause().getClass().getSimpleName());
+      return true;
+    }
+    reply(new Scan(keys), scan.match, scan.count, out);
+    return true;
+  }
+
+  /**
+   * Releases the permits of scans in progress, when the connection is closed.
+   */
+  void close() {
+    closed = true;
+    scanPermits.release(scans.size());
+    scans.clear();
+    if (pending != null) {
+      pending.keys.whenComplete((keys, failure) -> scanPermits.release());
+      pending = null;
+    }
+  }
+
+  private void reply(Scan scan, GlobPattern match, int count, RespWriter out) {
+    List<String> found = new ArrayList<>(Math.min(count, 1024));
+    for (int i = 0; i < count && scan.position < scan.keys.length; i++) {
+      String key = scan.keys[scan.position++];
+      if (match == null || match.matches(key)) {
+        found.add(key);
+      }
+    }
+    long next = 0;
+    if (scan.position < scan.keys.length) {
+      next = nextCursor++;
+      scans.put(next, scan);
+    } else {
+      scanPermits.release();
+    }
+    out.array(2).bulk(Long.toUnsignedString(next)).array(found.size());
+    for (String key : found) {
+      out.bulk(key);
+    }
+  }
+
+  /**
+   * Iterators aren't kept between commands, as a live one fails or misses keys when the cache changes.
+   */
+  private String[] copyKeys() {
+    List<String> keys = new ArrayList<>(cache.getSize());
+    CacheSnapshot snapshot = cache.getSnapshot();
+    if (snapshot != null) {
+      try (snapshot) {
+        Iterator<Map.Entry<String, byte[]>> entries = snapshot.getEntries();
+        while (entries.hasNext()) {
+          keys.add(entries.next().getKey());
+        }
+      }
+    } else {
+      cache.getKeys().forEachRemaining(keys::add);
+    }
+    return keys.toArray(new String[0]);
+  }
+
+}
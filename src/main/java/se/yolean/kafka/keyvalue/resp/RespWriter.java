@@ -0,0 +1,116 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Accumulates replies to all pipelined commands of a read, for a single write.
+ *
+ * One per connection, not thread safe.
+ */
+class RespWriter {
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private static final byte[] NULL_BULK = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private byte[] buffer = new byte[1024];
+
+  private int length = 0;
+
+  private void ensure(int more) {
+    if (length + more > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+    }
+  }
+
+  private void write(byte[] bytes) {
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buffer, length, bytes.length);
+    length += bytes.length;
+  }
+
+  private void line(char type, String line) {
+    ensure(1);
+    buffer[length++] = (byte) type;
+    write(line.getBytes(StandardCharsets.UTF_8));
+    write(CRLF);
+  }
+
+  RespWriter simple(String message) {
+    line('+', message);
+    return this;
+  }
+
+  /**
+   * @param message Starting with an error code like ERR
+   */
+  RespWriter error(String message) {
+    line('-', message);
+    return this;
+  }
+
+  RespWriter integer(long value) {
+    line(':', Long.toString(value));
+    return this;
+  }
+
+  RespWriter array(int size) {
+    line('*', Integer.toString(size));
+    return this;
+  }
+
+  /**
+   * @param value Null for a null bulk string
+   */
+  RespWriter bulk(byte[] value) {
+    if (value == null) {
+      write(NULL_BULK);
+      return this;
+    }
+    line('$', Integer.toString(value.length));
+    write(value);
+    write(CRLF);
+    return this;
+  }
+
+  RespWriter bulk(String value) {
+    return bulk(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  int length() {
+    return length;
+  }
+
+  /**
+   * Drops what was written after {@link #length()} returned the given length, such as a partial reply.
+   */
+  void truncate(int length) {
+    if (length > this.length) throw new IllegalArgumentException("Can't truncate " + this.length + " to " + length);
+    this.length = length;
+  }
+
+  /**
+   * @return The accumulated replies, after which the writer is empty
+   */
+  byte[] drain() {
+    byte[] replies = Arrays.copyOf(buffer, length);
+    length = 0;
+    return replies;
+  }
+
+}
@@ -0,0 +1,85 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+/**
+ * Fixed size Bloom filter over UTF-8 keys, using double hashing of one 64-bit hash.
+ * Ten bits per key and seven probes give roughly one percent false positives.
+ * Immutable once the segment it belongs to is published.
+ */
+final class BloomFilter {
+
+  static final int BITS_PER_KEY = 10;
+
+  static final int PROBES = 7;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final long[] words;
+
+  private final long bits;
+
+  BloomFilter(int expectedKeys) {
+    long n = Math.max(64, (long) expectedKeys * BITS_PER_KEY);
+    words = new long[(int) ((n + 63) >>> 6)];
+    bits = (long) words.length << 6;
+  }
+
+  /**
+   * @return FNV-1a 64 with the murmur3 finalizer, computed once per lookup and shared by all segments' filters
+   */
+  static long hash(byte[] key) {
+    long h = FNV_OFFSET;
+    for (int i = 0; i < key.length; i++) {
+      h = (h ^ (key[i] & 0xff)) * FNV_PRIME;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private long bit(long hash, int probe) {
+    final long h1 = hash & 0xffffffffL;
+    final long h2 = hash >>> 32 | 1;
+    return Long.remainderUnsigned(h1 + probe * h2, bits);
+  }
+
+  void add(long hash) {
+    for (int i = 0; i < PROBES; i++) {
+      long b = bit(hash, i);
+      words[(int) (b >>> 6)] |= 1L << b;
+    }
+  }
+
+  boolean mightContain(long hash) {
+    for (int i = 0; i < PROBES; i++) {
+      long b = bit(hash, i);
+      if ((words[(int) (b >>> 6)] & 1L << b) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  long getBytes() {
+    return (long) words.length * Long.BYTES;
+  }
+
+}
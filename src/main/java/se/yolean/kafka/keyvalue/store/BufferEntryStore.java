@@ -0,0 +1,75 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A store that keeps values in buffers and can stream entries from them,
+ * without copying each value to a heap array first.
+ *
+ * Entries are framed as int key length, int value length, UTF-8 key, value, with big endian ints.
+ */
+public interface BufferEntryStore {
+
+  int FRAME_HEADER_SIZE = 8;
+
+  /**
+   * @param out To write every entry to
+   */
+  void writeEntries(WritableByteChannel out) throws IOException;
+
+  /**
+   * @param header Scratch buffer of at least {@value #FRAME_HEADER_SIZE} bytes
+   * @param key UTF-8 key, from position to limit, or null if the value buffer has the key bytes before the value
+   * @param keyLength Key bytes
+   * @param value From position to limit, after the key if key is null
+   */
+  static void writeFrame(WritableByteChannel out, ByteBuffer header,
+      ByteBuffer key, int keyLength, ByteBuffer value) throws IOException {
+    int valueLength = value.remaining() - (key == null ? keyLength : 0);
+    header.clear();
+    header.putInt(keyLength).putInt(valueLength).flip();
+    writeFully(out, header);
+    if (key != null) {
+      writeFully(out, key);
+    }
+    writeFully(out, value);
+  }
+
+  /**
+   * For stores that don't implement the capability, and for snapshots.
+   */
+  static void writeEntries(Iterator<Map.Entry<String, byte[]>> entries, WritableByteChannel out) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    while (entries.hasNext()) {
+      Map.Entry<String, byte[]> entry = entries.next();
+      byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      writeFrame(out, header, ByteBuffer.wrap(key), key.length, ByteBuffer.wrap(entry.getValue()));
+    }
+  }
+
+  static void writeFully(WritableByteChannel out, ByteBuffer b) throws IOException {
+    while (b.hasRemaining()) {
+      out.write(b);
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.time.Instant;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * A cache that survives restarts, so that consumption can resume
+ * from where the store was last made durable instead of from the low water mark.
+ */
+public interface CheckpointStore {
+
+  /**
+   * @return Offset of the last record applied per partition at the latest checkpoint,
+   *         empty if the store was created from scratch
+   */
+  Map<TopicPartition, Long> getCheckpointOffsets();
+
+  /**
+   * @return When the latest checkpoint was made, or null if the store was created from scratch
+   *         or the checkpoint didn't record it
+   */
+  Instant getCheckpointTime();
+
+  /**
+   * Makes everything written so far durable, and records the offsets it corresponds to.
+   *
+   * @param appliedOffsets Offset of the last record applied to the store, per partition
+   * @throws java.io.UncheckedIOException If the store could not be made durable
+   */
+  void checkpoint(Map<TopicPartition, Long> appliedOffsets);
+
+}
@@ -0,0 +1,279 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * An immutable file of records sorted by unsigned UTF-8 key bytes, at most one record per key,
+ * with an in-memory Bloom filter and a sparse index of the first key in every block.
+ *
+ * Record layout: int key length + 1 (0 marks padding up to the next region), int value length
+ * (-1 for remove), key, value.
+ * The file is mapped read-only in regions, and no record or block crosses a region boundary.
+ * Readers need no coordination, also after the file has been deleted.
+ */
+final class ColdSegment {
+
+  static final int BLOCK_SIZE = 4096;
+
+  static final int REGION_SIZE = 1 << 30;
+
+  static final int HEADER_SIZE = 8;
+
+  static final int REMOVED = -1;
+
+  /**
+   * Returned by {@link #find(byte[])} for keys that this segment records as removed.
+   */
+  static final byte[] TOMBSTONE = new byte[0];
+
+  static final class Record {
+
+    final byte[] key;
+    /**
+     * Null for removed.
+     */
+    final byte[] value;
+
+    Record(byte[] key, byte[] value) {
+      this.key = key;
+      this.value = value;
+    }
+
+  }
+
+  final Path path;
+
+  final long length;
+
+  final int count;
+
+  private final int regionSize;
+
+  private final MappedByteBuffer[] regions;
+
+  private final BloomFilter bloom;
+
+  private final byte[][] indexKeys;
+
+  private final long[] indexOffsets;
+
+  private ColdSegment(Path path, long length, int count, int regionSize,
+      BloomFilter bloom, byte[][] indexKeys, long[] indexOffsets) throws IOException {
+    this.path = path;
+    this.length = length;
+    this.count = count;
+    this.regionSize = regionSize;
+    this.bloom = bloom;
+    this.indexKeys = indexKeys;
+    this.indexOffsets = indexOffsets;
+    this.regions = new MappedByteBuffer[(int) ((length + regionSize - 1) / regionSize)];
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      for (int i = 0; i < regions.length; i++) {
+        long start = (long) i * regionSize;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, length - start));
+      }
+    }
+  }
+
+  /**
+   * @param records In strictly ascending key order
+   * @param expectedCount Upper bound on the number of records, to size the Bloom filter
+   * @return The new segment, or null if there were no records in which case no file remains
+   */
+  static ColdSegment write(Path path, Iterator<Record> records, int expectedCount, int regionSize) throws IOException {
+    final BloomFilter bloom = new BloomFilter(expectedCount);
+    byte[][] indexKeys = new byte[16][];
+    long[] indexOffsets = new long[16];
+    int blocks = 0;
+    int count = 0;
+    long offset = 0;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16))) {
+      while (records.hasNext()) {
+        final Record r = records.next();
+        final int recordSize = HEADER_SIZE + r.key.length + (r.value == null ? 0 : r.value.length);
+        if (recordSize > regionSize) {
+          throw new IllegalArgumentException("Record of " + recordSize + " bytes exceeds region size " + regionSize);
+        }
+        long inRegion = offset % regionSize;
+        if (inRegion + recordSize > regionSize) {
+          for (long pad = regionSize - inRegion; pad > 0; pad--) {
+            out.write(0);
+          }
+          offset += regionSize - inRegion;
+        }
+        if (blocks == 0 || offset - indexOffsets[blocks - 1] >= BLOCK_SIZE
+            || offset / regionSize != indexOffsets[blocks - 1] / regionSize) {
+          if (blocks == indexKeys.length) {
+            indexKeys = Arrays.copyOf(indexKeys, blocks * 2);
+            indexOffsets = Arrays.copyOf(indexOffsets, blocks * 2);
+          }
+          indexKeys[blocks] = r.key;
+          indexOffsets[blocks] = offset;
+          blocks++;
+        }
+        bloom.add(BloomFilter.hash(r.key));
+        out.writeInt(r.key.length + 1);
+        out.writeInt(r.value == null ? REMOVED : r.value.length);
+        out.write(r.key);
+        if (r.value != null) {
+          out.write(r.value);
+        }
+        offset += recordSize;
+        count++;
+      }
+    }
+    if (count == 0) {
+      Files.delete(path);
+      return null;
+    }
+    return new ColdSegment(path, offset, count, regionSize, bloom,
+        Arrays.copyOf(indexKeys, blocks), Arrays.copyOf(indexOffsets, blocks));
+  }
+
+  boolean mightContain(long hash) {
+    return bloom.mightContain(hash);
+  }
+
+  static int compare(ByteBuffer region, int offset, int length, byte[] key) {
+    final int n = Math.min(length, key.length);
+    for (int i = 0; i < n; i++) {
+      int c = Byte.compareUnsigned(region.get(offset + i), key[i]);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Reads the one block that may hold the key, so callers should check {@link #mightContain(long)} first.
+   *
+   * @return The value, {@link #TOMBSTONE} if removed, or null if this segment has no record for the key
+   */
+  byte[] find(byte[] key) {
+    int block = -1;
+    int lo = 0;
+    int hi = indexKeys.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (Arrays.compareUnsigned(indexKeys[mid], key) <= 0) {
+        block = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    if (block == -1) {
+      return null;
+    }
+    final long start = indexOffsets[block];
+    final long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : length;
+    final ByteBuffer region = regions[(int) (start / regionSize)];
+    int o = (int) (start % regionSize);
+    final int blockEnd = (int) Math.min(region.limit(), o + (end - start));
+    while (o + HEADER_SIZE <= blockEnd) {
+      final int keyLength = region.getInt(o) - 1;
+      if (keyLength == -1) {
+        break;
+      }
+      final int valueLength = region.getInt(o + 4);
+      final int c = compare(region, o + HEADER_SIZE, keyLength, key);
+      if (c > 0) {
+        break;
+      }
+      if (c == 0) {
+        if (valueLength == REMOVED) {
+          return TOMBSTONE;
+        }
+        byte[] value = new byte[valueLength];
+        ByteBuffer b = region.duplicate();
+        b.position(o + HEADER_SIZE + keyLength);
+        b.get(value);
+        return value;
+      }
+      o += HEADER_SIZE + keyLength + Math.max(0, valueLength);
+    }
+    return null;
+  }
+
+  Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Sequential reads in key order.
+   */
+  final class Cursor {
+
+    private long position = 0;
+
+    private int remaining = count;
+
+    /**
+     * @return The next record, or null at end of segment
+     */
+    Record next() {
+      while (remaining > 0) {
+        final ByteBuffer region = regions[(int) (position / regionSize)];
+        final int o = (int) (position % regionSize);
+        if (o + HEADER_SIZE > region.limit() || region.getInt(o) == 0) {
+          position += regionSize - o;
+          continue;
+        }
+        final int keyLength = region.getInt(o) - 1;
+        final int valueLength = region.getInt(o + 4);
+        final ByteBuffer b = region.duplicate();
+        b.position(o + HEADER_SIZE);
+        final byte[] key = new byte[keyLength];
+        b.get(key);
+        byte[] value = null;
+        if (valueLength != REMOVED) {
+          value = new byte[valueLength];
+          b.get(value);
+        }
+        position += HEADER_SIZE + keyLength + Math.max(0, valueLength);
+        remaining--;
+        return new Record(key, value);
+      }
+      return null;
+    }
+
+  }
+
+  /**
+   * @return Heap bytes used by the Bloom filter and sparse index
+   */
+  long getIndexBytes() {
+    long bytes = bloom.getBytes() + (long) indexOffsets.length * (Long.BYTES + 16);
+    for (byte[] k : indexKeys) {
+      bytes += k.length;
+    }
+    return bytes;
+  }
+
+}
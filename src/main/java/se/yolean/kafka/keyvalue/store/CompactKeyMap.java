@@ -0,0 +1,419 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keys as UTF-8 bytes in paged arenas, indexed by an open addressing table of primitive longs,
+ * so that an entry costs its key bytes, one long and the value array.
+ *
+ * A slot holds the key's hash in the high 32 bits and its arena reference + 1 in the low 32 bits.
+ * Lookups hash and compare the request string against the arena without encoding it to a new array.
+ *
+ * Single writer, many readers, like {@link SingleWriterHashMap}.
+ * Readers re-check the slot after reading the value, in case the slot was reused by another key meanwhile.
+ * Key bytes of removed entries are reclaimed when the table is rebuilt into a new arena.
+ * Keys with unpaired surrogates have no UTF-8 encoding, so put rejects them and lookups don't find them.
+ */
+public class CompactKeyMap extends AbstractMap<String, byte[]> implements Utf8KeyStore {
+
+  static final int PAGE_SHIFT = 20;
+
+  static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+  /**
+   * One less than what the reference bits allow, so that no slot equals {@link #DELETED}.
+   */
+  static final int MAX_PAGES = (1 << (32 - PAGE_SHIFT)) - 1;
+
+  static final long EMPTY = 0;
+
+  static final long DELETED = -1;
+
+  static final int LENGTH_SIZE = 4;
+
+  static final class Arena {
+
+    volatile byte[][] pages = new byte[0][];
+
+    private int top = 0;
+
+    long bytes = 0;
+
+    long garbage = 0;
+
+    private int reserve(int need) {
+      byte[][] p = pages;
+      if (p.length == 0 || top + need > p[p.length - 1].length) {
+        if (p.length == MAX_PAGES) {
+          throw new IllegalStateException("Key arena is full at " + MAX_PAGES + " pages");
+        }
+        p = Arrays.copyOf(p, p.length + 1);
+        p[p.length - 1] = new byte[Math.max(PAGE_SIZE, need)];
+        pages = p;
+        top = 0;
+      }
+      int ref = (p.length - 1) << PAGE_SHIFT | top;
+      top += need;
+      bytes += need;
+      return ref;
+    }
+
+    int append(String key, int length) {
+      int ref = reserve(LENGTH_SIZE + length);
+      byte[] page = page(ref);
+      int offset = offset(ref);
+      writeInt(page, offset, length);
+      Utf8.write(key, page, offset + LENGTH_SIZE);
+      return ref;
+    }
+
+    int append(byte[] page, int offset) {
+      int need = LENGTH_SIZE + length(page, offset);
+      int ref = reserve(need);
+      System.arraycopy(page, offset, page(ref), offset(ref), need);
+      return ref;
+    }
+
+    byte[] page(int ref) {
+      return pages[ref >>> PAGE_SHIFT];
+    }
+
+    static int offset(int ref) {
+      return ref & (PAGE_SIZE - 1);
+    }
+
+    static int length(byte[] page, int offset) {
+      return (page[offset] & 0xff) << 24 | (page[offset + 1] & 0xff) << 16
+          | (page[offset + 2] & 0xff) << 8 | (page[offset + 3] & 0xff);
+    }
+
+    static void writeInt(byte[] page, int offset, int v) {
+      page[offset] = (byte) (v >>> 24);
+      page[offset + 1] = (byte) (v >>> 16);
+      page[offset + 2] = (byte) (v >>> 8);
+      page[offset + 3] = (byte) v;
+    }
+
+    boolean keyEquals(String key, int ref) {
+      byte[] page = page(ref);
+      int offset = offset(ref);
+      return Utf8.equals(key, page, offset + LENGTH_SIZE, length(page, offset));
+    }
+
+    String key(int ref) {
+      byte[] page = page(ref);
+      int offset = offset(ref);
+      return new String(page, offset + LENGTH_SIZE, length(page, offset), StandardCharsets.UTF_8);
+    }
+
+    int size(int ref) {
+      return LENGTH_SIZE + length(page(ref), offset(ref));
+    }
+
+  }
+
+  static final class Table {
+
+    final AtomicLongArray slots;
+    final AtomicReferenceArray<byte[]> values;
+    final Arena arena;
+
+    Table(int capacity, Arena arena) {
+      this.slots = new AtomicLongArray(capacity);
+      this.values = new AtomicReferenceArray<>(capacity);
+      this.arena = arena;
+    }
+
+    int capacity() {
+      return slots.length();
+    }
+
+  }
+
+  static long slot(int hash, int ref) {
+    return (long) hash << 32 | ((ref + 1) & 0xffffffffL);
+  }
+
+  static int hash(long slot) {
+    return (int) (slot >>> 32);
+  }
+
+  static int ref(long slot) {
+    return (int) slot - 1;
+  }
+
+  private volatile Table table;
+
+  private volatile int size = 0;
+
+  /**
+   * Live plus deleted slots, only accessed by the writer.
+   */
+  private int used = 0;
+
+  public CompactKeyMap(int initialSize) {
+    table = new Table(SingleWriterHashMap.capacityFor(initialSize), new Arena());
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    final int hash;
+    try {
+      hash = Utf8.hash(k);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    retry: for (;;) {
+      final Table t = table;
+      final int mask = t.capacity() - 1;
+      for (int i = hash & mask;; i = (i + 1) & mask) {
+        long s = t.slots.getAcquire(i);
+        if (s == EMPTY) {
+          return null;
+        }
+        if (s != DELETED && hash(s) == hash && t.arena.keyEquals(k, ref(s))) {
+          byte[] value = t.values.getAcquire(i);
+          if (t.slots.getAcquire(i) == s) {
+            return value;
+          }
+          continue retry;
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writer thread only.
+   * A null value (tombstone) removes the key.
+   *
+   * @throws IllegalArgumentException If the key has an unpaired surrogate
+   */
+  @Override
+  public byte[] put(String key, byte[] value) {
+    if (value == null) {
+      return remove(key);
+    }
+    final int hash = Utf8.hash(key);
+    final Table t = table;
+    final int mask = t.capacity() - 1;
+    int firstDeleted = -1;
+    for (int i = hash & mask;; i = (i + 1) & mask) {
+      long s = t.slots.getPlain(i);
+      if (s == EMPTY) {
+        int target = firstDeleted == -1 ? i : firstDeleted;
+        int ref = t.arena.append(key, Utf8.length(key));
+        t.values.setRelease(target, value);
+        t.slots.setRelease(target, slot(hash, ref));
+        if (firstDeleted == -1) used++;
+        size = size + 1;
+        if (used > t.capacity() * SingleWriterHashMap.LOAD_FACTOR) {
+          rebuild(t.arena.garbage > t.arena.bytes / 2);
+        }
+        return null;
+      }
+      if (s == DELETED) {
+        if (firstDeleted == -1) firstDeleted = i;
+      } else if (hash(s) == hash && t.arena.keyEquals(key, ref(s))) {
+        byte[] previous = t.values.getPlain(i);
+        t.values.setRelease(i, value);
+        return previous;
+      }
+    }
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public byte[] remove(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    final int hash;
+    try {
+      hash = Utf8.hash(k);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    final Table t = table;
+    final int mask = t.capacity() - 1;
+    for (int i = hash & mask;; i = (i + 1) & mask) {
+      long s = t.slots.getPlain(i);
+      if (s == EMPTY) {
+        return null;
+      }
+      if (s != DELETED && hash(s) == hash && t.arena.keyEquals(k, ref(s))) {
+        byte[] previous = t.values.getPlain(i);
+        t.slots.setRelease(i, DELETED);
+        t.values.setRelease(i, null);
+        t.arena.garbage += t.arena.size(ref(s));
+        size = size - 1;
+        boolean shrink = t.capacity() > SingleWriterHashMap.MIN_CAPACITY && size < t.capacity() / 8;
+        boolean compact = t.arena.garbage > PAGE_SIZE && t.arena.garbage > t.arena.bytes / 2;
+        if (shrink || compact) {
+          rebuild(compact);
+        }
+        return previous;
+      }
+    }
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public void clear() {
+    table = new Table(SingleWriterHashMap.MIN_CAPACITY, new Arena());
+    used = 0;
+    size = 0;
+  }
+
+  /**
+   * Copies live slots to a new table sized for the current number of entries, then publishes it.
+   *
+   * @param compact true to also copy live keys to a new arena, dropping those of removed entries
+   */
+  private void rebuild(boolean compact) {
+    final Table old = table;
+    final Table t = new Table(SingleWriterHashMap.capacityFor(size * 2), compact ? new Arena() : old.arena);
+    final int mask = t.capacity() - 1;
+    int count = 0;
+    for (int j = 0; j < old.capacity(); j++) {
+      long s = old.slots.getPlain(j);
+      if (s == EMPTY || s == DELETED) continue;
+      if (compact) {
+        int ref = ref(s);
+        s = slot(hash(s), t.arena.append(old.arena.page(ref), Arena.offset(ref)));
+      }
+      int i = hash(s) & mask;
+      while (t.slots.getPlain(i) != EMPTY) {
+        i = (i + 1) & mask;
+      }
+      t.slots.setPlain(i, s);
+      t.values.setPlain(i, old.values.getPlain(j));
+      count++;
+    }
+    used = count;
+    table = t;
+  }
+
+  @Override
+  public void writeKeys(OutputStream out, byte separator) throws IOException {
+    final Table t = table;
+    for (int i = 0; i < t.capacity(); i++) {
+      long s = t.slots.getAcquire(i);
+      if (s == EMPTY || s == DELETED) continue;
+      byte[] page = t.arena.page(ref(s));
+      int offset = Arena.offset(ref(s));
+      out.write(page, offset + LENGTH_SIZE, Arena.length(page, offset));
+      out.write(separator);
+    }
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+    private final Table t = table;
+    private int index = 0;
+    private Map.Entry<String, byte[]> next = null;
+
+    private void advance() {
+      while (next == null && index < t.capacity()) {
+        final int i = index++;
+        long s = t.slots.getAcquire(i);
+        if (s == EMPTY || s == DELETED) continue;
+        byte[] value = t.values.getAcquire(i);
+        if (t.slots.getAcquire(i) != s) continue;
+        next = new AbstractMap.SimpleImmutableEntry<>(t.arena.key(ref(s)), value);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      advance();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, byte[]> e = next;
+      next = null;
+      return e;
+    }
+
+  }
+
+  private final Set<Map.Entry<String, byte[]>> entrySet = new AbstractSet<Map.Entry<String,byte[]>>() {
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+  };
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return entrySet;
+  }
+
+  long getArenaBytes() {
+    return table.arena.bytes;
+  }
+
+  @Override
+  public String toString() {
+    final Table t = table;
+    return getClass().getSimpleName() + "[size=" + size + ",capacity=" + t.capacity()
+        + ",arenaPages=" + t.arena.pages.length + "]";
+  }
+
+}
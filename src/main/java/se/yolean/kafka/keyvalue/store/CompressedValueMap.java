@@ -0,0 +1,344 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores values at or above a size threshold as single gzip members,
+ * so that they can be served as-is to clients that accept gzip encoding.
+ *
+ * A stored value is compressed if and only if it starts with the gzip magic bytes.
+ * Raw values that happen to start with those bytes are therefore always compressed.
+ * Values that don't shrink are stored raw.
+ *
+ * Writes must come from a single thread, like for the delegate store.
+ * The decode metrics count reads only, as the writer gets previous values' lengths from the gzip trailer.
+ */
+public class CompressedValueMap extends AbstractMap<String, byte[]> implements DelegatingStore, SnapshotStore, ValueLengthStore {
+
+  static final byte MAGIC1 = 0x1f;
+
+  static final byte MAGIC2 = (byte) 0x8b;
+
+  static final byte[] HEADER = { MAGIC1, MAGIC2, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+  static final int TRAILER_SIZE = 8;
+
+  private final Map<String, byte[]> stored;
+
+  private final int threshold;
+
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+  private final CRC32 crc = new CRC32();
+
+  private byte[] deflateBuffer = new byte[4096];
+
+  private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+  private volatile long rawBytes = 0;
+
+  private volatile long storedBytes = 0;
+
+  private final LongAdder decodeCount = new LongAdder();
+
+  private final LongAdder decodeNanos = new LongAdder();
+
+  public CompressedValueMap(Map<String, byte[]> stored, int threshold) {
+    this.stored = stored;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public Map<String, byte[]> getDelegate() {
+    return stored;
+  }
+
+  static boolean isGzip(byte[] value) {
+    return value.length >= 2 && value[0] == MAGIC1 && value[1] == MAGIC2;
+  }
+
+  static int rawLength(byte[] gzip) {
+    int i = gzip.length - 4;
+    return (gzip[i] & 0xff) | (gzip[i + 1] & 0xff) << 8 | (gzip[i + 2] & 0xff) << 16 | (gzip[i + 3] & 0xff) << 24;
+  }
+
+  byte[] encode(byte[] value) {
+    final boolean magic = isGzip(value);
+    if (value.length < threshold && !magic) {
+      return value;
+    }
+    deflater.reset();
+    deflater.setInput(value);
+    deflater.finish();
+    int length = HEADER.length;
+    while (!deflater.finished()) {
+      if (deflateBuffer.length - length < TRAILER_SIZE + 64) {
+        deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+      }
+      length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - TRAILER_SIZE - length);
+    }
+    if (length + TRAILER_SIZE >= value.length && !magic) {
+      return value;
+    }
+    crc.reset();
+    crc.update(value);
+    byte[] gzip = Arrays.copyOf(deflateBuffer, length + TRAILER_SIZE);
+    System.arraycopy(HEADER, 0, gzip, 0, HEADER.length);
+    writeIntLE(gzip, length, (int) crc.getValue());
+    writeIntLE(gzip, length + 4, value.length);
+    return gzip;
+  }
+
+  private static void writeIntLE(byte[] b, int i, int v) {
+    b[i] = (byte) v;
+    b[i + 1] = (byte) (v >>> 8);
+    b[i + 2] = (byte) (v >>> 16);
+    b[i + 3] = (byte) (v >>> 24);
+  }
+
+  /**
+   * For readers, timed.
+   */
+  byte[] decode(byte[] value) {
+    if (value == null || !isGzip(value)) {
+      return value;
+    }
+    final long start = System.nanoTime();
+    final byte[] raw = inflate(value);
+    decodeNanos.add(System.nanoTime() - start);
+    decodeCount.increment();
+    return raw;
+  }
+
+  private byte[] inflate(byte[] value) {
+    if (value == null || !isGzip(value)) {
+      return value;
+    }
+    final byte[] raw = new byte[rawLength(value)];
+    final Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(value, HEADER.length, value.length - HEADER.length - TRAILER_SIZE);
+    try {
+      int length = 0;
+      while (length < raw.length && !inflater.finished()) {
+        int n = inflater.inflate(raw, length, raw.length - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("Truncated compressed value");
+        }
+        length += n;
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Invalid compressed value", e);
+    }
+    return raw;
+  }
+
+  /**
+   * @return The length of the value before compression, or {@link #ABSENT} for null
+   */
+  static int decodedLength(byte[] value) {
+    if (value == null) return ABSENT;
+    return isGzip(value) ? rawLength(value) : value.length;
+  }
+
+  private void count(byte[] previous, int sign) {
+    if (previous == null) return;
+    rawBytes = rawBytes + sign * decodedLength(previous);
+    storedBytes = storedBytes + sign * previous.length;
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    return decode(stored.get(key));
+  }
+
+  /**
+   * @return The stored gzip member, or null if the value is stored uncompressed or the key wasn't found
+   */
+  public byte[] getGzip(String key) {
+    byte[] value = stored.get(key);
+    return value != null && isGzip(value) ? value : null;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return stored.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return stored.size();
+  }
+
+  @Override
+  public int getLength(String key) {
+    return decodedLength(stored.get(key));
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    return inflate(putEncoded(key, value));
+  }
+
+  @Override
+  public int putForLength(String key, byte[] value) {
+    return decodedLength(putEncoded(key, value));
+  }
+
+  /**
+   * @return The previous value as stored
+   */
+  private byte[] putEncoded(String key, byte[] value) {
+    if (value == null) {
+      return removeEncoded(key);
+    }
+    byte[] encoded = encode(value);
+    byte[] previous = stored.put(key, encoded);
+    count(encoded, 1);
+    count(previous, -1);
+    return previous;
+  }
+
+  @Override
+  public byte[] remove(Object key) {
+    return inflate(removeEncoded(key));
+  }
+
+  @Override
+  public int removeForLength(String key) {
+    return decodedLength(removeEncoded(key));
+  }
+
+  private byte[] removeEncoded(Object key) {
+    byte[] previous = stored.remove(key);
+    count(previous, -1);
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    stored.clear();
+    rawBytes = 0;
+    storedBytes = 0;
+  }
+
+  private final Set<Map.Entry<String, byte[]>> entrySet = new AbstractSet<Map.Entry<String,byte[]>>() {
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+      final Iterator<Map.Entry<String, byte[]>> entries = stored.entrySet().iterator();
+      return new Iterator<Map.Entry<String,byte[]>>() {
+
+        @Override
+        public boolean hasNext() {
+          return entries.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+          Map.Entry<String, byte[]> e = entries.next();
+          return new AbstractMap.SimpleImmutableEntry<>(e.getKey(), decode(e.getValue()));
+        }
+
+      };
+    }
+
+    @Override
+    public int size() {
+      return stored.size();
+    }
+
+  };
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return entrySet;
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return Collections.unmodifiableSet(stored.keySet());
+  }
+
+  @Override
+  public Snapshot snapshot() {
+    final Snapshot snapshot = SnapshotStore.snapshot(stored);
+    if (snapshot == null) {
+      return null;
+    }
+    return new Snapshot() {
+
+      @Override
+      public Iterator<Map.Entry<String, byte[]>> iterator() {
+        final Iterator<Map.Entry<String, byte[]>> entries = snapshot.iterator();
+        return new Iterator<Map.Entry<String,byte[]>>() {
+
+          @Override
+          public boolean hasNext() {
+            return entries.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, byte[]> next() {
+            Map.Entry<String, byte[]> e = entries.next();
+            return new AbstractMap.SimpleImmutableEntry<>(e.getKey(), decode(e.getValue()));
+          }
+
+        };
+      }
+
+      @Override
+      public void close() {
+        snapshot.close();
+      }
+
+    };
+  }
+
+  /**
+   * @return Uncompressed bytes per stored byte, over all values
+   */
+  public double getCompressionRatio() {
+    long s = storedBytes;
+    return s == 0 ? Double.NaN : (double) rawBytes / s;
+  }
+
+  public long getDecodeCount() {
+    return decodeCount.sum();
+  }
+
+  public long getDecodeNanos() {
+    return decodeNanos.sum();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[threshold=" + threshold + "," + stored + "]";
+  }
+
+}
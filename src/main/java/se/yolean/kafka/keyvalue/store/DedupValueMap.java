@@ -0,0 +1,183 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Makes keys with byte-identical values share one array, counting references per distinct value.
+ *
+ * Values are pooled by content hash and full comparison, so distinct values never collapse
+ * even if their hashes collide.
+ * Only useful on top of stores that keep the arrays they're given, i.e. on-heap ones.
+ * Readers get the shared array, which like any value in the cache must not be modified.
+ *
+ * Writes must come from a single thread, like for the delegate store.
+ */
+public class DedupValueMap extends AbstractMap<String, byte[]> implements DelegatingStore, SnapshotStore {
+
+  static final class Pooled implements Comparable<Pooled> {
+
+    final byte[] value;
+    final int hash;
+    /**
+     * Writer thread only.
+     */
+    int references = 0;
+
+    Pooled(byte[] value) {
+      this.value = value;
+      this.hash = Utf8.hash(value, 0, value.length);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Pooled && Arrays.equals(value, ((Pooled) obj).value);
+    }
+
+    /**
+     * Keeps lookups logarithmic in HashMap buckets that collide.
+     */
+    @Override
+    public int compareTo(Pooled o) {
+      return Arrays.compareUnsigned(value, o.value);
+    }
+
+  }
+
+  private final Map<String, byte[]> stored;
+
+  private final Map<Pooled, Pooled> pool = new HashMap<>();
+
+  private volatile long savedBytes = 0;
+
+  public DedupValueMap(Map<String, byte[]> stored) {
+    this.stored = stored;
+  }
+
+  @Override
+  public Map<String, byte[]> getDelegate() {
+    return stored;
+  }
+
+  private byte[] intern(byte[] value) {
+    Pooled probe = new Pooled(value);
+    Pooled pooled = pool.putIfAbsent(probe, probe);
+    if (pooled == null) {
+      pooled = probe;
+    } else {
+      savedBytes = savedBytes + value.length;
+    }
+    pooled.references++;
+    return pooled.value;
+  }
+
+  private void release(byte[] value) {
+    if (value == null) return;
+    Pooled pooled = pool.get(new Pooled(value));
+    if (pooled == null) {
+      throw new IllegalStateException("Value of length " + value.length + " isn't pooled");
+    }
+    if (--pooled.references == 0) {
+      pool.remove(pooled);
+    } else {
+      savedBytes = savedBytes - value.length;
+    }
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    return stored.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return stored.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return stored.size();
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    if (value == null) {
+      return remove(key);
+    }
+    byte[] previous = stored.put(key, intern(value));
+    release(previous);
+    return previous;
+  }
+
+  @Override
+  public byte[] remove(Object key) {
+    byte[] previous = stored.remove(key);
+    release(previous);
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    stored.clear();
+    pool.clear();
+    savedBytes = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return Collections.unmodifiableMap(stored).entrySet();
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return Collections.unmodifiableSet(stored.keySet());
+  }
+
+  @Override
+  public Snapshot snapshot() {
+    return SnapshotStore.snapshot(stored);
+  }
+
+  /**
+   * @return Bytes that would have been stored without deduplication, minus those stored
+   */
+  public long getSavedBytes() {
+    return savedBytes;
+  }
+
+  /**
+   * @return Number of distinct values
+   */
+  public int getPooledCount() {
+    return pool.size();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + stored + "]";
+  }
+
+}
@@ -0,0 +1,45 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.util.Map;
+
+/**
+ * A store that adds behavior on top of another store,
+ * for example compression on top of any of the cache types.
+ */
+public interface DelegatingStore {
+
+  Map<String, byte[]> getDelegate();
+
+  /**
+   * @return The outermost store in the chain of delegates that implements the capability,
+   *         or null if none does
+   */
+  static <T> T find(Map<String, byte[]> store, Class<T> capability) {
+    Map<String, byte[]> current = store;
+    while (current != null) {
+      if (capability.isInstance(current)) {
+        return capability.cast(current);
+      }
+      if (!(current instanceof DelegatingStore)) {
+        return null;
+      }
+      current = ((DelegatingStore) current).getDelegate();
+    }
+    return null;
+  }
+
+}
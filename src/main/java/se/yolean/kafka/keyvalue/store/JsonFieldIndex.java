@@ -0,0 +1,161 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonPointer;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonStructure;
+import javax.json.JsonValue;
+
+/**
+ * Inverted index from the value of one JSON field, located by a JSON Pointer, to the keys that have it.
+ *
+ * Strings are indexed as their content, numbers, booleans and null as JSON.
+ * Keys whose value isn't JSON, lacks the field, or has an object or array there, aren't indexed.
+ *
+ * Updated by the consume loop only, read by REST.
+ */
+public class JsonFieldIndex {
+
+  private final String name;
+
+  private final String path;
+
+  private final JsonPointer pointer;
+
+  private final Map<String, Set<String>> keysByField = new ConcurrentHashMap<>();
+
+  /**
+   * Writer thread only, so that overwrites and tombstones don't have to parse the previous value.
+   */
+  private final Map<String, String> fieldByKey = new HashMap<>();
+
+  public JsonFieldIndex(String name, String pointer) {
+    this.name = name;
+    this.path = pointer;
+    try {
+      this.pointer = Json.createPointer(pointer);
+    } catch (JsonException e) {
+      throw new RuntimeException("Invalid JSON Pointer for index " + name + ": " + pointer, e);
+    }
+  }
+
+  /**
+   * @param config Comma separated name=pointer, for example status=/status,tenant=/meta/tenant
+   */
+  public static List<JsonFieldIndex> parse(String config) {
+    List<JsonFieldIndex> indexes = new ArrayList<>();
+    for (String entry : config.split(",")) {
+      if (entry.trim().isEmpty()) continue;
+      int eq = entry.indexOf('=');
+      if (eq < 1) {
+        throw new RuntimeException("Expected index as name=pointer, got: " + entry);
+      }
+      indexes.add(new JsonFieldIndex(entry.substring(0, eq).trim(), entry.substring(eq + 1).trim()));
+    }
+    return indexes;
+  }
+
+  /**
+   * Parses once for any number of indexes.
+   *
+   * @return The value's JSON object or array, or null if it's something else
+   */
+  public static JsonStructure read(byte[] value) {
+    try (JsonReader reader = Json.createReader(new ByteArrayInputStream(value))) {
+      return reader.read();
+    } catch (JsonException e) {
+      return null;
+    }
+  }
+
+  String extract(JsonStructure json) {
+    if (json == null) {
+      return null;
+    }
+    JsonValue field;
+    try {
+      if (!pointer.containsValue(json)) {
+        return null;
+      }
+      field = pointer.getValue(json);
+    } catch (JsonException e) {
+      return null; // for example an array where the pointer expects an object
+    }
+    switch (field.getValueType()) {
+      case STRING:
+        return ((JsonString) field).getString();
+      case NUMBER:
+        return ((JsonNumber) field).toString();
+      case TRUE:
+      case FALSE:
+      case NULL:
+        return field.toString();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @param json The key's new value as returned by {@link #read(byte[])}, null for tombstones and non-JSON
+   */
+  public void update(String key, JsonStructure json) {
+    String field = extract(json);
+    String previous = field == null ? fieldByKey.remove(key) : fieldByKey.put(key, field);
+    if (field != null && field.equals(previous)) {
+      return;
+    }
+    if (previous != null) {
+      keysByField.computeIfPresent(previous, (f, keys) -> {
+        keys.remove(key);
+        return keys.isEmpty() ? null : keys;
+      });
+    }
+    if (field != null) {
+      keysByField.computeIfAbsent(field, f -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+  }
+
+  /**
+   * @return Keys whose field currently has the value, live
+   */
+  public Set<String> getKeys(String field) {
+    Set<String> keys = keysByField.get(field);
+    return keys == null ? Collections.emptySet() : Collections.unmodifiableSet(keys);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + name + "=" + path + "]";
+  }
+
+}
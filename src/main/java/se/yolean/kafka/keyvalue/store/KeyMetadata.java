@@ -0,0 +1,252 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.lang.invoke.VarHandle;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * The record that each live key's value came from, in parallel primitive arrays
+ * at about 28 bytes per slot, with no object per key.
+ *
+ * Keys are identified by a 64-bit hash only. Two keys that collide share a slot,
+ * which still reports a record at least as recent as either key's latest,
+ * so it can serve as a validator but never says a changed value is unchanged.
+ *
+ * Single writer. Readers retry on a sequence counter that is odd during writes.
+ */
+public class KeyMetadata {
+
+  public static final class Source {
+
+    private final TopicPartition topicPartition;
+    private final long offset;
+    private final long timestamp;
+
+    public Source(TopicPartition topicPartition, long offset, long timestamp) {
+      this.topicPartition = topicPartition;
+      this.offset = offset;
+      this.timestamp = timestamp;
+    }
+
+    public TopicPartition getTopicPartition() {
+      return topicPartition;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return Record timestamp in epoch millis
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    @Override
+    public String toString() {
+      return topicPartition.toString() + '-' + offset + '@' + timestamp;
+    }
+
+  }
+
+  private static final class Table {
+
+    final long[] hashes;
+    final int[] partitions;
+    final long[] offsets;
+    final long[] timestamps;
+    final int mask;
+
+    Table(int capacity) {
+      hashes = new long[capacity];
+      partitions = new int[capacity];
+      offsets = new long[capacity];
+      timestamps = new long[capacity];
+      mask = capacity - 1;
+    }
+
+  }
+
+  private static final long EMPTY = 0;
+
+  static final int READ_ATTEMPTS = 100;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Index is the id that slots store.
+   */
+  private final List<TopicPartition> partitionsById = new CopyOnWriteArrayList<>();
+
+  private final Map<TopicPartition, Integer> partitionIds = new HashMap<>();
+
+  private volatile Table table;
+
+  private int size = 0;
+
+  private volatile long sequence = 0;
+
+  public KeyMetadata(int initialSize) {
+    int capacity = 16;
+    while (capacity * 3 < initialSize * 4) {
+      capacity <<= 1;
+    }
+    table = new Table(capacity);
+  }
+
+  static long hash(String key) {
+    long h = FNV_OFFSET;
+    for (int i = 0; i < key.length(); i++) {
+      h = (h ^ key.charAt(i)) * FNV_PRIME;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == EMPTY ? 1 : h;
+  }
+
+  private static int slot(Table t, long hash) {
+    int i = (int) hash & t.mask;
+    for (int probes = 0; probes <= t.mask; probes++) {
+      long h = t.hashes[i];
+      if (h == hash || h == EMPTY) {
+        return i;
+      }
+      i = (i + 1) & t.mask;
+    }
+    return -1; // only seen by readers during a write
+  }
+
+  private void beginWrite() {
+    sequence = sequence + 1;
+    VarHandle.storeStoreFence();
+  }
+
+  private void endWrite() {
+    sequence = sequence + 1;
+  }
+
+  private int partitionId(TopicPartition partition) {
+    Integer id = partitionIds.get(partition);
+    if (id == null) {
+      id = partitionsById.size();
+      partitionsById.add(partition);
+      partitionIds.put(partition, id);
+    }
+    return id;
+  }
+
+  private Table grow(Table t) {
+    Table bigger = new Table(t.hashes.length * 2);
+    for (int i = 0; i < t.hashes.length; i++) {
+      if (t.hashes[i] == EMPTY) continue;
+      int j = slot(bigger, t.hashes[i]);
+      bigger.hashes[j] = t.hashes[i];
+      bigger.partitions[j] = t.partitions[i];
+      bigger.offsets[j] = t.offsets[i];
+      bigger.timestamps[j] = t.timestamps[i];
+    }
+    return bigger;
+  }
+
+  public void put(String key, TopicPartition partition, long offset, long timestamp) {
+    final long hash = hash(key);
+    final int id = partitionId(partition);
+    Table t = table;
+    if ((size + 1) * 4 > t.hashes.length * 3) {
+      t = grow(t);
+      table = t;
+    }
+    final int i = slot(t, hash);
+    beginWrite();
+    if (t.hashes[i] == EMPTY) {
+      t.hashes[i] = hash;
+      size++;
+    }
+    t.partitions[i] = id;
+    t.offsets[i] = offset;
+    t.timestamps[i] = timestamp;
+    endWrite();
+  }
+
+  /**
+   * Shifts later entries of the probe sequence back, so lookups never need tombstones.
+   */
+  public void remove(String key) {
+    final Table t = table;
+    int i = slot(t, hash(key));
+    if (t.hashes[i] == EMPTY) return;
+    beginWrite();
+    for (int j = (i + 1) & t.mask; t.hashes[j] != EMPTY; j = (j + 1) & t.mask) {
+      int home = (int) t.hashes[j] & t.mask;
+      boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+      if (!stays) {
+        t.hashes[i] = t.hashes[j];
+        t.partitions[i] = t.partitions[j];
+        t.offsets[i] = t.offsets[j];
+        t.timestamps[i] = t.timestamps[j];
+        i = j;
+      }
+    }
+    t.hashes[i] = EMPTY;
+    size--;
+    endWrite();
+  }
+
+  /**
+   * @return The key's source record, or null if unknown or if writes kept interfering
+   */
+  public Source get(String key) {
+    final long hash = hash(key);
+    for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+      final long before = sequence;
+      if ((before & 1) == 0) {
+        final Table t = table;
+        final int i = slot(t, hash);
+        final boolean found = i != -1 && t.hashes[i] == hash;
+        final int partition = found ? t.partitions[i] : 0;
+        final long offset = found ? t.offsets[i] : 0;
+        final long timestamp = found ? t.timestamps[i] : 0;
+        VarHandle.acquireFence();
+        if (sequence == before) {
+          return found ? new Source(partitionsById.get(partition), offset, timestamp) : null;
+        }
+      }
+      Thread.onSpinWait();
+    }
+    return null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[size=" + size + ",capacity=" + table.hashes.length + "]";
+  }
+
+}
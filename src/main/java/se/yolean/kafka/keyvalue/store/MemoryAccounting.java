@@ -0,0 +1,132 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Logical bytes of live entries, counted as UTF-8 key length plus raw value length
+ * regardless of how the cache type stores them.
+ * Compression, shared values and per-entry overhead aren't counted, so this isn't heap or disk usage.
+ * Each change is attributed to the topic-partition of the record that made it.
+ * Entries restored from disk count as restored until a record changes them, as nothing tells which partition they came from.
+ *
+ * Lengths are {@link ValueLengthStore#ABSENT} for keys without a value.
+ * Updated by the consume loop only, read by metrics and health.
+ */
+public class MemoryAccounting {
+
+  private final Map<TopicPartition, AtomicLong> partitions = new ConcurrentHashMap<>();
+
+  private volatile long total = 0;
+
+  /**
+   * Restored keys that no record has changed yet.
+   */
+  private final Set<String> restored = new HashSet<>();
+
+  private final AtomicLong restoredBytes = new AtomicLong();
+
+  public static long keyBytes(String key) {
+    return Utf8.length(key);
+  }
+
+  /**
+   * @return The value's length, or {@link ValueLengthStore#ABSENT} for null
+   */
+  public static int length(byte[] value) {
+    return value == null ? ValueLengthStore.ABSENT : value.length;
+  }
+
+  /**
+   * @return The change in bytes if a value of the length replaced the previous one
+   */
+  public static long delta(String key, int previousLength, int length) {
+    if (previousLength == ValueLengthStore.ABSENT) {
+      return length == ValueLengthStore.ABSENT ? 0 : keyBytes(key) + length;
+    }
+    if (length == ValueLengthStore.ABSENT) {
+      return -(keyBytes(key) + previousLength);
+    }
+    return length - previousLength;
+  }
+
+  /**
+   * @return A live counter that can back a gauge
+   */
+  public AtomicLong getPartitionBytes(TopicPartition partition) {
+    return partitions.computeIfAbsent(partition, p -> new AtomicLong());
+  }
+
+  /**
+   * @param previousLength Of the value that the cache replaced or removed
+   * @param length Of the value put, absent for removes
+   */
+  public void onChange(TopicPartition partition, String key, int previousLength, int length) {
+    if (previousLength != ValueLengthStore.ABSENT && !restored.isEmpty() && restored.remove(key)) {
+      long bytes = delta(key, ValueLengthStore.ABSENT, previousLength);
+      restoredBytes.addAndGet(-bytes);
+      getPartitionBytes(partition).addAndGet(bytes);
+    }
+    long delta = delta(key, previousLength, length);
+    if (delta == 0) return;
+    getPartitionBytes(partition).addAndGet(delta);
+    total = total + delta;
+  }
+
+  /**
+   * For entries that a cache type restored from disk, which no consumed record accounts for.
+   * They move to a partition at the first record that changes them.
+   */
+  public void onRestored(String key, int length) {
+    long bytes = delta(key, ValueLengthStore.ABSENT, length);
+    if (bytes == 0) return;
+    restored.add(key);
+    restoredBytes.addAndGet(bytes);
+    total = total + bytes;
+  }
+
+  /**
+   * For restored entries that are dropped before any record changed them.
+   */
+  public void onRestoredCleared(String key, int previousLength) {
+    if (previousLength == ValueLengthStore.ABSENT || !restored.remove(key)) return;
+    long bytes = delta(key, ValueLengthStore.ABSENT, previousLength);
+    restoredBytes.addAndGet(-bytes);
+    total = total - bytes;
+  }
+  /**
+   * @return A live counter of restored bytes not yet attributed to a partition, that can back a gauge
+   */
+  public AtomicLong getRestoredBytes() {
+    return restoredBytes;
+  }
+
+  public long getTotalBytes() {
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[total=" + total + "," + partitions + "]";
+  }
+
+}
@@ -0,0 +1,236 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.yolean.kafka.keyvalue.store.SlabAllocator.Chunk;
+
+/**
+ * Keeps keys and a small index on heap, values in direct buffer arenas,
+ * so heap use doesn't grow with value sizes.
+ *
+ * Single writer, many readers. Chunks are reused after overwrite or remove,
+ * so readers copy and then check that the key still maps to the same chunk.
+ *
+ * Size the JVM's -XX:MaxDirectMemorySize for the expected total of values,
+ * rounded up to the nearest power of two per value.
+ */
+public class OffHeapValueMap extends AbstractMap<String, byte[]> implements BufferEntryStore {
+
+  private final ConcurrentHashMap<String, Chunk> index;
+
+  private final SlabAllocator allocator;
+
+  public OffHeapValueMap(int initialSize, int arenaSize) {
+    this.index = new ConcurrentHashMap<>(initialSize);
+    this.allocator = new SlabAllocator(arenaSize);
+  }
+
+  /**
+   * @return The value's bytes copied from off-heap, or null if the key wasn't found
+   */
+  private byte[] read(Object key) {
+    for (;;) {
+      Chunk chunk = index.get(key);
+      if (chunk == null) {
+        return null;
+      }
+      byte[] value = chunk.copy();
+      VarHandle.loadLoadFence();
+      if (index.get(key) == chunk) {
+        return value;
+      }
+    }
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    return read(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return index.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * Writer thread only.
+   * A null value (tombstone) removes the key, as there's no off-heap representation of null.
+   */
+  @Override
+  public byte[] put(String key, byte[] value) {
+    if (value == null) {
+      return remove(key);
+    }
+    Chunk chunk = allocator.allocate(value);
+    Chunk previous = index.put(key, chunk);
+    if (previous == null) {
+      return null;
+    }
+    byte[] old = previous.copy();
+    allocator.free(previous);
+    return old;
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public byte[] remove(Object key) {
+    Chunk previous = index.remove(key);
+    if (previous == null) {
+      return null;
+    }
+    byte[] old = previous.copy();
+    allocator.free(previous);
+    return old;
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public void clear() {
+    Iterator<String> keys = index.keySet().iterator();
+    while (keys.hasNext()) {
+      allocator.free(index.remove(keys.next()));
+    }
+  }
+
+  /**
+   * Copies each value off-heap to off-heap, to a direct buffer that is reused for the whole stream,
+   * because the chunk may be reused while the channel blocks.
+   */
+  @Override
+  public void writeEntries(WritableByteChannel out) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    ByteBuffer scratch = ByteBuffer.allocateDirect(1 << SlabAllocator.MIN_CHUNK_SHIFT);
+    for (String key : index.keySet()) {
+      Chunk chunk;
+      for (;;) {
+        chunk = index.get(key);
+        if (chunk == null) break;
+        if (scratch.capacity() < chunk.length) {
+          scratch = ByteBuffer.allocateDirect(Integer.highestOneBit(chunk.length - 1) << 1);
+        }
+        ByteBuffer b = chunk.buffer.duplicate();
+        b.limit(chunk.offset + chunk.length);
+        b.position(chunk.offset);
+        scratch.clear();
+        scratch.put(b).flip();
+        VarHandle.loadLoadFence();
+        if (index.get(key) == chunk) break;
+      }
+      if (chunk == null) continue;
+      byte[] k = key.getBytes(StandardCharsets.UTF_8);
+      BufferEntryStore.writeFrame(out, header, ByteBuffer.wrap(k), k.length, scratch);
+    }
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+    private final Iterator<String> keys = index.keySet().iterator();
+    private Map.Entry<String, byte[]> next = null;
+
+    private void advance() {
+      while (next == null && keys.hasNext()) {
+        String key = keys.next();
+        byte[] value = read(key);
+        if (value != null) {
+          next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      advance();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, byte[]> e = next;
+      next = null;
+      return e;
+    }
+
+  }
+
+  private final Set<Map.Entry<String, byte[]>> entrySet = new AbstractSet<Map.Entry<String,byte[]>>() {
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return index.size();
+    }
+
+  };
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return entrySet;
+  }
+
+  /**
+   * Keys are on heap so key iteration doesn't touch the arenas.
+   */
+  @Override
+  public Set<String> keySet() {
+    return Collections.unmodifiableSet(index.keySet());
+  }
+
+  public long getReservedBytes() {
+    return allocator.getReservedBytes();
+  }
+
+  public long getChunkBytes() {
+    return allocator.getChunkBytes();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[size=" + index.size()
+        + ",arenas=" + allocator.getArenaCount() + "x" + allocator.getArenaSize()
+        + ",reserved=" + allocator.getReservedBytes() + "]";
+  }
+
+}
@@ -0,0 +1,556 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of puts and removes in memory-mapped segment files,
+ * with an on-heap index from key to value location.
+ *
+ * Record layout: int key length + 1 (0 marks end of segment), int value length (-1 for remove),
+ * int CRC32 of key and value, UTF-8 key, value.
+ *
+ * A {@link #checkpoint(Map)} forces segments to disk and then atomically replaces
+ * {@value #CHECKPOINT_FILE} with the applied offsets.
+ * On startup the segments of the checkpointed generation are replayed up to the first invalid record.
+ * Records written after the checkpoint may survive, which is fine because consumption
+ * resumes at the checkpointed offsets and re-applies them in order.
+ *
+ * When the log holds more overwritten than live bytes a checkpoint also compacts,
+ * by writing live records to a new generation of segments.
+ * Segments are never rewritten, so readers need no coordination with the writer.
+ */
+public class PersistentMappedMap extends AbstractMap<String, byte[]> implements CheckpointStore, BufferEntryStore, ValueLengthStore {
+
+  static final String CHECKPOINT_FILE = "checkpoint.properties";
+
+  static final String SEGMENT_PREFIX = "segment-";
+
+  static final String SEGMENT_SUFFIX = ".kkv";
+
+  static final String GENERATION_KEY = "generation";
+
+  static final String OFFSET_KEY_PREFIX = "offset.";
+
+  /**
+   * Epoch milliseconds.
+   */
+  static final String TIME_KEY = "time";
+
+  static final int HEADER_SIZE = 12;
+
+  static final int REMOVED = -1;
+
+  private static final Logger logger = LoggerFactory.getLogger(PersistentMappedMap.class);
+
+  static final class Segment {
+
+    final Path path;
+    final MappedByteBuffer buffer;
+
+    Segment(Path path, MappedByteBuffer buffer) {
+      this.path = path;
+      this.buffer = buffer;
+    }
+
+  }
+
+  static final class Location {
+
+    final ByteBuffer buffer;
+    final int offset;
+    final int length;
+    final int recordSize;
+
+    Location(ByteBuffer buffer, int offset, int length, int recordSize) {
+      this.buffer = buffer;
+      this.offset = offset;
+      this.length = length;
+      this.recordSize = recordSize;
+    }
+
+    byte[] copy() {
+      byte[] value = new byte[length];
+      ByteBuffer b = buffer.duplicate();
+      b.position(offset);
+      b.get(value);
+      return value;
+    }
+
+    int keyLength() {
+      return recordSize - HEADER_SIZE - length;
+    }
+
+    /**
+     * @return The record's key and value bytes, which are adjacent in the segment
+     */
+    ByteBuffer keyAndValue() {
+      ByteBuffer b = buffer.duplicate();
+      b.limit(offset + length);
+      b.position(offset - keyLength());
+      return b;
+    }
+
+  }
+
+  private final Path directory;
+
+  private final int segmentSize;
+
+  private final ConcurrentHashMap<String, Location> index;
+
+  private final Map<TopicPartition, Long> checkpointOffsets;
+
+  private Instant checkpointTime = null;
+
+  private long generation = 0;
+
+  private List<Segment> segments = new ArrayList<>();
+
+  /**
+   * Segments from this index on have unforced writes.
+   */
+  private int firstDirty = 0;
+
+  private ByteBuffer writer = null;
+
+  private long liveBytes = 0;
+
+  private long logBytes = 0;
+
+  private final CRC32 crc = new CRC32();
+
+  public PersistentMappedMap(Path directory, int initialSize, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.index = new ConcurrentHashMap<>(initialSize);
+    try {
+      Files.createDirectories(directory);
+      this.checkpointOffsets = Collections.unmodifiableMap(readCheckpoint());
+      deleteSegmentsExcept(generation);
+      replay();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open persistent cache at " + directory, e);
+    }
+  }
+
+  private Map<TopicPartition, Long> readCheckpoint() throws IOException {
+    Path file = directory.resolve(CHECKPOINT_FILE);
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    if (!Files.exists(file)) {
+      // Without a checkpoint we can't tell what the segments correspond to
+      generation = -1;
+      return offsets;
+    }
+    Properties checkpoint = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      checkpoint.load(in);
+    }
+    generation = Long.parseLong(checkpoint.getProperty(GENERATION_KEY));
+    String time = checkpoint.getProperty(TIME_KEY);
+    if (time != null) {
+      checkpointTime = Instant.ofEpochMilli(Long.parseLong(time));
+    }
+    for (String name : checkpoint.stringPropertyNames()) {
+      if (!name.startsWith(OFFSET_KEY_PREFIX)) continue;
+      String tp = name.substring(OFFSET_KEY_PREFIX.length());
+      int dash = tp.lastIndexOf('-');
+      offsets.put(new TopicPartition(tp.substring(0, dash), Integer.parseInt(tp.substring(dash + 1))),
+          Long.parseLong(checkpoint.getProperty(name)));
+    }
+    logger.info("Found checkpoint generation {} from {} with offsets {}", generation, checkpointTime, offsets);
+    return offsets;
+  }
+
+  private void writeCheckpoint(Map<TopicPartition, Long> offsets) throws IOException {
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty(GENERATION_KEY, Long.toString(generation));
+    checkpoint.setProperty(TIME_KEY, Long.toString(System.currentTimeMillis()));
+    offsets.forEach((tp, offset) -> checkpoint.setProperty(OFFSET_KEY_PREFIX + tp, Long.toString(offset)));
+    Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+    try (OutputStream out = Files.newOutputStream(tmp)) {
+      checkpoint.store(out, null);
+    }
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private Path segmentPath(long generation, int number) {
+    return directory.resolve(String.format("%s%d-%08d%s", SEGMENT_PREFIX, generation, number, SEGMENT_SUFFIX));
+  }
+
+  private void deleteSegmentsExcept(long keep) throws IOException {
+    String prefix = SEGMENT_PREFIX + keep + "-";
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        if (!file.getFileName().toString().startsWith(prefix)) {
+          logger.info("Deleting segment {} that isn't part of checkpoint generation {}", file, keep);
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  private static MappedByteBuffer map(Path path, int size) throws IOException {
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    }
+  }
+
+  private void replay() throws IOException {
+    if (generation == -1) {
+      generation = 0;
+      return;
+    }
+    for (int number = 0;; number++) {
+      Path path = segmentPath(generation, number);
+      if (!Files.exists(path)) break;
+      Segment segment = new Segment(path, map(path, 0));
+      segments.add(segment);
+      writer = segment.buffer.duplicate();
+      if (!replay(writer)) {
+        // Pages may have been flushed out of order, so anything after an invalid record is unreliable
+        for (int i = writer.position(); i < writer.limit(); i++) {
+          writer.put(i, (byte) 0);
+        }
+        for (int later = number + 1; Files.deleteIfExists(segmentPath(generation, later)); later++) {
+          logger.warn("Deleted segment {} that follows an invalid record", later);
+        }
+        break;
+      }
+    }
+    firstDirty = Math.max(0, segments.size() - 1);
+    logger.info("Replayed {} keys from {} segments, {} of {} bytes live", index.size(), segments.size(), liveBytes, logBytes);
+  }
+
+  /**
+   * @return true if the segment ended normally, false at an invalid record
+   */
+  private boolean replay(ByteBuffer b) {
+    while (b.remaining() >= HEADER_SIZE) {
+      int start = b.position();
+      int keyLength = b.getInt() - 1;
+      if (keyLength == -1) {
+        b.position(start);
+        return true;
+      }
+      int valueLength = b.getInt();
+      int checksum = b.getInt();
+      if (keyLength < 0 || valueLength < REMOVED || keyLength + (long) Math.max(0, valueLength) > b.remaining()) {
+        logger.warn("Invalid record header at {}, stopping replay", start);
+        b.position(start);
+        return false;
+      }
+      byte[] key = new byte[keyLength];
+      b.get(key);
+      int valueOffset = b.position();
+      crc.reset();
+      crc.update(key);
+      if (valueLength > 0) {
+        ByteBuffer value = b.duplicate();
+        value.limit(valueOffset + valueLength);
+        crc.update(value);
+        b.position(valueOffset + valueLength);
+      }
+      if ((int) crc.getValue() != checksum) {
+        logger.warn("Checksum mismatch at {}, stopping replay", start);
+        b.position(start);
+        return false;
+      }
+      int recordSize = b.position() - start;
+      logBytes += recordSize;
+      String k = new String(key, StandardCharsets.UTF_8);
+      Location previous;
+      if (valueLength == REMOVED) {
+        previous = index.remove(k);
+      } else {
+        Location location = new Location(b, valueOffset, valueLength, recordSize);
+        liveBytes += recordSize;
+        previous = index.put(k, location);
+      }
+      if (previous != null) {
+        liveBytes -= previous.recordSize;
+      }
+    }
+    return true;
+  }
+
+  private ByteBuffer writerFor(int recordSize) throws IOException {
+    if (writer == null || writer.remaining() < recordSize) {
+      Path path = segmentPath(generation, segments.size());
+      Segment segment = new Segment(path, map(path, Math.max(segmentSize, recordSize)));
+      segments.add(segment);
+      writer = segment.buffer.duplicate();
+    }
+    return writer;
+  }
+
+  /**
+   * @return The value's location, or null for removes
+   */
+  private Location append(byte[] key, byte[] value) throws IOException {
+    int valueLength = value == null ? REMOVED : value.length;
+    int recordSize = HEADER_SIZE + key.length + Math.max(0, valueLength);
+    crc.reset();
+    crc.update(key);
+    if (value != null) crc.update(value);
+    ByteBuffer b = writerFor(recordSize);
+    b.putInt(key.length + 1);
+    b.putInt(valueLength);
+    b.putInt((int) crc.getValue());
+    b.put(key);
+    logBytes += recordSize;
+    if (value == null) {
+      return null;
+    }
+    int valueOffset = b.position();
+    b.put(value);
+    liveBytes += recordSize;
+    return new Location(segments.get(segments.size() - 1).buffer, valueOffset, valueLength, recordSize);
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    Location location = index.get(key);
+    return location == null ? null : location.copy();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return index.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public int getLength(String key) {
+    Location location = index.get(key);
+    return location == null ? ABSENT : location.length;
+  }
+
+  /**
+   * Writer thread only.
+   * A null value (tombstone) is logged as a remove.
+   */
+  @Override
+  public synchronized byte[] put(String key, byte[] value) {
+    Location previous = update(key, value);
+    return previous == null ? null : previous.copy();
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public synchronized int putForLength(String key, byte[] value) {
+    Location previous = update(key, value);
+    return previous == null ? ABSENT : previous.length;
+  }
+
+  private Location update(String key, byte[] value) {
+    Location previous;
+    try {
+      Location location = append(key.getBytes(StandardCharsets.UTF_8), value);
+      previous = location == null ? index.remove(key) : index.put(key, location);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to append to persistent cache, key " + key, e);
+    }
+    if (previous != null) {
+      liveBytes -= previous.recordSize;
+    }
+    return previous;
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public byte[] remove(Object key) {
+    if (!(key instanceof String) || !index.containsKey(key)) {
+      return null;
+    }
+    return put((String) key, null);
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public int removeForLength(String key) {
+    if (!index.containsKey(key)) {
+      return ABSENT;
+    }
+    return putForLength(key, null);
+  }
+
+  @Override
+  public Map<TopicPartition, Long> getCheckpointOffsets() {
+    return checkpointOffsets;
+  }
+
+  @Override
+  public Instant getCheckpointTime() {
+    return checkpointTime;
+  }
+
+  @Override
+  public synchronized void checkpoint(Map<TopicPartition, Long> appliedOffsets) {
+    try {
+      boolean compacted = false;
+      if (logBytes > 2 * liveBytes && segments.size() > 1) {
+        compact();
+        compacted = true;
+      }
+      for (int i = firstDirty; i < segments.size(); i++) {
+        segments.get(i).buffer.force();
+      }
+      firstDirty = Math.max(0, segments.size() - 1);
+      writeCheckpoint(appliedOffsets);
+      if (compacted) {
+        deleteSegmentsExcept(generation);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to checkpoint persistent cache at " + directory, e);
+    }
+  }
+
+  /**
+   * Writes live records to a new generation, to be referenced by the next checkpoint.
+   * Old segments stay mapped for as long as readers refer to them.
+   */
+  private void compact() throws IOException {
+    final long before = logBytes;
+    final List<Segment> old = segments;
+    generation++;
+    segments = new ArrayList<>();
+    writer = null;
+    firstDirty = 0;
+    logBytes = 0;
+    liveBytes = 0;
+    for (Map.Entry<String, Location> entry : index.entrySet()) {
+      index.put(entry.getKey(), append(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue().copy()));
+    }
+    logger.info("Compacted {} segments of {} bytes to {} segments of {} bytes, generation {}",
+        old.size(), before, segments.size(), logBytes, generation);
+  }
+
+  /**
+   * Writes key and value straight from the mapped segments, as records are never rewritten.
+   */
+  @Override
+  public void writeEntries(WritableByteChannel out) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    for (Location location : index.values()) {
+      BufferEntryStore.writeFrame(out, header, null, location.keyLength(), location.keyAndValue());
+    }
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+    private final Iterator<Map.Entry<String, Location>> entries = index.entrySet().iterator();
+
+    @Override
+    public boolean hasNext() {
+      return entries.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      if (!entries.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, Location> e = entries.next();
+      return new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().copy());
+    }
+
+  }
+
+  private final Set<Map.Entry<String, byte[]>> entrySet = new AbstractSet<Map.Entry<String,byte[]>>() {
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return index.size();
+    }
+
+  };
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return entrySet;
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return Collections.unmodifiableSet(index.keySet());
+  }
+
+  long getLiveBytes() {
+    return liveBytes;
+  }
+
+  long getLogBytes() {
+    return logBytes;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + directory + ",size=" + index.size()
+        + ",generation=" + generation + ",segments=" + segments.size() + "]";
+  }
+
+}
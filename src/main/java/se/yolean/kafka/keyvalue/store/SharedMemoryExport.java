@@ -0,0 +1,402 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the cache as a memory-mapped file that co-located processes read in place,
+ * with the reader in the shm module. The consume loop is the only writer.
+ *
+ * Layout, little endian, see shm/README.md:
+ * a {@value #HEADER_SIZE} byte header, an index of power-of-two capacity slots of {@value #SLOT_SIZE} bytes
+ * (long key hash, long record position), and a data region of records
+ * (int key length, int value length, UTF-8 key, value, padded to 8 bytes).
+ *
+ * Records are never modified once written, so only index reads need the header's sequence,
+ * which is odd while slots change. When the data region or the index is full the live records are
+ * written to a new file that replaces the old one at the same path, and the old one is flagged stale.
+ */
+public class SharedMemoryExport implements Closeable {
+
+  static final int MAGIC = 0x53564b4b; // "KKVS" as little endian bytes
+
+  static final int VERSION = 1;
+
+  static final int HEADER_SIZE = 64;
+
+  static final int SLOT_SIZE = 16;
+
+  static final int RECORD_HEADER_SIZE = 8;
+
+  static final int MAGIC_POSITION = 0;
+  static final int VERSION_POSITION = 4;
+  static final int SEQUENCE_POSITION = 8;
+  static final int STALE_POSITION = 16;
+  static final int CAPACITY_POSITION = 24;
+  static final int COUNT_POSITION = 32;
+  static final int DATA_POSITION = 40;
+  static final int DATA_END_POSITION = 48;
+  static final int READY_POSITION = 56;
+
+  static final long EMPTY = 0;
+
+  static final long DELETED = 1;
+
+  static final int MAX_FILE_SIZE = Integer.MAX_VALUE & ~7;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final Logger logger = LoggerFactory.getLogger(SharedMemoryExport.class);
+
+  private final Path path;
+
+  private final int minDataSize;
+
+  private MappedByteBuffer file = null;
+
+  private int capacity;
+
+  private int dataPosition;
+
+  private int dataEnd;
+
+  private long sequence = 0;
+
+  private int count = 0;
+
+  /**
+   * Live plus deleted slots.
+   */
+  private int used = 0;
+
+  private long liveBytes = 0;
+
+  private volatile boolean ready = false;
+
+  /**
+   * @param path Preferably in a memory-backed volume that the reading process mounts too
+   * @param initialSize Expected number of keys
+   * @param dataSize Initial size of the data region
+   */
+  public SharedMemoryExport(Path path, int initialSize, int dataSize) {
+    this.path = path;
+    this.minDataSize = align(Math.max(dataSize, 4096));
+    flagStale(path);
+    int capacity = 16;
+    while (capacity * 3L < initialSize * 4L) {
+      capacity <<= 1;
+    }
+    try {
+      publish(create(capacity, minDataSize));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to create shared memory export " + path, e);
+    }
+    logger.info("Shared memory export at {} with {} slots", path, capacity);
+  }
+
+  /**
+   * Readers of a file left by a previous process should move to the one that replaces it.
+   */
+  private static void flagStale(Path path) {
+    if (!Files.exists(path)) return;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (channel.size() < HEADER_SIZE) return;
+      MappedByteBuffer previous = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      previous.order(ByteOrder.LITTLE_ENDIAN);
+      if (previous.getInt(MAGIC_POSITION) == MAGIC) {
+        LONGS.setRelease(previous, STALE_POSITION, 1L);
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to flag previous shared memory export {} stale", path, e);
+    }
+  }
+
+  static int align(long size) {
+    long aligned = (size + 7) & ~7L;
+    if (aligned > MAX_FILE_SIZE) {
+      throw new IllegalStateException("Shared memory export can't exceed " + MAX_FILE_SIZE + " bytes");
+    }
+    return (int) aligned;
+  }
+
+  /**
+   * FNV-1a of the UTF-8 key, then the murmur3 finalizer, with 0 and 1 reserved for empty and deleted slots.
+   */
+  static long hash(byte[] key) {
+    long h = FNV_OFFSET;
+    for (byte b : key) {
+      h ^= b & 0xff;
+      h *= FNV_PRIME;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == EMPTY || h == DELETED ? 2 : h;
+  }
+
+  /**
+   * Writes a new file next to the path, to be moved into place once it has all records.
+   */
+  private MappedByteBuffer create(int capacity, int dataSize) throws IOException {
+    this.capacity = capacity;
+    this.dataPosition = align(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+    this.dataEnd = dataPosition;
+    int size = align((long) dataPosition + dataSize);
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    MappedByteBuffer created;
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      created = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+    created.order(ByteOrder.LITTLE_ENDIAN);
+    created.putInt(MAGIC_POSITION, MAGIC);
+    created.putInt(VERSION_POSITION, VERSION);
+    created.putLong(CAPACITY_POSITION, capacity);
+    created.putLong(DATA_POSITION, dataPosition);
+    created.putLong(DATA_END_POSITION, dataEnd);
+    created.putLong(READY_POSITION, ready ? 1 : 0);
+    return created;
+  }
+
+  private void publish(MappedByteBuffer created) throws IOException {
+    created.putLong(COUNT_POSITION, count);
+    created.putLong(DATA_END_POSITION, dataEnd);
+    Files.move(path.resolveSibling(path.getFileName() + ".tmp"), path,
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    MappedByteBuffer previous = file;
+    file = created;
+    if (previous != null) {
+      LONGS.setRelease(previous, STALE_POSITION, 1L);
+    }
+  }
+
+  private static int slotPosition(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private boolean keyEquals(int record, byte[] key) {
+    if (file.getInt(record) != key.length) return false;
+    for (int i = 0; i < key.length; i++) {
+      if (file.get(record + RECORD_HEADER_SIZE + i) != key[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return The slot with the key, or if absent the complement of the slot to insert it at
+   */
+  private int find(byte[] key, long hash) {
+    final int mask = capacity - 1;
+    int insert = -1;
+    for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+      long h = file.getLong(slotPosition(slot));
+      if (h == EMPTY) {
+        return ~(insert == -1 ? slot : insert);
+      }
+      if (h == DELETED) {
+        if (insert == -1) insert = slot;
+      } else if (h == hash && keyEquals((int) file.getLong(slotPosition(slot) + 8), key)) {
+        return slot;
+      }
+    }
+  }
+
+  private static int recordSize(int keyLength, int valueLength) {
+    return align((long) RECORD_HEADER_SIZE + keyLength + valueLength);
+  }
+
+  private int recordSizeAt(int record) {
+    return recordSize(file.getInt(record), file.getInt(record + 4));
+  }
+
+  private int append(byte[] key, byte[] value) {
+    int record = dataEnd;
+    file.putInt(record, key.length);
+    file.putInt(record + 4, value.length);
+    ByteBuffer b = file.duplicate();
+    b.position(record + RECORD_HEADER_SIZE);
+    b.put(key).put(value);
+    dataEnd += recordSize(key.length, value.length);
+    return record;
+  }
+
+  private void beginWrite() {
+    LONGS.setVolatile(file, SEQUENCE_POSITION, ++sequence);
+    VarHandle.storeStoreFence();
+  }
+
+  private void endWrite() {
+    file.putLong(COUNT_POSITION, count);
+    file.putLong(DATA_END_POSITION, dataEnd);
+    LONGS.setRelease(file, SEQUENCE_POSITION, ++sequence);
+  }
+
+  /**
+   * Writer thread only.
+   */
+  public void put(String key, byte[] value) {
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    int size = recordSize(k.length, value.length);
+    if ((long) dataEnd + size > file.capacity() || (used + 1) * 4L > capacity * 3L) {
+      rebuild(size);
+    }
+    long hash = hash(k);
+    int slot = find(k, hash);
+    int record = append(k, value);
+    beginWrite();
+    if (slot < 0) {
+      slot = ~slot;
+      if (file.getLong(slotPosition(slot)) == EMPTY) used++;
+      file.putLong(slotPosition(slot), hash);
+      count++;
+    } else {
+      liveBytes -= recordSizeAt((int) file.getLong(slotPosition(slot) + 8));
+    }
+    file.putLong(slotPosition(slot) + 8, record);
+    endWrite();
+    liveBytes += size;
+  }
+
+  /**
+   * Writer thread only.
+   */
+  public void remove(String key) {
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    int slot = find(k, hash(k));
+    if (slot < 0) return;
+    liveBytes -= recordSizeAt((int) file.getLong(slotPosition(slot) + 8));
+    beginWrite();
+    file.putLong(slotPosition(slot), DELETED);
+    count--;
+    endWrite();
+  }
+
+  /**
+   * Writer thread only. Lets readers tell if the export lags behind the topic, like cache readiness.
+   */
+  public void setReady(boolean ready) {
+    if (ready == this.ready) return;
+    this.ready = ready;
+    LONGS.setRelease(file, READY_POSITION, ready ? 1L : 0L);
+  }
+
+  /**
+   * Copies live records to a new file, with twice the index slots if more than half are live
+   * and a data region of at least twice the live bytes.
+   */
+  private void rebuild(int extra) {
+    final MappedByteBuffer old = file;
+    final int oldCapacity = capacity;
+    final int oldDataEnd = dataEnd;
+    int newCapacity = (count + 1) * 2L > oldCapacity ? oldCapacity * 2 : oldCapacity;
+    int dataSize = align(Math.max(minDataSize, 2 * (liveBytes + extra)));
+    try {
+      file = create(newCapacity, dataSize);
+      count = 0;
+      used = 0;
+      for (int slot = 0; slot < oldCapacity; slot++) {
+        long h = old.getLong(slotPosition(slot));
+        if (h == EMPTY || h == DELETED) continue;
+        int record = (int) old.getLong(slotPosition(slot) + 8);
+        int size = recordSize(old.getInt(record), old.getInt(record + 4));
+        int copy = dataEnd;
+        for (int i = 0; i < size; i += 8) {
+          file.putLong(copy + i, old.getLong(record + i));
+        }
+        dataEnd += size;
+        int s = (int) h & (newCapacity - 1);
+        while (file.getLong(slotPosition(s)) != EMPTY) {
+          s = (s + 1) & (newCapacity - 1);
+        }
+        file.putLong(slotPosition(s), h);
+        file.putLong(slotPosition(s) + 8, copy);
+        count++;
+        used++;
+      }
+      MappedByteBuffer created = file;
+      file = old;
+      publish(created);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to grow shared memory export " + path, e);
+    }
+    logger.info("Shared memory export rewritten with {} of {} bytes used and {} slots, was {} bytes",
+        dataEnd, file.capacity(), capacity, oldDataEnd);
+  }
+
+  /**
+   * Like readers do it, mainly for tests.
+   *
+   * @return A copy of the value, or null if not found
+   */
+  byte[] get(String key) {
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    int slot = find(k, hash(k));
+    if (slot < 0) return null;
+    int record = (int) file.getLong(slotPosition(slot) + 8);
+    int keyLength = file.getInt(record);
+    byte[] value = new byte[file.getInt(record + 4)];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = file.get(record + RECORD_HEADER_SIZE + keyLength + i);
+    }
+    return value;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Flags the file stale, so that readers don't mistake it for a live export.
+   */
+  @Override
+  public void close() {
+    LONGS.setRelease(file, STALE_POSITION, 1L);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + path + ",size=" + count + ",slots=" + capacity
+        + ",data=" + (dataEnd - dataPosition) + "/" + (file.capacity() - dataPosition) + "]";
+  }
+
+}
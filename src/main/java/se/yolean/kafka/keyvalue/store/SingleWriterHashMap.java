@@ -0,0 +1,563 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash map for exactly one writer thread (the consume loop)
+ * and any number of reader threads (REST workers), without locks.
+ *
+ * Slots hold immutable entries, so a reader sees either the old or the new value.
+ * Growth copies live entries to a new table which is then published,
+ * leaving the table that readers might hold intact.
+ *
+ * Iterators are weakly consistent: they traverse the table that was current
+ * when iteration started and never throw {@link java.util.ConcurrentModificationException}.
+ *
+ * Every write gets a version number. While a {@link #snapshot()} is open the writer links
+ * replaced and removed entries from the new one, so that the snapshot reads the versions it pinned.
+ * Versions that no open snapshot can read are dropped on the next write to the key, or at rehash.
+ * A snapshot that stays open longer than the max pin age is released by the writer,
+ * after which its iterators throw instead of reading versions that may have been dropped.
+ *
+ * Mutating methods must only be called from the writer thread.
+ */
+public class SingleWriterHashMap extends AbstractMap<String, byte[]> implements SnapshotStore {
+
+  static final int MIN_CAPACITY = 16;
+
+  static final float LOAD_FACTOR = 0.75f;
+
+  static final class Entry implements Map.Entry<String, byte[]> {
+
+    final String key;
+    final int hash;
+    /**
+     * Null if this version is a remove.
+     */
+    final byte[] value;
+    final long version;
+    /**
+     * The previous version, if an open snapshot may read it.
+     */
+    final Entry older;
+
+    Entry(String key, int hash, byte[] value, long version, Entry older) {
+      this.key = key;
+      this.hash = hash;
+      this.value = value;
+      this.version = version;
+      this.older = older;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public byte[] getValue() {
+      return value;
+    }
+
+    @Override
+    public byte[] setValue(byte[] value) {
+      throw new UnsupportedOperationException("Entries are immutable, use put");
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + (value == null ? null : value.length + " bytes");
+    }
+
+  }
+
+  /**
+   * Marks a removed entry so that probing continues past it.
+   */
+  static final Entry DELETED = new Entry(null, 0, null, 0, null);
+
+  static final long NOT_PINNED = Long.MAX_VALUE;
+
+  static final class Pin {
+
+    final long version;
+    final long since = System.nanoTime();
+    /**
+     * Set when the snapshot is closed or expired, after which the writer may drop the versions it reads.
+     */
+    volatile boolean released = false;
+
+    Pin(long version) {
+      this.version = version;
+    }
+
+  }
+
+  private volatile AtomicReferenceArray<Entry> table;
+
+  private volatile long version = 0;
+
+  /**
+   * Open snapshots, guarded by itself.
+   */
+  private final List<Pin> pins = new ArrayList<>();
+
+  private volatile long oldestPinned = NOT_PINNED;
+
+  /**
+   * {@link System#nanoTime()} when the longest open snapshot was taken, if any.
+   */
+  private volatile long oldestPinSince = 0;
+
+  private final long maxPinAgeNanos;
+
+  private volatile int size = 0;
+
+  /**
+   * Live plus deleted slots, only accessed by the writer.
+   */
+  private int used = 0;
+
+  public SingleWriterHashMap(int initialSize) {
+    this(initialSize, null);
+  }
+
+  /**
+   * @param maxPinAge How long a snapshot may keep replaced and removed versions, null for no limit
+   */
+  public SingleWriterHashMap(int initialSize, Duration maxPinAge) {
+    table = new AtomicReferenceArray<>(capacityFor(initialSize));
+    maxPinAgeNanos = maxPinAge == null ? Long.MAX_VALUE : maxPinAge.toNanos();
+  }
+
+  static int capacityFor(int entries) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * LOAD_FACTOR < entries) {
+      capacity = capacity << 1;
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("Unsupported size " + entries);
+      }
+    }
+    return capacity;
+  }
+
+  static int hash(String key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private Entry find(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    final int hash = hash(k);
+    final AtomicReferenceArray<Entry> t = table;
+    final int mask = t.length() - 1;
+    for (int i = hash & mask;; i = (i + 1) & mask) {
+      Entry e = t.getAcquire(i);
+      if (e == null) {
+        return null;
+      }
+      if (e != DELETED && e.hash == hash && k.equals(e.key)) {
+        return e.value == null ? null : e;
+      }
+    }
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    Entry e = find(key);
+    return e == null ? null : e.value;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return find(key) != null;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The versions in the chain that a snapshot at or after the oldest pinned version may read,
+   *         or null if there are none
+   */
+  static Entry history(Entry e, long oldest) {
+    if (e == null || oldest == NOT_PINNED) {
+      return null;
+    }
+    if (e.version <= oldest) {
+      if (e.value == null) {
+        return null;
+      }
+      return e.older == null ? e : new Entry(e.key, e.hash, e.value, e.version, null);
+    }
+    Entry older = history(e.older, oldest);
+    return older == e.older ? e : new Entry(e.key, e.hash, e.value, e.version, older);
+  }
+
+  /**
+   * @return The entry without versions that no snapshot can read, or null if nothing is left of it
+   */
+  static Entry prune(Entry e, long oldest) {
+    Entry older = e.version > oldest ? history(e.older, oldest) : null;
+    if (e.value == null && older == null) {
+      return null;
+    }
+    return older == e.older ? e : new Entry(e.key, e.hash, e.value, e.version, older);
+  }
+
+  /**
+   * @return The version that a snapshot reads, or null if the key was absent
+   */
+  static Entry at(Entry e, long version) {
+    while (e != null && e.version > version) {
+      e = e.older;
+    }
+    return e == null || e.value == null ? null : e;
+  }
+
+  /**
+   * Writer thread only.
+   * A null value (tombstone) removes the key.
+   */
+  @Override
+  public byte[] put(String key, byte[] value) {
+    if (key == null) {
+      throw new NullPointerException("Null keys are not supported");
+    }
+    if (value == null) {
+      return remove(key);
+    }
+    final int hash = hash(key);
+    // Published before the pin check, see snapshot()
+    final long v = version + 1;
+    version = v;
+    if (oldestPinned != NOT_PINNED) {
+      expirePins();
+    }
+    final long oldest = oldestPinned;
+    AtomicReferenceArray<Entry> t = table;
+    final int mask = t.length() - 1;
+    int firstDeleted = -1;
+    for (int i = hash & mask;; i = (i + 1) & mask) {
+      Entry e = t.getPlain(i);
+      if (e == null) {
+        if (firstDeleted != -1) {
+          t.setRelease(firstDeleted, new Entry(key, hash, value, v, null));
+        } else {
+          t.setRelease(i, new Entry(key, hash, value, v, null));
+          used++;
+        }
+        size = size + 1;
+        if (used > t.length() * LOAD_FACTOR) {
+          rehash();
+        }
+        return null;
+      }
+      if (e == DELETED) {
+        if (firstDeleted == -1) firstDeleted = i;
+      } else if (e.hash == hash && key.equals(e.key)) {
+        t.setRelease(i, new Entry(key, hash, value, v, history(e, oldest)));
+        if (e.value == null) {
+          size = size + 1;
+        }
+        return e.value;
+      }
+    }
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public byte[] remove(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    final int hash = hash(k);
+    final AtomicReferenceArray<Entry> t = table;
+    final int mask = t.length() - 1;
+    for (int i = hash & mask;; i = (i + 1) & mask) {
+      Entry e = t.getPlain(i);
+      if (e == null) {
+        return null;
+      }
+      if (e != DELETED && e.hash == hash && k.equals(e.key)) {
+        if (e.value == null) {
+          return null;
+        }
+        final long v = version + 1;
+        version = v;
+        if (oldestPinned != NOT_PINNED) {
+          expirePins();
+        }
+        final Entry older = history(e, oldestPinned);
+        t.setRelease(i, older == null ? DELETED : new Entry(k, hash, null, v, older));
+        size = size - 1;
+        // While pinned, removed entries are kept anyway, so shrinking would only copy them again
+        if (t.length() > MIN_CAPACITY && size < t.length() / 8 && oldestPinned == NOT_PINNED) {
+          rehash();
+        }
+        return e.value;
+      }
+    }
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public void clear() {
+    table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    used = 0;
+    size = 0;
+  }
+
+  /**
+   * Copies live entries to a new table, sized for the entries it gets and without deleted markers,
+   * then publishes it for readers.
+   * Removed entries are kept only if an open snapshot may read them, and then they need slots too.
+   */
+  private void rehash() {
+    final AtomicReferenceArray<Entry> old = table;
+    final long oldest = oldestPinned;
+    final Entry[] kept = new Entry[old.length()];
+    int count = 0;
+    for (int j = 0; j < old.length(); j++) {
+      Entry e = old.getPlain(j);
+      if (e == null || e == DELETED) continue;
+      e = prune(e, oldest);
+      if (e == null) continue;
+      kept[count++] = e;
+    }
+    final AtomicReferenceArray<Entry> t = new AtomicReferenceArray<>(capacityFor(count * 2));
+    final int mask = t.length() - 1;
+    for (int j = 0; j < count; j++) {
+      int i = kept[j].hash & mask;
+      while (t.getPlain(i) != null) {
+        i = (i + 1) & mask;
+      }
+      t.setPlain(i, kept[j]);
+    }
+    used = count;
+    table = t;
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+    private final AtomicReferenceArray<Entry> t = table;
+    private int index = 0;
+    private Entry next = null;
+
+    private void advance() {
+      while (next == null && index < t.length()) {
+        Entry e = t.getAcquire(index++);
+        if (e != null && e != DELETED && e.value != null) {
+          next = e;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      advance();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Entry e = next;
+      next = null;
+      return e;
+    }
+
+  }
+
+  private final Set<Map.Entry<String, byte[]>> entrySet = new AbstractSet<Map.Entry<String,byte[]>>() {
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+  };
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return entrySet;
+  }
+
+  /**
+   * Guarded by pins.
+   */
+  private void updateOldestPinned() {
+    long oldest = NOT_PINNED;
+    long since = 0;
+    for (int i = 0; i < pins.size(); i++) {
+      Pin pin = pins.get(i);
+      if (pin.version < oldest) oldest = pin.version;
+      if (i == 0 || pin.since - since < 0) since = pin.since;
+    }
+    oldestPinSince = since;
+    oldestPinned = oldest;
+  }
+
+  private void pin(Pin pin) {
+    synchronized (pins) {
+      pins.add(pin);
+      updateOldestPinned();
+    }
+  }
+
+  private void unpin(Pin pin) {
+    synchronized (pins) {
+      pin.released = true;
+      if (pins.remove(pin)) {
+        updateOldestPinned();
+      }
+    }
+  }
+
+  /**
+   * Writer thread only, so that the pins it drops are gone before it reads the oldest pinned version.
+   */
+  private void expirePins() {
+    final long now = System.nanoTime();
+    if (now - oldestPinSince <= maxPinAgeNanos) {
+      return;
+    }
+    synchronized (pins) {
+      if (pins.removeIf(pin -> {
+        if (now - pin.since <= maxPinAgeNanos) return false;
+        pin.released = true;
+        return true;
+      })) {
+        updateOldestPinned();
+      }
+    }
+  }
+
+  /**
+   * Lock-free for the writer. The writer publishes a new version before it checks for pins,
+   * and a snapshot pins before it checks that the version is unchanged,
+   * so either the writer keeps history for the pin or the snapshot retries.
+   */
+  @Override
+  public Snapshot snapshot() {
+    for (;;) {
+      final Pin pin = new Pin(version);
+      pin(pin);
+      if (version == pin.version) {
+        return new VersionSnapshot(pin, table);
+      }
+      unpin(pin);
+      Thread.onSpinWait();
+    }
+  }
+
+  private class VersionSnapshot implements Snapshot {
+
+    private final Pin pin;
+    private final long v;
+    private final AtomicReferenceArray<Entry> t;
+
+    VersionSnapshot(Pin pin, AtomicReferenceArray<Entry> t) {
+      this.pin = pin;
+      this.v = pin.version;
+      this.t = t;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+      return new Iterator<Map.Entry<String,byte[]>>() {
+
+        private int index = 0;
+        private Entry next = null;
+
+        private void advance() {
+          while (next == null && index < t.length()) {
+            Entry e = t.getAcquire(index++);
+            if (e != null && e != DELETED) {
+              // After the read, so that an entry written once the pin was dropped is never returned
+              if (pin.released) {
+                throw new IllegalStateException("Snapshot at version " + v + " was closed or expired");
+              }
+              next = at(e, v);
+            }
+          }
+        }
+
+        @Override
+        public boolean hasNext() {
+          advance();
+          return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+          advance();
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          Entry e = next;
+          next = null;
+          return e;
+        }
+
+      };
+    }
+
+    @Override
+    public void close() {
+      unpin(pin);
+    }
+
+  }
+
+  long getVersion() {
+    return version;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[size=" + size + ",capacity=" + table.length() + "]";
+  }
+
+}
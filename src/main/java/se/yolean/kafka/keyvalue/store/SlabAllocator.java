@@ -0,0 +1,215 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hands out power-of-two sized chunks from direct buffer arenas,
+ * with one free list per size class.
+ *
+ * Not thread safe; only the writer allocates and frees.
+ * Chunks are immutable so readers can copy from them,
+ * but must verify afterwards that the chunk wasn't freed and reused meanwhile.
+ */
+class SlabAllocator {
+
+  static final int MIN_CHUNK_SHIFT = 5;
+
+  static final class Chunk {
+
+    final ByteBuffer buffer;
+    /**
+     * -1 for dedicated buffers that are dropped on free
+     */
+    final int arena;
+    final int offset;
+    final int length;
+
+    Chunk(ByteBuffer buffer, int arena, int offset, int length) {
+      this.buffer = buffer;
+      this.arena = arena;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    byte[] copy() {
+      byte[] value = new byte[length];
+      ByteBuffer b = buffer.duplicate();
+      b.position(offset);
+      b.get(value);
+      return value;
+    }
+
+  }
+
+  /**
+   * Growable stack of free chunk addresses, arena index in the high bits.
+   */
+  static final class AddressStack {
+
+    private long[] addresses = new long[16];
+    private int size = 0;
+
+    void push(long address) {
+      if (size == addresses.length) {
+        addresses = Arrays.copyOf(addresses, size * 2);
+      }
+      addresses[size++] = address;
+    }
+
+    long pop() {
+      return addresses[--size];
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+  }
+
+  private final int arenaSize;
+
+  private final List<ByteBuffer> arenas = new ArrayList<>();
+
+  private final AddressStack[] free;
+
+  private int top;
+
+  private long reservedBytes = 0;
+
+  private long chunkBytes = 0;
+
+  /**
+   * @param arenaSize Bytes per direct buffer allocation, rounded up to a power of two
+   */
+  SlabAllocator(int arenaSize) {
+    if (arenaSize < 1 << MIN_CHUNK_SHIFT) {
+      throw new IllegalArgumentException("Arena size must be at least " + (1 << MIN_CHUNK_SHIFT));
+    }
+    this.arenaSize = 1 << sizeShift(arenaSize);
+    this.free = new AddressStack[sizeClass(this.arenaSize) + 1];
+    for (int i = 0; i < free.length; i++) {
+      free[i] = new AddressStack();
+    }
+    this.top = this.arenaSize; // forces an arena allocation on first use
+  }
+
+  static int sizeShift(int length) {
+    if (length <= 1 << MIN_CHUNK_SHIFT) {
+      return MIN_CHUNK_SHIFT;
+    }
+    return 32 - Integer.numberOfLeadingZeros(length - 1);
+  }
+
+  static int sizeClass(int length) {
+    return sizeShift(length) - MIN_CHUNK_SHIFT;
+  }
+
+  static int chunkSize(int sizeClass) {
+    return 1 << (sizeClass + MIN_CHUNK_SHIFT);
+  }
+
+  Chunk allocate(byte[] value) {
+    final int length = value.length;
+    ByteBuffer buffer;
+    int arena;
+    int offset;
+    if (length > arenaSize) {
+      buffer = ByteBuffer.allocateDirect(length);
+      reservedBytes += length;
+      chunkBytes += length;
+      arena = -1;
+      offset = 0;
+    } else {
+      final int c = sizeClass(length);
+      final int size = chunkSize(c);
+      if (!free[c].isEmpty()) {
+        long address = free[c].pop();
+        arena = (int) (address >>> 32);
+        offset = (int) address;
+      } else {
+        if (top + size > arenaSize) {
+          newArena();
+        }
+        arena = arenas.size() - 1;
+        offset = top;
+        top += size;
+      }
+      buffer = arenas.get(arena);
+      chunkBytes += size;
+    }
+    ByteBuffer w = buffer.duplicate();
+    w.position(offset);
+    w.put(value);
+    return new Chunk(buffer, arena, offset, length);
+  }
+
+  void free(Chunk chunk) {
+    if (chunk.arena == -1) {
+      reservedBytes -= chunk.length;
+      chunkBytes -= chunk.length;
+      return;
+    }
+    final int c = sizeClass(chunk.length);
+    free[c].push(((long) chunk.arena << 32) | chunk.offset);
+    chunkBytes -= chunkSize(c);
+  }
+
+  /**
+   * Carves what's left of the current arena into free chunks, then starts a new one.
+   */
+  private void newArena() {
+    if (!arenas.isEmpty()) {
+      final long arena = arenas.size() - 1;
+      int remaining = arenaSize - top;
+      while (remaining >= 1 << MIN_CHUNK_SHIFT) {
+        int c = 31 - Integer.numberOfLeadingZeros(remaining) - MIN_CHUNK_SHIFT;
+        free[c].push((arena << 32) | top);
+        top += chunkSize(c);
+        remaining -= chunkSize(c);
+      }
+    }
+    arenas.add(ByteBuffer.allocateDirect(arenaSize));
+    reservedBytes += arenaSize;
+    top = 0;
+  }
+
+  int getArenaSize() {
+    return arenaSize;
+  }
+
+  int getArenaCount() {
+    return arenas.size();
+  }
+
+  /**
+   * @return Direct memory held, including free chunks
+   */
+  long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  /**
+   * @return Direct memory in chunks that are in use, including rounding up to size class
+   */
+  long getChunkBytes() {
+    return chunkBytes;
+  }
+
+}
@@ -0,0 +1,36 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.util.Map;
+
+/**
+ * A store that can pin its current state for bulk reads, without blocking the writer.
+ */
+public interface SnapshotStore {
+
+  /**
+   * @return A snapshot that must be closed, or null if the underlying store can't provide one
+   */
+  Snapshot snapshot();
+
+  /**
+   * @return The store's snapshot, or null if the store doesn't support snapshots
+   */
+  static Snapshot snapshot(Map<String, byte[]> store) {
+    return store instanceof SnapshotStore ? ((SnapshotStore) store).snapshot() : null;
+  }
+
+}
@@ -0,0 +1,154 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keeps the keys of any store in a skip list, in {@link String#compareTo(String)} order,
+ * so that prefix and range scans cost the size of the result rather than the size of the cache.
+ *
+ * Keys are added to the index after the store has the value and removed after the store dropped it,
+ * so a concurrent scan may miss a key that was just added and must expect values to be gone.
+ *
+ * Writes must come from a single thread, like for the delegate store.
+ */
+public class SortedKeyMap extends AbstractMap<String, byte[]> implements DelegatingStore, SnapshotStore {
+
+  private final Map<String, byte[]> stored;
+
+  private final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<>();
+
+  private final NavigableSet<String> view = Collections.unmodifiableNavigableSet(index);
+
+  /**
+   * @param stored Possibly with entries already, for example restored from disk
+   */
+  public SortedKeyMap(Map<String, byte[]> stored) {
+    this.stored = stored;
+    index.addAll(stored.keySet());
+  }
+
+  /**
+   * @return The first string after all strings that start with the prefix, or null if there is none
+   */
+  public static String prefixEnd(String prefix) {
+    for (int i = prefix.length() - 1; i >= 0; i--) {
+      char c = prefix.charAt(i);
+      if (c != Character.MAX_VALUE) {
+        return prefix.substring(0, i) + (char) (c + 1);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Map<String, byte[]> getDelegate() {
+    return stored;
+  }
+
+  /**
+   * @param from Inclusive, or null for the first key
+   * @param to Exclusive, or null for past the last key
+   * @return A live view in order
+   */
+  public NavigableSet<String> range(String from, String to) {
+    if (from == null) {
+      return to == null ? view : view.headSet(to, false);
+    }
+    if (to == null) {
+      return view.tailSet(from, true);
+    }
+    if (from.compareTo(to) >= 0) {
+      return Collections.emptyNavigableSet();
+    }
+    return view.subSet(from, true, to, false);
+  }
+
+  public NavigableSet<String> prefix(String prefix) {
+    return range(prefix, prefixEnd(prefix));
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    return stored.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return stored.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return stored.size();
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    if (value == null) {
+      return remove(key);
+    }
+    byte[] previous = stored.put(key, value);
+    if (previous == null) {
+      index.add(key);
+    }
+    return previous;
+  }
+
+  @Override
+  public byte[] remove(Object key) {
+    byte[] previous = stored.remove(key);
+    if (previous != null) {
+      index.remove(key);
+    }
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    stored.clear();
+    index.clear();
+  }
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return Collections.unmodifiableMap(stored).entrySet();
+  }
+
+  /**
+   * @return The index, i.e. keys in order
+   */
+  @Override
+  public Set<String> keySet() {
+    return view;
+  }
+
+  @Override
+  public Snapshot snapshot() {
+    return SnapshotStore.snapshot(stored);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + stored + "]";
+  }
+
+}
@@ -0,0 +1,597 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recently read or written entries in memory, up to a budget, and the rest in {@link ColdSegment}s on local disk.
+ *
+ * When hot entries exceed the budget a clock hand evicts those not used since it last passed,
+ * down to {@value #EVICT_TO} of the budget.
+ * Evicted entries that changed since they were read from disk are written, sorted, to a new segment.
+ * Segments are merged size-tiered, so there are few of them and a lookup checks each one's Bloom filter
+ * before it reads at most one block. Keys that were never written don't touch disk.
+ *
+ * Single writer, many readers. Readers promote what they read from disk only if the writer is idle.
+ * Cold segments are not durable: the directory is cleared at startup and the topic is consumed from the start,
+ * like for the in-memory cache types.
+ */
+public class TieredMap extends AbstractMap<String, byte[]> {
+
+  static final String SEGMENT_PREFIX = "cold-";
+
+  static final String SEGMENT_SUFFIX = ".kkv";
+
+  /**
+   * Approximate heap cost of a hot entry besides key and value, for budget accounting.
+   */
+  static final int ENTRY_OVERHEAD = 64;
+
+  static final double EVICT_TO = 0.9;
+
+  private static final Logger logger = LoggerFactory.getLogger(TieredMap.class);
+
+  static final class Hot {
+
+    /**
+     * Null for a remove that has yet to be written to a segment.
+     */
+    final byte[] value;
+    /**
+     * True if the segments don't have this value.
+     */
+    final boolean dirty;
+    /**
+     * True if any segment may have a record for the key, so that a remove must be written.
+     */
+    final boolean inCold;
+
+    volatile boolean referenced = true;
+
+    Hot(byte[] value, boolean dirty, boolean inCold) {
+      this.value = value;
+      this.dirty = dirty;
+      this.inCold = inCold;
+    }
+
+  }
+
+  private final Path directory;
+
+  private final long memoryBudget;
+
+  private final int regionSize;
+
+  private final ConcurrentHashMap<String, Hot> hot;
+
+  /**
+   * Held by the writer, and by readers that promote.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Oldest first, replaced on every change.
+   */
+  private volatile ColdSegment[] segments = new ColdSegment[0];
+
+  private Iterator<Map.Entry<String, Hot>> hand = Collections.emptyIterator();
+
+  private long nextSegment = 0;
+
+  private volatile long hotBytes = 0;
+
+  private volatile int size = 0;
+
+  private final LongAdder diskReads = new LongAdder();
+
+  public TieredMap(Path directory, int initialSize, long memoryBudget) {
+    this(directory, initialSize, memoryBudget, ColdSegment.REGION_SIZE);
+  }
+
+  TieredMap(Path directory, int initialSize, long memoryBudget, int regionSize) {
+    this.directory = directory;
+    this.memoryBudget = memoryBudget;
+    this.regionSize = regionSize;
+    this.hot = new ConcurrentHashMap<>(initialSize);
+    try {
+      Files.createDirectories(directory);
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+        for (Path file : files) {
+          logger.info("Deleting cold segment {} from a previous run", file);
+          Files.delete(file);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open tiered cache at " + directory, e);
+    }
+  }
+
+  static long bytes(String key, Hot h) {
+    return ENTRY_OVERHEAD + key.length() + (h.value == null ? 0 : h.value.length);
+  }
+
+  /**
+   * @return From the newest segment that has a record for the key: the value or {@link ColdSegment#TOMBSTONE},
+   *         or null if none has
+   */
+  private byte[] findCold(String key, ColdSegment[] snapshot) {
+    if (snapshot.length == 0) {
+      return null;
+    }
+    final byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    final long hash = BloomFilter.hash(k);
+    for (int i = snapshot.length - 1; i >= 0; i--) {
+      if (!snapshot[i].mightContain(hash)) continue;
+      diskReads.increment();
+      byte[] value = snapshot[i].find(k);
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The hot entry, or one that describes what the segments have for the key
+   */
+  private Hot current(String key) {
+    Hot h = hot.get(key);
+    if (h != null) {
+      return h;
+    }
+    byte[] cold = findCold(key, segments);
+    return new Hot(cold == ColdSegment.TOMBSTONE ? null : cold, false, cold != null);
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    final Hot h = hot.get(k);
+    if (h != null) {
+      if (!h.referenced) h.referenced = true;
+      return h.value;
+    }
+    // The writer publishes segments before it drops evicted entries, so this snapshot has them
+    final ColdSegment[] snapshot = segments;
+    final byte[] value = findCold(k, snapshot);
+    if (value == ColdSegment.TOMBSTONE) {
+      return null;
+    }
+    if (value != null) {
+      promote(k, value, snapshot);
+    }
+    return value;
+  }
+
+  /**
+   * Skipped if the writer is busy, or if segments changed since the value was read
+   * because a newer value may have been evicted meanwhile.
+   */
+  private void promote(String key, byte[] value, ColdSegment[] snapshot) {
+    if (!lock.tryLock()) {
+      return;
+    }
+    try {
+      if (segments != snapshot || hot.containsKey(key)) {
+        return;
+      }
+      final Hot h = new Hot(value, false, true);
+      final long need = bytes(key, h);
+      if (hotBytes + need > memoryBudget) {
+        // Readers don't write segments, but dropping clean entries is cheap
+        evict(false);
+        if (hotBytes + need > memoryBudget) {
+          return;
+        }
+      }
+      hot.put(key, h);
+      hotBytes = hotBytes + need;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writer thread only.
+   * A null value (tombstone) removes the key.
+   */
+  @Override
+  public byte[] put(String key, byte[] value) {
+    if (value == null) {
+      return remove(key);
+    }
+    lock.lock();
+    try {
+      final Hot previous = current(key);
+      final Hot h = new Hot(value, true, previous.inCold);
+      put(key, h, previous);
+      if (previous.value == null) {
+        size = size + 1;
+      }
+      evictIfOverBudget();
+      return previous.value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public byte[] remove(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    lock.lock();
+    try {
+      final Hot previous = current(k);
+      if (previous.value == null) {
+        return null;
+      }
+      if (previous.inCold) {
+        put(k, new Hot(null, true, true), previous);
+      } else {
+        hot.remove(k);
+        hotBytes = hotBytes - bytes(k, previous);
+      }
+      size = size - 1;
+      evictIfOverBudget();
+      return previous.value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void put(String key, Hot h, Hot previous) {
+    final boolean wasHot = hot.put(key, h) != null;
+    hotBytes = hotBytes + bytes(key, h) - (wasHot ? bytes(key, previous) : 0);
+  }
+
+  /**
+   * Writer thread only.
+   */
+  @Override
+  public void clear() {
+    lock.lock();
+    try {
+      final ColdSegment[] old = segments;
+      segments = new ColdSegment[0];
+      hot.clear();
+      hand = Collections.emptyIterator();
+      hotBytes = 0;
+      size = 0;
+      for (ColdSegment s : old) {
+        Files.delete(s.path);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to clear tiered cache at " + directory, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void evictIfOverBudget() {
+    if (hotBytes > memoryBudget) {
+      evict(true);
+    }
+  }
+
+  /**
+   * Moves the clock hand until hot bytes are at the low watermark,
+   * or until it has passed every entry twice.
+   *
+   * @param writeDirty false to only drop entries that the segments already have
+   */
+  private void evict(boolean writeDirty) {
+    final long target = (long) (memoryBudget * EVICT_TO);
+    final Map<String, Hot> dirty = new HashMap<>();
+    long pending = 0;
+    for (long steps = 2L * hot.size() + 1; hotBytes - pending > target && steps > 0; steps--) {
+      if (!hand.hasNext()) {
+        hand = hot.entrySet().iterator();
+        if (!hand.hasNext()) break;
+      }
+      final Map.Entry<String, Hot> e = hand.next();
+      final String key = e.getKey();
+      final Hot h = e.getValue();
+      if (h.referenced) {
+        h.referenced = false;
+      } else if (!h.dirty) {
+        if (hot.remove(key, h)) {
+          hotBytes = hotBytes - bytes(key, h);
+        }
+      } else if (writeDirty && !dirty.containsKey(key)) {
+        dirty.put(key, h);
+        pending += bytes(key, h);
+      }
+    }
+    if (dirty.isEmpty()) {
+      return;
+    }
+    try {
+      writeSegment(dirty);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to write cold segment to " + directory, e);
+    }
+    dirty.forEach((key, h) -> {
+      if (hot.remove(key, h)) {
+        hotBytes = hotBytes - bytes(key, h);
+      }
+    });
+  }
+
+  private Path nextPath() {
+    return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX));
+  }
+
+  private void writeSegment(Map<String, Hot> entries) throws IOException {
+    final List<ColdSegment.Record> records = new ArrayList<>(entries.size());
+    entries.forEach((key, h) -> records.add(new ColdSegment.Record(key.getBytes(StandardCharsets.UTF_8), h.value)));
+    records.sort((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+    final ColdSegment segment = ColdSegment.write(nextPath(), records.iterator(), records.size(), regionSize);
+    final ColdSegment[] s = Arrays.copyOf(segments, segments.length + 1);
+    s[s.length - 1] = segment;
+    segments = s;
+    logger.debug("Evicted {} entries to {}", segment.count, segment.path);
+    mergeTiers();
+  }
+
+  /**
+   * Merges the two newest segments for as long as the older is at most twice the size of the newer,
+   * which keeps the number of segments logarithmic in cold data size.
+   * Removes are dropped when the oldest segment is merged, as there's nothing left for them to hide.
+   * Readers that hold the previous segments keep reading from the unlinked files.
+   */
+  private void mergeTiers() throws IOException {
+    ColdSegment[] s = segments;
+    while (s.length >= 2 && s[s.length - 2].length <= 2 * s[s.length - 1].length) {
+      final ColdSegment older = s[s.length - 2];
+      final ColdSegment newer = s[s.length - 1];
+      final ColdSegment merged = ColdSegment.write(nextPath(),
+          new MergeIterator(new ColdSegment[] { older, newer }, s.length == 2),
+          older.count + newer.count, regionSize);
+      s = Arrays.copyOf(s, merged == null ? s.length - 2 : s.length - 1);
+      if (merged != null) {
+        s[s.length - 1] = merged;
+      }
+      segments = s;
+      Files.delete(older.path);
+      Files.delete(newer.path);
+      logger.debug("Merged {} and {} records to {}", older.count, newer.count, merged == null ? 0 : merged.count);
+    }
+  }
+
+  /**
+   * Merges segments in key order, taking each key's record from the newest segment that has one.
+   */
+  static final class MergeIterator implements Iterator<ColdSegment.Record> {
+
+    private final ColdSegment.Cursor[] cursors;
+    private final ColdSegment.Record[] heads;
+    private final boolean skipRemoved;
+    private ColdSegment.Record next = null;
+
+    /**
+     * @param segments Oldest first
+     */
+    MergeIterator(ColdSegment[] segments, boolean skipRemoved) {
+      this.cursors = new ColdSegment.Cursor[segments.length];
+      this.heads = new ColdSegment.Record[segments.length];
+      this.skipRemoved = skipRemoved;
+      for (int i = 0; i < segments.length; i++) {
+        cursors[i] = segments[i].cursor();
+        heads[i] = cursors[i].next();
+      }
+    }
+
+    private void advance() {
+      while (next == null) {
+        int newest = -1;
+        for (int i = heads.length - 1; i >= 0; i--) {
+          if (heads[i] == null) continue;
+          if (newest == -1 || Arrays.compareUnsigned(heads[i].key, heads[newest].key) < 0) {
+            newest = i;
+          }
+        }
+        if (newest == -1) {
+          return;
+        }
+        final ColdSegment.Record r = heads[newest];
+        for (int i = 0; i < heads.length; i++) {
+          if (heads[i] != null && Arrays.equals(heads[i].key, r.key)) {
+            heads[i] = cursors[i].next();
+          }
+        }
+        if (r.value != null || !skipRemoved) {
+          next = r;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next != null;
+    }
+
+    @Override
+    public ColdSegment.Record next() {
+      advance();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      ColdSegment.Record r = next;
+      next = null;
+      return r;
+    }
+
+  }
+
+  /**
+   * Hot entries, then cold ones that aren't hot.
+   * Weakly consistent: an entry evicted during iteration may be returned twice.
+   */
+  private class EntryIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+    private final Iterator<Map.Entry<String, Hot>> hotEntries = hot.entrySet().iterator();
+    private final ColdSegment[] snapshot = segments;
+    private MergeIterator coldEntries = null;
+    private Map.Entry<String, byte[]> next = null;
+
+    private void advance() {
+      while (next == null && hotEntries.hasNext()) {
+        Map.Entry<String, Hot> e = hotEntries.next();
+        if (e.getValue().value != null) {
+          next = new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().value);
+        }
+      }
+      if (next != null) {
+        return;
+      }
+      if (coldEntries == null) {
+        coldEntries = new MergeIterator(snapshot, true);
+      }
+      while (next == null && coldEntries.hasNext()) {
+        ColdSegment.Record r = coldEntries.next();
+        String key = new String(r.key, StandardCharsets.UTF_8);
+        if (!hot.containsKey(key)) {
+          next = new AbstractMap.SimpleImmutableEntry<>(key, r.value);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      advance();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, byte[]> e = next;
+      next = null;
+      return e;
+    }
+
+  }
+
+  private final Set<Map.Entry<String, byte[]>> entrySet = new AbstractSet<Map.Entry<String,byte[]>>() {
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+  };
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return entrySet;
+  }
+
+  /**
+   * @return Approximate heap bytes of hot entries, kept below the memory budget
+   */
+  public long getHotBytes() {
+    return hotBytes;
+  }
+
+  /**
+   * @return Bytes in segment files, including overwritten records that await a merge
+   */
+  public long getColdBytes() {
+    long bytes = 0;
+    for (ColdSegment s : segments) {
+      bytes += s.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return Heap bytes of Bloom filters and sparse indexes, which aren't part of the memory budget
+   */
+  public long getIndexBytes() {
+    long bytes = 0;
+    for (ColdSegment s : segments) {
+      bytes += s.getIndexBytes();
+    }
+    return bytes;
+  }
+
+  int getSegmentCount() {
+    return segments.length;
+  }
+
+  /**
+   * @return Number of segment blocks read, i.e. lookups that passed a Bloom filter
+   */
+  long getDiskReads() {
+    return diskReads.sum();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[size=" + size + ",hotBytes=" + hotBytes
+        + ",budget=" + memoryBudget + ",segments=" + segments.length + "]";
+  }
+
+}
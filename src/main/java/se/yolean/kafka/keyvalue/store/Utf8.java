@@ -0,0 +1,135 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+/**
+ * UTF-8 encoding of strings one code point at a time, so that stored keys
+ * can be hashed and compared to lookup strings without an intermediate byte array.
+ * Output is identical to {@code String.getBytes(StandardCharsets.UTF_8)}.
+ * Strings with unpaired surrogates are rejected, as that method encodes them all as '?' so distinct keys would collide.
+ */
+final class Utf8 {
+
+  private static final int FNV_OFFSET = 0x811c9dc5;
+
+  private static final int FNV_PRIME = 0x01000193;
+
+  private Utf8() {
+  }
+
+  /**
+   * @return Bytes in the low 32 bits, first byte lowest,
+   *         then the number of bytes in bits 32-35 and the number of chars consumed in bits 36-39
+   * @throws IllegalArgumentException If the char at the index is an unpaired surrogate
+   */
+  static long encodeAt(String s, int i) {
+    final char c = s.charAt(i);
+    if (c < 0x80) {
+      return c | 1L << 32 | 1L << 36;
+    }
+    if (c < 0x800) {
+      return (0xc0 | c >> 6) | (0x80 | c & 0x3f) << 8 | 2L << 32 | 1L << 36;
+    }
+    if (Character.isSurrogate(c)) {
+      if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+        return (0xf0 | cp >> 18) | (0x80 | cp >> 12 & 0x3f) << 8 | (0x80 | cp >> 6 & 0x3f) << 16
+            | (long) (0x80 | cp & 0x3f) << 24 | 4L << 32 | 2L << 36;
+      }
+      throw new IllegalArgumentException("Unpaired surrogate at index " + i);
+    }
+    return (0xe0 | c >> 12) | (0x80 | c >> 6 & 0x3f) << 8 | (0x80 | c & 0x3f) << 16 | 3L << 32 | 1L << 36;
+  }
+
+  static int byteCount(long encoded) {
+    return (int) (encoded >>> 32) & 0xf;
+  }
+
+  static int charCount(long encoded) {
+    return (int) (encoded >>> 36) & 0xf;
+  }
+
+  static int length(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length();) {
+      long e = encodeAt(s, i);
+      length += byteCount(e);
+      i += charCount(e);
+    }
+    return length;
+  }
+
+  /**
+   * @return Offset after the last byte written
+   */
+  static int write(String s, byte[] out, int offset) {
+    for (int i = 0; i < s.length();) {
+      long e = encodeAt(s, i);
+      for (int b = 0; b < byteCount(e); b++) {
+        out[offset++] = (byte) (e >>> (b * 8));
+      }
+      i += charCount(e);
+    }
+    return offset;
+  }
+
+  /**
+   * @return FNV-1a over the UTF-8 bytes, with a final avalanche so that low bits can index a table
+   */
+  static int hash(String s) {
+    int h = FNV_OFFSET;
+    for (int i = 0; i < s.length();) {
+      long e = encodeAt(s, i);
+      for (int b = 0; b < byteCount(e); b++) {
+        h = (h ^ ((int) (e >>> (b * 8)) & 0xff)) * FNV_PRIME;
+      }
+      i += charCount(e);
+    }
+    return mix(h);
+  }
+
+  static int hash(byte[] bytes, int offset, int length) {
+    int h = FNV_OFFSET;
+    for (int i = offset; i < offset + length; i++) {
+      h = (h ^ (bytes[i] & 0xff)) * FNV_PRIME;
+    }
+    return mix(h);
+  }
+
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  static boolean equals(String s, byte[] bytes, int offset, int length) {
+    final int end = offset + length;
+    int o = offset;
+    for (int i = 0; i < s.length();) {
+      long e = encodeAt(s, i);
+      for (int b = 0; b < byteCount(e); b++) {
+        if (o == end || bytes[o++] != (byte) (e >>> (b * 8))) {
+          return false;
+        }
+      }
+      i += charCount(e);
+    }
+    return o == end;
+  }
+
+}
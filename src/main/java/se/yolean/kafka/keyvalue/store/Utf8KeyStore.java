@@ -0,0 +1,30 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A store that keeps keys UTF-8 encoded and can stream them without creating strings.
+ */
+public interface Utf8KeyStore {
+
+  /**
+   * @param out To write every key to, each followed by the separator
+   */
+  void writeKeys(OutputStream out, byte separator) throws IOException;
+
+}
@@ -0,0 +1,49 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+/**
+ * A store that can tell the length of values as they were put,
+ * without copying them out of storage or decoding them.
+ *
+ * The consume loop uses this for memory accounting, when the outermost store implements it.
+ */
+public interface ValueLengthStore {
+
+  /**
+   * The length of a value that isn't there.
+   */
+  int ABSENT = -1;
+
+  /**
+   * @return The length of the value, or {@link #ABSENT}
+   */
+  int getLength(String key);
+
+  /**
+   * Like {@link java.util.Map#put(Object, Object)}, writer thread only.
+   *
+   * @return The length of the previous value, or {@link #ABSENT}
+   */
+  int putForLength(String key, byte[] value);
+
+  /**
+   * Like {@link java.util.Map#remove(Object)}, writer thread only.
+   *
+   * @return The length of the previous value, or {@link #ABSENT}
+   */
+  int removeForLength(String key);
+
+}
@@ -0,0 +1,62 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+class AssignedPartitionsTest {
+
+  @Test
+  void testSlots() {
+    TopicPartition a3 = new TopicPartition("a", 3);
+    TopicPartition a0 = new TopicPartition("a", 0);
+    TopicPartition b1 = new TopicPartition("b", 1);
+    AssignedPartitions partitions = new AssignedPartitions(List.of(a3, a0, b1));
+    assertEquals(3, partitions.size());
+    for (TopicPartition partition : List.of(a3, a0, b1)) {
+      int slot = partitions.slot(partition.topic(), partition.partition());
+      assertEquals(partition, partitions.getPartition(slot));
+    }
+    assertEquals(-1, partitions.find("a", 1));
+    assertEquals(-1, partitions.find("a", 4));
+    assertEquals(-1, partitions.find("b", 0));
+    assertEquals(-1, partitions.find("c", 0));
+    assertThrows(IllegalStateException.class, () -> partitions.slot("c", 0));
+  }
+
+  @Test
+  void testOffsets() {
+    TopicPartition a0 = new TopicPartition("a", 0);
+    TopicPartition a1 = new TopicPartition("a", 1);
+    AssignedPartitions partitions = new AssignedPartitions(List.of(a0, a1));
+    int slot = partitions.slot("a", 1);
+    assertNull(partitions.getCurrentOffset("a", 1));
+    assertEquals(AssignedPartitions.NONE, partitions.getCurrentOffset(slot));
+    assertEquals(Map.of(), partitions.getCurrentOffsets());
+    partitions.setEndOffset(slot, 10);
+    partitions.setCurrentOffset(slot, 0);
+    assertEquals(10, partitions.getEndOffset(slot));
+    assertEquals(0L, partitions.getCurrentOffset("a", 1));
+    assertNull(partitions.getCurrentOffset("a", 2));
+    assertEquals(Map.of(a1, 0L), partitions.getCurrentOffsets());
+  }
+
+}
@@ -0,0 +1,93 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+class ChangeFeedTest {
+
+  static class Recording implements ChangeFeed.Listener {
+
+    final List<Long> offsets = new ArrayList<>();
+
+    CompletableFuture<Void> next = CompletableFuture.completedFuture(null);
+
+    Boolean closedWithOverflow = null;
+
+    @Override
+    public CompletionStage<?> onChange(ChangeFeed.Change change) {
+      offsets.add(change.getOffset());
+      return next;
+    }
+
+    @Override
+    public void onClose(boolean overflow) {
+      closedWithOverflow = overflow;
+    }
+
+  }
+
+  final TopicPartition p = new TopicPartition("t", 0);
+
+  @Test
+  void testDelivery() {
+    ChangeFeed feed = new ChangeFeed(Runnable::run);
+    feed.publish(p, 0, "a", new byte[0]);
+    Recording listener = new Recording();
+    feed.subscribe(listener, 4);
+    feed.publish(p, 1, "a", new byte[0]);
+    feed.publish(p, 2, "a", null);
+    assertEquals(List.of(1L, 2L), listener.offsets);
+    assertNull(listener.closedWithOverflow);
+  }
+
+  @Test
+  void testOverflow() {
+    ChangeFeed feed = new ChangeFeed(Runnable::run);
+    Recording slow = new Recording();
+    slow.next = new CompletableFuture<>();
+    feed.subscribe(slow, 2);
+    for (long offset = 0; offset < 4; offset++) {
+      feed.publish(p, offset, "k", new byte[0]);
+    }
+    assertEquals(List.of(0L), slow.offsets, "Should wait for the first send to complete");
+    assertFalse(feed.hasSubscribers());
+    CompletableFuture<Void> sending = slow.next;
+    slow.next = CompletableFuture.completedFuture(null);
+    sending.complete(null);
+    assertEquals(List.of(0L, 1L, 2L), slow.offsets, "Buffered changes should be delivered before overflow");
+    assertTrue(slow.closedWithOverflow);
+  }
+
+  @Test
+  void testDisconnect() {
+    ChangeFeed feed = new ChangeFeed(Runnable::run);
+    Recording gone = new Recording();
+    gone.next = CompletableFuture.failedFuture(new IllegalStateException("Disconnected"));
+    feed.subscribe(gone, 2);
+    feed.publish(p, 0, "k", new byte[0]);
+    assertFalse(gone.closedWithOverflow);
+    assertEquals(0, feed.getSubscriberCount());
+  }
+
+}
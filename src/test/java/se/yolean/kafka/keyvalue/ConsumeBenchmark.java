@@ -0,0 +1,115 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Records per second through the consume loop during replay, where onupdate is suppressed,
+ * with whole polls as delivered now compared to one record per call as before batch delivery.
+ * Reactive messaging's own per-message cost comes on top of the latter, and isn't included.
+ *
+ * Run with mvn -f app.pom.xml test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=se.yolean.kafka.keyvalue.ConsumeBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsumeBenchmark {
+
+  /**
+   * The consumer's default max.poll.records.
+   */
+  static final int RECORDS_PER_POLL = 500;
+
+  @Param({ "100000" })
+  int keys;
+
+  @Param({ "100" })
+  int valueSize;
+
+  ConsumerAtLeastOnce consumer;
+
+  List<ConsumerRecords<String, byte[]>> polls;
+
+  List<List<ConsumerRecords<String, byte[]>>> singles;
+
+  int next = 0;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    consumer = ConsumerAtLeastOnceTest.assigned(Mockito.mock(OnUpdate.class), Long.MAX_VALUE);
+    polls = new ArrayList<>();
+    singles = new ArrayList<>();
+    byte[] value = new byte[valueSize];
+    long offset = 0;
+    for (int p = 0; p < keys / RECORDS_PER_POLL; p++) {
+      List<ConsumerRecord<String, byte[]>> records = new ArrayList<>(RECORDS_PER_POLL);
+      List<ConsumerRecords<String, byte[]>> single = new ArrayList<>(RECORDS_PER_POLL);
+      for (int r = 0; r < RECORDS_PER_POLL; r++, offset++) {
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>(ConsumerAtLeastOnceTest.T0.topic(),
+            ConsumerAtLeastOnceTest.T0.partition(), offset, "key" + (offset % keys), value);
+        records.add(record);
+        single.add(new ConsumerRecords<>(Map.of(ConsumerAtLeastOnceTest.T0, List.of(record))));
+      }
+      polls.add(new ConsumerRecords<>(Map.of(ConsumerAtLeastOnceTest.T0, records)));
+      singles.add(single);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS_PER_POLL)
+  public void batch() {
+    consumer.consume(polls.get(next++ % polls.size()));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS_PER_POLL)
+  public void perRecord() {
+    for (ConsumerRecords<String, byte[]> record : singles.get(next++ % singles.size())) {
+      consumer.consume(record);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(ConsumeBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
@@ -0,0 +1,228 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.yolean.kafka.keyvalue.store.PersistentMappedMap;
+
+class ConsumerAtLeastOnceTest {
+
+  static final TopicPartition T0 = new TopicPartition("t1", 0);
+
+  @TempDir
+  Path dir;
+
+  /**
+   * @param position The end offset at assignment, where onupdate starts
+   */
+  static ConsumerAtLeastOnce assigned(OnUpdate onupdate, long position) {
+    ConsumerAtLeastOnce consumer = new ConsumerAtLeastOnce(new SimpleMeterRegistry());
+    consumer.cache = new HashMap<>();
+    consumer.onupdate = onupdate;
+    consumer.shmPath = Optional.empty();
+    consumer.jsonIndexesConfig = Optional.empty();
+    MockConsumer<String, byte[]> kafka = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    kafka.assign(List.of(T0));
+    kafka.updateBeginningOffsets(Map.of(T0, 0L));
+    kafka.seek(T0, position);
+    consumer.onPartitionsAssigned(kafka, List.of(T0));
+    return consumer;
+  }
+
+  static ConsumerRecords<String, byte[]> poll(long from, long to) {
+    List<ConsumerRecord<String, byte[]>> records = new ArrayList<>();
+    for (long offset = from; offset < to; offset++) {
+      records.add(new ConsumerRecord<>(T0.topic(), T0.partition(), offset, "k" + offset, new byte[] { (byte) offset }));
+    }
+    return new ConsumerRecords<>(Map.of(T0, records));
+  }
+
+  @Test
+  void testPollBoundaries() {
+    OnUpdate onupdate = mock(OnUpdate.class);
+    ConsumerAtLeastOnce consumer = assigned(onupdate, 3);
+    assertEquals(ConsumerAtLeastOnce.Stage.Resetting, consumer.stage);
+    verify(onupdate, times(1)).pollStart(any());
+
+    consumer.consume(poll(0, 2));
+    assertEquals(ConsumerAtLeastOnce.Stage.PollingHistorical, consumer.stage);
+    assertEquals(2, consumer.getSize());
+    verify(onupdate, never()).handle(any());
+    verify(onupdate, never()).pollEndBlockingUntilTargetsAck();
+
+    consumer.consume(poll(2, 5));
+    assertEquals(ConsumerAtLeastOnce.Stage.Polling, consumer.stage);
+    assertEquals(5, consumer.getSize());
+    assertEquals(4L, consumer.getCurrentOffset("t1", 0));
+    verify(onupdate, times(2)).handle(any());
+    verify(onupdate, times(1)).pollEndBlockingUntilTargetsAck();
+    verify(onupdate, times(2)).pollStart(any());
+
+    consumer.consume(poll(5, 7));
+    verify(onupdate, times(4)).handle(any());
+    verify(onupdate, times(2)).pollEndBlockingUntilTargetsAck();
+  }
+
+  @Test
+  void testParallelReplay() {
+    TopicPartition t1 = new TopicPartition(T0.topic(), 1);
+    OnUpdate onupdate = mock(OnUpdate.class);
+    ConsumerAtLeastOnce consumer = new ConsumerAtLeastOnce(new SimpleMeterRegistry());
+    consumer.cache = new HashMap<>();
+    consumer.onupdate = onupdate;
+    consumer.shmPath = Optional.empty();
+    consumer.jsonIndexesConfig = Optional.empty();
+    consumer.replayParallelism = 2;
+    consumer.replayConsumers = group -> ParallelReplayTest.consumer(5);
+    MockConsumer<String, byte[]> kafka = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    kafka.assign(List.of(T0, t1));
+    kafka.updateBeginningOffsets(Map.of(T0, 0L, t1, 0L));
+    kafka.seek(T0, 3);
+    kafka.seek(t1, 5);
+    consumer.onPartitionsAssigned(kafka, List.of(T0, t1));
+    assertEquals(3, kafka.position(T0), "live consumer stays at its position");
+    assertEquals(5, kafka.position(t1));
+
+    consumer.consume(poll(3, 5));
+    assertEquals(ConsumerAtLeastOnce.Stage.Polling, consumer.stage);
+    assertEquals(4L, consumer.getCurrentOffset(t1));
+    assertEquals(4L, consumer.getCurrentOffset(T0));
+    assertEquals(3 + 5 + 2, consumer.getSize());
+    verify(onupdate, times(2)).handle(any());
+    verify(onupdate, times(1)).pollEndBlockingUntilTargetsAck();
+  }
+
+  /**
+   * @return A consumer started with a persistent cache that has key "old" and the given checkpoint for T0
+   */
+  ConsumerAtLeastOnce restored(long checkpoint) {
+    PersistentMappedMap previous = new PersistentMappedMap(dir, 0, 1024);
+    previous.put("old", new byte[] { 1 });
+    previous.checkpoint(Map.of(T0, checkpoint));
+    ConsumerAtLeastOnce consumer = new ConsumerAtLeastOnce(new SimpleMeterRegistry());
+    consumer.cache = new PersistentMappedMap(dir, 0, 1024);
+    consumer.onupdate = mock(OnUpdate.class);
+    consumer.shmPath = Optional.empty();
+    consumer.jsonIndexesConfig = Optional.empty();
+    consumer.checkpointMaxAge = Duration.ofHours(24);
+    consumer.start(null);
+    assertEquals(1, consumer.getSize());
+    return consumer;
+  }
+
+  static MockConsumer<String, byte[]> kafka(long lowWaterMark, long position) {
+    MockConsumer<String, byte[]> kafka = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    kafka.assign(List.of(T0));
+    kafka.updateBeginningOffsets(Map.of(T0, lowWaterMark));
+    kafka.seek(T0, position);
+    return kafka;
+  }
+
+  @Test
+  void testCheckpointBeyondPosition() {
+    ConsumerAtLeastOnce consumer = restored(10);
+    MockConsumer<String, byte[]> kafka = kafka(0, 3);
+    consumer.onPartitionsAssigned(kafka, List.of(T0));
+    assertEquals(0, consumer.getSize(), "Entries from before the topic was recreated must go");
+    assertEquals(0, consumer.memory.getTotalBytes());
+    assertEquals(0, kafka.position(T0), "Replay from the low water mark");
+    assertNull(consumer.getCurrentOffset(T0));
+  }
+
+  @Test
+  void testCheckpointBeforeLowWaterMark() {
+    ConsumerAtLeastOnce consumer = restored(2);
+    MockConsumer<String, byte[]> kafka = kafka(5, 8);
+    consumer.onPartitionsAssigned(kafka, List.of(T0));
+    assertEquals(0, consumer.getSize(), "Deletes between the checkpoint and the low water mark may be gone");
+    assertEquals(5, kafka.position(T0));
+  }
+
+  @Test
+  void testCheckpointTooOld() throws InterruptedException {
+    ConsumerAtLeastOnce consumer = restored(5);
+    consumer.checkpointMaxAge = Duration.ofMillis(1);
+    Thread.sleep(10);
+    MockConsumer<String, byte[]> kafka = kafka(2, 8);
+    consumer.onPartitionsAssigned(kafka, List.of(T0));
+    assertEquals(0, consumer.getSize(), "Tombstones older than delete.retention.ms may be gone from a compacted topic");
+    assertEquals(2, kafka.position(T0));
+  }
+
+  @Test
+  void testCheckpointResumed() {
+    ConsumerAtLeastOnce consumer = restored(5);
+    MockConsumer<String, byte[]> kafka = kafka(2, 8);
+    consumer.onPartitionsAssigned(kafka, List.of(T0));
+    assertEquals(1, consumer.getSize());
+    assertEquals(6, kafka.position(T0));
+    assertEquals(5L, consumer.getCurrentOffset(T0));
+  }
+
+  @Test
+  void testMemoryBudgetExceeded() {
+    OnUpdate onupdate = mock(OnUpdate.class);
+    ConsumerAtLeastOnce consumer = assigned(onupdate, 0);
+    consumer.memoryBudget = 4;
+    List<ConsumerRecord<String, byte[]>> records = List.of(
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 0, "a", new byte[] { 1, 2 }),
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 1, "b", new byte[] { 1, 2 }),
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 2, "c", new byte[] { 1 }),
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 3, "a", new byte[] { 3, 4, 5 }),
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 4, "b", null));
+    consumer.consume(new ConsumerRecords<>(Map.of(T0, records)));
+    assertFalse(consumer.isReady());
+    assertNull(consumer.getValue("c"));
+    assertArrayEquals(new byte[] { 1, 2 }, consumer.getValue("a"));
+    assertNull(consumer.getValue("b"), "Records after a rejected one are applied");
+    assertEquals(1L, consumer.getCurrentOffset(T0), "Offsets must not pass a rejected record");
+    verify(onupdate, times(3)).handle(any());
+  }
+
+  @Test
+  void testTombstonesInPoll() {
+    OnUpdate onupdate = mock(OnUpdate.class);
+    ConsumerAtLeastOnce consumer = assigned(onupdate, 0);
+    List<ConsumerRecord<String, byte[]>> records = List.of(
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 0, "a", new byte[] { 1 }),
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 1, "a", null),
+        new ConsumerRecord<>(T0.topic(), T0.partition(), 2, null, new byte[] { 2 }));
+    consumer.consume(new ConsumerRecords<>(Map.of(T0, records)));
+    assertEquals(0, consumer.getSize());
+    verify(onupdate, times(2)).handle(any());
+    verify(onupdate, times(1)).pollEndBlockingUntilTargetsAck();
+  }
+
+}
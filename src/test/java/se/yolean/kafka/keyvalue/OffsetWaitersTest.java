@@ -0,0 +1,88 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+class OffsetWaitersTest {
+
+  final TopicPartition p0 = new TopicPartition("t", 0);
+
+  final TopicPartition p1 = new TopicPartition("t", 1);
+
+  @Test
+  void testWaitForTwoPartitions() {
+    AssignedPartitions current = new AssignedPartitions(List.of(p0, p1));
+    current.setCurrentOffset(0, 3L);
+    OffsetWaiters waiters = new OffsetWaiters(Runnable::run);
+    waiters.assign(current);
+    assertTrue(waiters.await(Map.of(p0, 3L), Duration.ofMinutes(1)).join(), "Already reached");
+    CompletableFuture<Boolean> both = waiters.await(Map.of(p0, 5L, p1, 2L), Duration.ofMinutes(1));
+    assertEquals(1, waiters.getCount());
+    current.setCurrentOffset(0, 4L);
+    waiters.onApplied(0, 4);
+    current.setCurrentOffset(1, 2L);
+    waiters.onApplied(1, 2);
+    assertFalse(both.isDone());
+    current.setCurrentOffset(0, 5L);
+    waiters.onApplied(0, 5);
+    assertTrue(both.join());
+    assertEquals(0, waiters.getCount());
+  }
+
+  @Test
+  void testThresholdPerPartition() {
+    AssignedPartitions current = new AssignedPartitions(List.of(p0, p1));
+    OffsetWaiters waiters = new OffsetWaiters(Runnable::run);
+    waiters.assign(current);
+    CompletableFuture<Boolean> waiting = waiters.await(Map.of(p0, 5L), Duration.ofMinutes(1));
+    current.setCurrentOffset(1, 100L);
+    waiters.onApplied(1, 100);
+    assertFalse(waiting.isDone(), "Offsets in other partitions don't count");
+    current.setCurrentOffset(0, 5L);
+    waiters.onApplied(0, 5);
+    assertTrue(waiting.join());
+  }
+
+  @Test
+  void testAppliedBeforeAssignment() {
+    AssignedPartitions current = new AssignedPartitions(List.of(p0));
+    OffsetWaiters waiters = new OffsetWaiters(Runnable::run);
+    CompletableFuture<Boolean> waiting = waiters.await(Map.of(p0, 1L), Duration.ofMinutes(1));
+    current.setCurrentOffset(0, 1L);
+    assertFalse(waiting.isDone());
+    waiters.assign(current);
+    assertTrue(waiting.join(), "Woken by assignment, with no record after it");
+  }
+
+  @Test
+  void testTimeout() {
+    OffsetWaiters waiters = new OffsetWaiters(Runnable::run);
+    waiters.assign(new AssignedPartitions(List.of(p0)));
+    CompletableFuture<Boolean> never = waiters.await(Map.of(p0, 1L), Duration.ofMillis(10));
+    assertFalse(never.join());
+    assertEquals(0, waiters.getCount());
+    waiters.wake();
+  }
+
+}
@@ -0,0 +1,112 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+class ParallelReplayTest {
+
+  static final TopicPartition P0 = new TopicPartition("t", 0);
+  static final TopicPartition P1 = new TopicPartition("t", 1);
+  static final TopicPartition P2 = new TopicPartition("t", 2);
+
+  static ConsumerRecord<String, byte[]> record(TopicPartition partition, long offset) {
+    return new ConsumerRecord<>(partition.topic(), partition.partition(), offset, partition + "-" + offset, new byte[0]);
+  }
+
+  /**
+   * @return A consumer that has records from offset 0 to end, inclusive, once partitions are assigned
+   */
+  static MockConsumer<String, byte[]> consumer(long end) {
+    MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    consumer.schedulePollTask(() -> {
+      for (TopicPartition partition : consumer.assignment()) {
+        for (long offset = 0; offset <= end; offset++) {
+          consumer.addRecord(record(partition, offset));
+        }
+      }
+    });
+    return consumer;
+  }
+
+  @Test
+  void testGroups() {
+    assertEquals(List.of(List.of(P0, P2), List.of(P1)), ParallelReplay.groups(List.of(P0, P1, P2), 2));
+    assertEquals(List.of(List.of(P0), List.of(P1), List.of(P2)), ParallelReplay.groups(List.of(P0, P1, P2), 8));
+    assertEquals(List.of(List.of(P0, P1, P2)), ParallelReplay.groups(List.of(P0, P1, P2), 1));
+  }
+
+  @Test
+  void testBelowEndOffsets() {
+    ConsumerRecords<String, byte[]> records = new ConsumerRecords<>(Map.of(
+        P0, List.of(record(P0, 3), record(P0, 4)),
+        P1, List.of(record(P1, 5), record(P1, 6)),
+        P2, List.of(record(P2, 7))));
+    ConsumerRecords<String, byte[]> below = ParallelReplay.belowEndOffsets(records, Map.of(P0, 5L, P1, 6L, P2, 7L));
+    assertEquals(3, below.count());
+    assertEquals(2, below.records(P0).size());
+    assertEquals(1, below.records(P1).size());
+    assertEquals(0, below.records(P2).size());
+    assertSame(records, ParallelReplay.belowEndOffsets(records, Map.of(P0, 5L, P1, 7L, P2, 8L)));
+  }
+
+  @Test
+  void testReplay() {
+    List<ConsumerRecord<String, byte[]>> replayed = Collections.synchronizedList(new ArrayList<>());
+    List<MockConsumer<String, byte[]>> consumers = Collections.synchronizedList(new ArrayList<>());
+    ParallelReplay replay = new ParallelReplay(Map.of(P0, 2L, P1, 0L, P2, 0L), Map.of(P0, 5L, P1, 5L, P2, 1L), 2,
+        group -> {
+          MockConsumer<String, byte[]> consumer = consumer(6);
+          consumers.add(consumer);
+          return consumer;
+        },
+        records -> records.forEach(replayed::add));
+    replay.await();
+    assertEquals(2, consumers.size());
+    assertTrue(consumers.stream().allMatch(MockConsumer::closed));
+    assertEquals(3 + 5 + 1, replayed.size());
+    for (TopicPartition partition : List.of(P0, P1, P2)) {
+      long previous = -1;
+      for (ConsumerRecord<String, byte[]> record : replayed) {
+        if (record.partition() != partition.partition()) continue;
+        assertTrue(record.offset() > previous, "in order within a partition");
+        previous = record.offset();
+      }
+    }
+  }
+
+  @Test
+  void testFailure() {
+    ParallelReplay replay = new ParallelReplay(Map.of(P0, 0L), Map.of(P0, 5L), 2, group -> consumer(6),
+        records -> {
+          throw new IllegalStateException("sink failure");
+        });
+    IllegalStateException e = assertThrows(IllegalStateException.class, replay::await);
+    assertEquals("sink failure", e.getMessage());
+  }
+
+}
@@ -16,12 +16,35 @@ package se.yolean.kafka.keyvalue.http;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.kafka.common.TopicPartition;
 import org.eclipse.microprofile.health.HealthCheckResponse;
 import org.eclipse.microprofile.health.HealthCheckResponse.Status;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import se.yolean.kafka.keyvalue.CacheSnapshot;
+import se.yolean.kafka.keyvalue.ChangeFeed;
 import se.yolean.kafka.keyvalue.KafkaCache;
+import se.yolean.kafka.keyvalue.store.KeyMetadata;
+import se.yolean.kafka.keyvalue.store.Snapshot;
 
 class CacheResourceTest {
 
@@ -31,33 +54,235 @@ class CacheResourceTest {
     rest.cache = Mockito.mock(KafkaCache.class);
     Mockito.when(rest.cache.isReady()).thenReturn(false);
     try {
-      rest.valueByKey("a", null);
+      rest.valueByKey("a", null, null, null, null);
       fail("Should have deined the request when cache isn't ready");
     } catch (javax.ws.rs.ServiceUnavailableException e) {
       assertEquals("Denied because cache is unready, check /health for status", e.getMessage());
     }
   }
 
+  @Test
+  void testValueByKeyDeleted() {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.getValue("a")).thenReturn(null);
+    assertThrows(javax.ws.rs.NotFoundException.class, () -> rest.valueByKey("a", null, null, null, null));
+  }
+
+  @Test
+  void testValueByKeyGzip() {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.getValueGzip("a")).thenReturn(new byte[] { 0x1f, (byte) 0x8b });
+    Mockito.when(rest.cache.getValue("a")).thenReturn(new byte[] { 'v' });
+    Response gzip = rest.valueByKey("a", null, null, "deflate, gzip;q=0.8", null)
+        .toCompletableFuture().join();
+    assertEquals("gzip", gzip.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+    Response identity = rest.valueByKey("a", null, null, "gzip;q=0", null).toCompletableFuture().join();
+    assertNull(identity.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+    assertArrayEquals(new byte[] { 'v' }, (byte[]) identity.getEntity());
+  }
+
+  @Test
+  void testValueByKeyNotModified() {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    KeyMetadata.Source source = new KeyMetadata.Source(new TopicPartition("t", 0), 5, 1000);
+    Mockito.when(rest.cache.getSource("a")).thenReturn(source);
+    Mockito.when(rest.cache.getValue("a")).thenReturn(new byte[] { 'v' });
+    Request request = Mockito.mock(Request.class);
+    Mockito.when(request.evaluatePreconditions(new Date(1000), new EntityTag("t-0-5", true)))
+        .thenReturn(Response.notModified());
+    Response notModified = rest.valueByKey("a", null, request, null, null).toCompletableFuture().join();
+    assertEquals(304, notModified.getStatus());
+    assertEquals("5", notModified.getHeaderString(CacheResource.HEADER_OFFSET));
+
+    Response changed = rest.valueByKey("a", null, Mockito.mock(Request.class), null, null)
+        .toCompletableFuture().join();
+    assertEquals(200, changed.getStatus());
+    assertEquals("W/\"t-0-5\"", changed.getHeaderString(HttpHeaders.ETAG));
+    assertNotNull(changed.getHeaderString(HttpHeaders.LAST_MODIFIED));
+  }
+
+  @Test
+  void testValueByKeyMinOffsets() {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.getValue("a")).thenReturn(new byte[] { 'v' });
+    CompletableFuture<Boolean> reached = new CompletableFuture<>();
+    Mockito.when(rest.cache.awaitOffsets(Map.of(new TopicPartition("t", 1), 7L))).thenReturn(reached);
+    CompletableFuture<Response> response = rest.valueByKey("a", null, null, null, "{\"t\":{\"1\":7}}")
+        .toCompletableFuture();
+    assertFalse(response.isDone());
+    reached.complete(true);
+    assertArrayEquals(new byte[] { 'v' }, (byte[]) response.join().getEntity());
+    assertThrows(BadRequestException.class, () -> rest.valueByKey("a", null, null, null, "{\"t\":7}"));
+  }
+
+  @Test
+  void testMinOffsetsTimeout() {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.awaitOffsets(Map.of(new TopicPartition("t", 0), 1L)))
+        .thenReturn(CompletableFuture.completedFuture(false));
+    CompletionException e = assertThrows(CompletionException.class,
+        () -> rest.values("{\"t\":{\"0\":1}}").toCompletableFuture().join());
+    assertTrue(e.getCause() instanceof javax.ws.rs.ServiceUnavailableException);
+  }
+
+  @Test
+  void testParseKeys() {
+    assertEquals(List.of("a", "b"), List.copyOf(CacheResource.parseKeys("[\"a\",\"b\",\"a\"]", "application/json")));
+    assertEquals(List.of("a", "b"), List.copyOf(CacheResource.parseKeys("a\n\nb\n", "text/plain")));
+    assertThrows(BadRequestException.class, () -> CacheResource.parseKeys("[1]", "application/json"));
+  }
+
+  @Test
+  void testValuesByKeys() throws IOException {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.getValue("a")).thenReturn(new byte[] { 'v' });
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) rest.valuesByKeysJson("a\nb", "text/plain", null).toCompletableFuture().join().getEntity())
+        .write(out);
+    assertEquals("{\"a\":\"v\",\"b\":null}", out.toString());
+    out.reset();
+    ((StreamingOutput) rest.valuesByKeys("[\"b\",\"a\"]", "application/json", null).toCompletableFuture().join()
+        .getEntity()).write(out);
+    assertArrayEquals(new byte[] { -1, -1, -1, -1, 0, 0, 0, 1, 'v' }, out.toByteArray());
+  }
+
+  @Test
+  void testAcceptsGzip() {
+    assertFalse(CacheResource.acceptsGzip(null));
+    assertFalse(CacheResource.acceptsGzip("br, deflate"));
+    assertTrue(CacheResource.acceptsGzip("br, GZIP"));
+    assertTrue(CacheResource.acceptsGzip("gzip;q=0.5"));
+    assertFalse(CacheResource.acceptsGzip("gzip; q=0"));
+  }
+
   @Test
   void testKeysUnready() {
     CacheResource rest = new CacheResource();
     rest.cache = Mockito.mock(KafkaCache.class);
     Mockito.when(rest.cache.isReady()).thenReturn(false);
     try {
-      rest.keys();
+      rest.keys(null, null);
       fail("Should have deined the request when cache isn't ready");
     } catch (javax.ws.rs.ServiceUnavailableException e) {
       assertEquals("Denied because cache is unready, check /health for status", e.getMessage());
     }
   }
 
+  @Test
+  void testKeysFromSnapshot() throws IOException {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Snapshot entries = Mockito.mock(Snapshot.class);
+    Mockito.when(entries.iterator()).thenReturn(Map.of("k", new byte[] { 'v' }).entrySet().iterator());
+    Mockito.when(rest.cache.getSnapshot()).thenReturn(
+        new CacheSnapshot(entries, Map.of(new TopicPartition("t", 0), 5L)));
+    Response response = rest.keys(null, null).toCompletableFuture().join();
+    assertEquals("{\"t\":{\"0\":5}}", response.getHeaderString(CacheResource.HEADER_SNAPSHOT_OFFSETS));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(out);
+    assertEquals("k\n", out.toString());
+    Mockito.verify(entries).close();
+  }
+
+  @Test
+  void testKeysWithPrefix() throws IOException {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.getKeysWithPrefix("tenant:1:")).thenReturn(new TreeSet<>(Set.of("tenant:1:a", "tenant:1:b")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) rest.keys("tenant:1:", null).toCompletableFuture().join().getEntity()).write(out);
+    assertEquals("tenant:1:a\ntenant:1:b\n", out.toString());
+  }
+
+  @Test
+  void testKeysWithPrefixUnsorted() {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    WebApplicationException e = assertThrows(WebApplicationException.class, () -> rest.keysJson("tenant:1:", null));
+    assertEquals(501, e.getResponse().getStatus());
+  }
+
+  @Test
+  void testEntriesPages() throws IOException {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.getKeyRange("b", null)).thenReturn(new TreeSet<>(Set.of("b", "c", "d")));
+    Mockito.when(rest.cache.getKeyRange("c", null)).thenReturn(new TreeSet<>(Set.of("c", "d")));
+    Mockito.when(rest.cache.getValue("b")).thenReturn(new byte[] { '1' });
+    Mockito.when(rest.cache.getValue("d")).thenReturn(new byte[] { '3' });
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) rest.entries("b", null, 1, null).toCompletableFuture().join().getEntity()).write(out);
+    assertEquals("{\"entries\":[{\"key\":\"b\",\"value\":\"1\"}],\"next\":\"c\"}", out.toString());
+    out.reset();
+    ((StreamingOutput) rest.entries("c", null, 1, null).toCompletableFuture().join().getEntity()).write(out);
+    assertEquals("{\"entries\":[{\"key\":\"d\",\"value\":\"3\"}],\"next\":null}", out.toString(),
+        "A key that's gone since it was indexed should be skipped");
+    assertThrows(BadRequestException.class, () -> rest.entries(null, null, 0, null));
+  }
+
+  @Test
+  void testEntriesBinaryFromSnapshot() throws IOException {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Snapshot entries = Mockito.mock(Snapshot.class);
+    Mockito.when(entries.iterator()).thenReturn(Map.of("k", new byte[] { 'v' }).entrySet().iterator());
+    Mockito.when(rest.cache.getSnapshot()).thenReturn(
+        new CacheSnapshot(entries, Map.of(new TopicPartition("t", 0), 5L)));
+    Response response = rest.entriesBinary(null).toCompletableFuture().join();
+    assertEquals("{\"t\":{\"0\":5}}", response.getHeaderString(CacheResource.HEADER_SNAPSHOT_OFFSETS));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(out);
+    assertArrayEquals(new byte[] { 0, 0, 0, 1, 0, 0, 0, 1, 'k', 'v' }, out.toByteArray());
+    Mockito.verify(entries).close();
+  }
+
+  @Test
+  void testIndexedKeys() throws IOException {
+    CacheResource rest = new CacheResource();
+    rest.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(rest.cache.isReady()).thenReturn(true);
+    Mockito.when(rest.cache.getIndexedKeys("status", "open")).thenReturn(Set.of("a"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) rest.indexedKeys("status", "open", null).toCompletableFuture().join().getEntity()).write(out);
+    assertEquals("[\"a\"]", out.toString());
+    assertThrows(javax.ws.rs.NotFoundException.class, () -> rest.indexedKeys("nope", "open", null));
+  }
+
+  @Test
+  void testFormatChange() {
+    TopicPartition partition = new TopicPartition("t", 1);
+    assertEquals("{\"key\":\"k\",\"topic\":\"t\",\"partition\":1,\"offset\":5,\"value\":\"v\"}",
+        CacheResource.formatChange(new ChangeFeed.Change(partition, 5, "k", new byte[] { 'v' }), true));
+    assertEquals("{\"key\":\"k\",\"topic\":\"t\",\"partition\":1,\"offset\":5}",
+        CacheResource.formatChange(new ChangeFeed.Change(partition, 5, "k", new byte[] { 'v' }), false));
+    assertEquals("{\"key\":\"k\",\"topic\":\"t\",\"partition\":1,\"offset\":6,\"deleted\":true}",
+        CacheResource.formatChange(new ChangeFeed.Change(partition, 6, "k", null), true));
+  }
+
   @Test
   void testKeysJsonUnready() {
     CacheResource rest = new CacheResource();
     rest.cache = Mockito.mock(KafkaCache.class);
     Mockito.when(rest.cache.isReady()).thenReturn(false);
     try {
-      rest.keys();
+      rest.keys(null, null);
       fail("Should have deined the request when cache isn't ready");
     } catch (javax.ws.rs.ServiceUnavailableException e) {
       assertEquals("Denied because cache is unready, check /health for status", e.getMessage());
@@ -70,7 +295,7 @@ class CacheResourceTest {
     rest.cache = Mockito.mock(KafkaCache.class);
     Mockito.when(rest.cache.isReady()).thenReturn(false);
     try {
-      rest.values();
+      rest.values(null);
       fail("Should have deined the request when cache isn't ready");
     } catch (javax.ws.rs.ServiceUnavailableException e) {
       assertEquals("Denied because cache is unready, check /health for status", e.getMessage());
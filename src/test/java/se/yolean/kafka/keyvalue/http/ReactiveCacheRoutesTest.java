@@ -0,0 +1,106 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import se.yolean.kafka.keyvalue.ConfigureCache;
+import se.yolean.kafka.keyvalue.KafkaCache;
+import se.yolean.kafka.keyvalue.store.KeyMetadata;
+
+class ReactiveCacheRoutesTest {
+
+  static RoutingContext mockContext(String key) {
+    RoutingContext ctx = Mockito.mock(RoutingContext.class);
+    Mockito.when(ctx.request()).thenReturn(Mockito.mock(HttpServerRequest.class));
+    HttpServerResponse response = Mockito.mock(HttpServerResponse.class, Mockito.RETURNS_SELF);
+    Mockito.when(ctx.response()).thenReturn(response);
+    Mockito.when(ctx.pathParam("key")).thenReturn(key);
+    return ctx;
+  }
+
+  @Test
+  void testValueByKeyUnready() {
+    ReactiveCacheRoutes routes = new ReactiveCacheRoutes();
+    routes.cache = Mockito.mock(KafkaCache.class);
+    RoutingContext ctx = mockContext("k");
+    routes.valueByKey(ctx);
+    Mockito.verify(ctx.response()).setStatusCode(503);
+  }
+
+  @Test
+  void testValueByKeyMiss() {
+    ReactiveCacheRoutes routes = new ReactiveCacheRoutes();
+    routes.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(routes.cache.isReady()).thenReturn(true);
+    RoutingContext ctx = mockContext("k");
+    routes.valueByKey(ctx);
+    Mockito.verify(ctx.response()).setStatusCode(404);
+    Mockito.verify(ctx.response()).end();
+  }
+
+  @Test
+  void testValueByKeyNotModified() {
+    ReactiveCacheRoutes routes = new ReactiveCacheRoutes();
+    routes.cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(routes.cache.isReady()).thenReturn(true);
+    Mockito.when(routes.cache.getSource("k")).thenReturn(
+        new KeyMetadata.Source(new TopicPartition("t", 0), 7, 1000));
+    RoutingContext ctx = mockContext("k");
+    Mockito.when(ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH)).thenReturn("W/\"t-0-7\"");
+    routes.valueByKey(ctx);
+    Mockito.verify(ctx.response()).setStatusCode(304);
+    Mockito.verify(ctx.response()).putHeader(HttpHeaders.ETAG, "W/\"t-0-7\"");
+    Mockito.verify(routes.cache, Mockito.times(0)).getValue("k");
+  }
+
+  @Test
+  void testIsNotModified() {
+    KeyMetadata.Source source = new KeyMetadata.Source(new TopicPartition("t", 0), 7, 1500);
+    assertTrue(ReactiveCacheRoutes.isNotModified("\"t-0-7\"", null, source));
+    assertTrue(ReactiveCacheRoutes.isNotModified("W/\"t-0-6\", W/\"t-0-7\"", null, source));
+    assertTrue(ReactiveCacheRoutes.isNotModified("*", null, source));
+    assertFalse(ReactiveCacheRoutes.isNotModified("W/\"t-0-6\"", ReactiveCacheRoutes.formatHttpDate(1000), source),
+        "If-Modified-Since should be ignored when there's If-None-Match");
+    assertTrue(ReactiveCacheRoutes.isNotModified(null, ReactiveCacheRoutes.formatHttpDate(1000), source),
+        "HTTP dates have second precision");
+    assertFalse(ReactiveCacheRoutes.isNotModified(null, ReactiveCacheRoutes.formatHttpDate(0), source));
+    assertFalse(ReactiveCacheRoutes.isNotModified(null, "yesterday", source));
+    assertFalse(ReactiveCacheRoutes.isNotModified(null, null, source));
+  }
+
+  @Test
+  void testIsDiskBacked() {
+    assertFalse(ReactiveCacheRoutes.isDiskBacked(ConfigureCache.CACHE_TYPE_INMEMORY));
+    assertFalse(ReactiveCacheRoutes.isDiskBacked(ConfigureCache.CACHE_TYPE_OFFHEAP));
+    assertTrue(ReactiveCacheRoutes.isDiskBacked(ConfigureCache.CACHE_TYPE_PERSISTENT));
+    assertTrue(ReactiveCacheRoutes.isDiskBacked(ConfigureCache.CACHE_TYPE_TIERED));
+  }
+
+  @Test
+  void testFormatHttpDate() {
+    assertEquals("Thu, 1 Jan 1970 00:00:01 GMT", ReactiveCacheRoutes.formatHttpDate(1000));
+  }
+
+}
@@ -0,0 +1,44 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class GlobPatternTest {
+
+  @Test
+  void testMatches() {
+    assertTrue(new GlobPattern("user:*").matches("user:1"));
+    assertTrue(new GlobPattern("user:*").matches("user:"));
+    assertFalse(new GlobPattern("user:*").matches("users"));
+    assertTrue(new GlobPattern("*:1").matches("user:1"));
+    assertTrue(new GlobPattern("u*r:*1").matches("user:21"));
+    assertFalse(new GlobPattern("u*r:*1").matches("user:12"));
+    assertTrue(new GlobPattern("h?llo").matches("hallo"));
+    assertFalse(new GlobPattern("h?llo").matches("hllo"));
+    assertTrue(new GlobPattern("h[ae]llo").matches("hello"));
+    assertFalse(new GlobPattern("h[ae]llo").matches("hillo"));
+    assertTrue(new GlobPattern("h[^e]llo").matches("hallo"));
+    assertFalse(new GlobPattern("h[^e]llo").matches("hello"));
+    assertTrue(new GlobPattern("h[a-c]llo").matches("hbllo"));
+    assertFalse(new GlobPattern("h[a-c]llo").matches("hdllo"));
+    assertTrue(new GlobPattern("a\\*").matches("a*"));
+    assertFalse(new GlobPattern("a\\*").matches("ab"));
+    assertTrue(new GlobPattern("").matches(""));
+  }
+
+}
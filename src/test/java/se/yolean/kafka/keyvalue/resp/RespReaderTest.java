@@ -0,0 +1,90 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+class RespReaderTest {
+
+  static List<String> strings(List<byte[]> command) {
+    return command == null ? null
+        : command.stream().map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList());
+  }
+
+  static void feed(RespReader reader, String data) {
+    reader.feed(data.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testPipelined() {
+    RespReader reader = new RespReader();
+    feed(reader, "*2\r\n$3\r\nGET\r\n$1\r\na\r\n*3\r\n$4\r\nMGET\r\n$1\r\nb\r\n$0\r\n\r\n");
+    assertEquals(List.of("GET", "a"), strings(reader.next()));
+    assertEquals(List.of("MGET", "b", ""), strings(reader.next()));
+    assertNull(reader.next());
+  }
+
+  @Test
+  void testPartial() {
+    RespReader reader = new RespReader();
+    String command = "*2\r\n$3\r\nGET\r\n$5\r\nkey\r\n\r\n";
+    for (int i = 0; i < command.length() - 1; i++) {
+      feed(reader, command.substring(i, i + 1));
+      assertNull(reader.next(), "After " + (i + 1) + " bytes");
+    }
+    feed(reader, "\n");
+    assertEquals(List.of("GET", "key\r\n"), strings(reader.next()), "Bulk strings are binary safe");
+  }
+
+  @Test
+  void testLargerThanBuffer() {
+    RespReader reader = new RespReader();
+    String key = "k".repeat(5000);
+    feed(reader, "*2\r\n$3\r\nGET\r\n$5000\r\n" + key.substring(0, 100));
+    assertNull(reader.next());
+    feed(reader, key.substring(100) + "\r\n");
+    assertEquals(List.of("GET", key), strings(reader.next()));
+  }
+
+  @Test
+  void testInline() {
+    RespReader reader = new RespReader();
+    feed(reader, "PING\r\n\r\nGET  a\n*0\r\nEXISTS a b\r\n");
+    assertEquals(List.of("PING"), strings(reader.next()));
+    assertEquals(List.of("GET", "a"), strings(reader.next()), "Empty lines and extra spaces should be skipped");
+    assertEquals(List.of("EXISTS", "a", "b"), strings(reader.next()), "Empty arrays should be skipped");
+    assertNull(reader.next());
+  }
+
+  @Test
+  void testProtocolErrors() {
+    RespReader reader = new RespReader();
+    feed(reader, "*1\r\n+GET\r\n");
+    assertThrows(IllegalArgumentException.class, reader::next);
+    RespReader length = new RespReader();
+    feed(length, "*1\r\n$-1\r\n");
+    assertThrows(IllegalArgumentException.class, length::next);
+    RespReader crlf = new RespReader();
+    feed(crlf, "*1\r\n$1\r\nab\r\n");
+    assertThrows(IllegalArgumentException.class, crlf::next);
+  }
+
+}
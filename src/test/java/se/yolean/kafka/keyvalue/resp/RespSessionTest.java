@@ -0,0 +1,145 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.resp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import se.yolean.kafka.keyvalue.KafkaCache;
+
+class RespSessionTest {
+
+  static List<byte[]> command(String... args) {
+    return Arrays.stream(args).map(a -> a.getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList());
+  }
+
+  static String execute(RespSession session, String... args) {
+    RespWriter out = new RespWriter();
+    session.execute(command(args), out);
+    return new String(out.drain(), StandardCharsets.UTF_8);
+  }
+
+  static KafkaCache readyCache() {
+    KafkaCache cache = Mockito.mock(KafkaCache.class);
+    Mockito.when(cache.isReady()).thenReturn(true);
+    return cache;
+  }
+
+  @Test
+  void testGet() {
+    KafkaCache cache = readyCache();
+    Mockito.when(cache.getValue("a")).thenReturn("1".getBytes());
+    RespSession session = new RespSession(cache);
+    assertEquals("$1\r\n1\r\n", execute(session, "get", "a"));
+    assertEquals("$-1\r\n", execute(session, "GET", "b"));
+    assertEquals("*2\r\n$1\r\n1\r\n$-1\r\n", execute(session, "MGET", "a", "b"));
+    assertEquals(":2\r\n", execute(session, "EXISTS", "a", "b", "a"));
+    assertEquals("-ERR wrong number of arguments for 'get' command\r\n", execute(session, "GET"));
+  }
+
+  @Test
+  void testUnready() {
+    RespSession session = new RespSession(Mockito.mock(KafkaCache.class));
+    assertTrue(execute(session, "GET", "a").startsWith("-LOADING "));
+    assertEquals("+PONG\r\n", execute(session, "PING"));
+  }
+
+  @Test
+  void testReadOnly() {
+    RespSession session = new RespSession(readyCache());
+    assertTrue(execute(session, "SET", "a", "1").startsWith("-ERR unknown command 'SET'"));
+    RespWriter out = new RespWriter();
+    assertFalse(session.execute(command("QUIT"), out));
+  }
+
+  @Test
+  void testScan() {
+    KafkaCache cache = readyCache();
+    Mockito.when(cache.getKeys()).thenReturn(List.of("a1", "b1", "a2").iterator());
+    Mockito.when(cache.getSize()).thenReturn(3);
+    RespSession session = new RespSession(cache);
+    assertEquals(":3\r\n", execute(session, "DBSIZE"));
+    assertEquals("*2\r\n$1\r\n1\r\n*1\r\n$2\r\na1\r\n", execute(session, "SCAN", "0", "MATCH", "a*", "COUNT", "2"));
+    assertEquals("*2\r\n$1\r\n0\r\n*1\r\n$2\r\na2\r\n", execute(session, "SCAN", "1", "MATCH", "a*", "COUNT", "2"));
+    assertEquals("-ERR invalid cursor\r\n", execute(session, "SCAN", "1"), "Completed scans should be forgotten");
+    assertEquals("-ERR syntax error\r\n", execute(session, "SCAN", "0", "TYPE", "string"));
+  }
+
+  @Test
+  void testScanWhileConsuming() {
+    KafkaCache cache = readyCache();
+    List<String> keys = new ArrayList<>(List.of("a1", "a2", "a3"));
+    Mockito.when(cache.getKeys()).thenAnswer(invocation -> keys.iterator());
+    RespSession session = new RespSession(cache);
+    assertEquals("*2\r\n$1\r\n1\r\n*1\r\n$2\r\na1\r\n", execute(session, "SCAN", "0", "COUNT", "1"));
+    keys.remove("a2");
+    keys.add("a4");
+    assertEquals("*2\r\n$1\r\n0\r\n*2\r\n$2\r\na2\r\n$2\r\na3\r\n", execute(session, "SCAN", "1", "COUNT", "2"),
+        "The scan should continue over the keys it started with");
+  }
+
+  @Test
+  void testScanDeferred() {
+    KafkaCache cache = readyCache();
+    Mockito.when(cache.getKeys()).thenReturn(List.of("a1").iterator());
+    List<Runnable> copies = new ArrayList<>();
+    RespSession session = new RespSession(cache, copies::add, new Semaphore(1));
+    assertEquals("", execute(session, "SCAN", "0"), "The reply should wait for the copy");
+    assertNotNull(session.getDeferred());
+    copies.forEach(Runnable::run);
+    RespWriter out = new RespWriter();
+    assertTrue(session.resume(out));
+    assertNull(session.getDeferred());
+    assertEquals("*2\r\n$1\r\n0\r\n*1\r\n$2\r\na1\r\n", new String(out.drain(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testScanPermits() {
+    KafkaCache cache = readyCache();
+    Mockito.when(cache.getKeys()).thenAnswer(invocation -> List.of("a1", "a2").iterator());
+    Semaphore permits = new Semaphore(1);
+    RespSession first = new RespSession(cache, Runnable::run, permits);
+    RespSession second = new RespSession(cache, Runnable::run, permits);
+    assertEquals("*2\r\n$1\r\n1\r\n*1\r\n$2\r\na1\r\n", execute(first, "SCAN", "0", "COUNT", "1"));
+    assertEquals("-" + RespSession.ERR_TOO_MANY_SCANS + "\r\n", execute(second, "SCAN", "0"),
+        "Scans in progress should be limited across connections");
+    first.close();
+    assertEquals("*2\r\n$1\r\n0\r\n*2\r\n$2\r\na1\r\n$2\r\na2\r\n", execute(second, "SCAN", "0"));
+    assertEquals(1, permits.availablePermits(), "A completed scan should release its permit");
+  }
+
+  @Test
+  void testUnexpectedException() {
+    KafkaCache cache = readyCache();
+    Mockito.when(cache.getValue("a")).thenReturn("1".getBytes());
+    Mockito.when(cache.getValue("b")).thenThrow(new IllegalStateException("test"));
+    RespSession session = new RespSession(cache);
+    RespWriter out = new RespWriter();
+    assertTrue(session.execute(command("MGET", "a", "b"), out));
+    assertTrue(session.execute(command("GET", "a"), out));
+    assertEquals("-ERR IllegalStateException\r\n$1\r\n1\r\n", new String(out.drain(), StandardCharsets.UTF_8),
+        "A partial reply should be replaced with an error");
+  }
+
+}
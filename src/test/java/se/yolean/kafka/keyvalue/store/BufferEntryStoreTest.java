@@ -0,0 +1,89 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BufferEntryStoreTest {
+
+  @TempDir
+  Path dir;
+
+  static Map<String, String> read(byte[] frames) {
+    Map<String, String> entries = new HashMap<>();
+    ByteBuffer b = ByteBuffer.wrap(frames);
+    while (b.hasRemaining()) {
+      byte[] key = new byte[b.getInt()];
+      byte[] value = new byte[b.getInt()];
+      b.get(key).get(value);
+      assertNull(entries.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8)));
+    }
+    return entries;
+  }
+
+  static Map<String, String> write(BufferEntryStore store) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store.writeEntries(Channels.newChannel(out));
+    return read(out.toByteArray());
+  }
+
+  @Test
+  void testPersistentMappedMap() throws IOException {
+    PersistentMappedMap map = new PersistentMappedMap(dir, 0, 64);
+    map.put("a", "1".getBytes());
+    map.put("å", "{\"x\":2}".getBytes());
+    map.put("a", "3".getBytes());
+    map.put("empty", new byte[0]);
+    map.put("gone", "4".getBytes());
+    map.remove("gone");
+    assertEquals(Map.of("a", "3", "å", "{\"x\":2}", "empty", ""), write(map));
+  }
+
+  @Test
+  void testOffHeapValueMap() throws IOException {
+    OffHeapValueMap map = new OffHeapValueMap(0, 1024);
+    map.put("a", "1".getBytes());
+    map.put("a", "2".getBytes());
+    String big = "x".repeat(3000);
+    map.put("big", big.getBytes());
+    map.put("small", "s".getBytes());
+    map.put("empty", new byte[0]);
+    assertEquals(Map.of("a", "2", "big", big, "small", "s", "empty", ""), write(map));
+  }
+
+  @Test
+  void testEntries() throws IOException {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    map.put("a", "1".getBytes());
+    map.put("b", new byte[0]);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BufferEntryStore.writeEntries(map.entrySet().iterator(), Channels.newChannel(out));
+    assertEquals(2 * BufferEntryStore.FRAME_HEADER_SIZE + 3, out.size());
+    assertEquals(Map.of("a", "1", "b", ""), read(out.toByteArray()));
+  }
+
+}
@@ -0,0 +1,100 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class CompactKeyMapTest {
+
+  static final String[] KEYS = { "", "a", "tenant:123:x", "åäö", "€", "😀" };
+
+  @Test
+  void testUtf8MatchesString() {
+    for (String key : KEYS) {
+      byte[] expected = key.getBytes(StandardCharsets.UTF_8);
+      byte[] written = new byte[Utf8.length(key)];
+      assertEquals(written.length, Utf8.write(key, written, 0));
+      assertArrayEquals(expected, written, key);
+      assertEquals(Utf8.hash(expected, 0, expected.length), Utf8.hash(key), key);
+      assertTrue(Utf8.equals(key, expected, 0, expected.length), key);
+      assertFalse(Utf8.equals(key + "x", expected, 0, expected.length), key);
+    }
+  }
+
+  @Test
+  void testPutGetRemove() {
+    CompactKeyMap map = new CompactKeyMap(0);
+    for (String key : KEYS) {
+      assertNull(map.put(key, key.getBytes(StandardCharsets.UTF_8)));
+    }
+    assertEquals(KEYS.length, map.size());
+    for (String key : KEYS) {
+      assertArrayEquals(key.getBytes(StandardCharsets.UTF_8), map.get(key), key);
+    }
+    assertNull(map.get("b"));
+    assertArrayEquals("a".getBytes(), map.put("a", new byte[] { 1 }));
+    assertArrayEquals(new byte[] { 1 }, map.remove("a"));
+    assertNull(map.get("a"));
+    assertEquals(KEYS.length - 1, map.size());
+  }
+
+  @Test
+  void testUnpairedSurrogateRejected() {
+    CompactKeyMap map = new CompactKeyMap(0);
+    assertThrows(IllegalArgumentException.class, () -> map.put("bad\uD800", new byte[0]));
+    assertThrows(IllegalArgumentException.class, () -> map.put("bad\uDC00", new byte[0]));
+    assertThrows(IllegalArgumentException.class, () -> map.put("\uD83D", new byte[0]), "High surrogate at the end");
+    assertEquals(0, map.size());
+    assertNull(map.get("bad\uD800"));
+    assertNull(map.remove("bad\uD800"));
+    map.put("bad?", new byte[0]);
+    assertNull(map.get("bad\uD800"), "Shouldn't collide with the replacement that String.getBytes uses");
+  }
+
+  @Test
+  void testWriteKeys() throws IOException {
+    CompactKeyMap map = new CompactKeyMap(0);
+    map.put("x", new byte[0]);
+    map.put("åäö", new byte[0]);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    map.writeKeys(out, (byte) '\n');
+    Set<String> lines = Set.of(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+    assertEquals(Set.of("x", "åäö"), lines);
+  }
+
+  @Test
+  void testChurnCompactsArena() {
+    CompactKeyMap map = new CompactKeyMap(0);
+    for (int i = 0; i < 200000; i++) {
+      map.put("key-" + i, new byte[] { (byte) i });
+      if (i >= 1000) map.remove("key-" + (i - 1000));
+    }
+    assertEquals(1000, map.size());
+    assertTrue(map.getArenaBytes() < 2 * CompactKeyMap.PAGE_SIZE, "Arena should be compacted, got " + map.getArenaBytes());
+    Set<String> keys = new HashSet<>(map.keySet());
+    assertEquals(1000, keys.size());
+    assertTrue(keys.contains("key-199999"));
+    assertEquals((byte) 199999, map.get("key-199999")[0]);
+  }
+
+}
@@ -0,0 +1,122 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+class CompressedValueMapTest {
+
+  static final byte[] JSON = ("{\"status\":\"active\",\"settings\":{"
+      + "\"notifications\":true,\"newsletter\":true,\"darkmode\":true,\"autosave\":true,"
+      + "\"notifications2\":true,\"newsletter2\":true,\"darkmode2\":true,\"autosave2\":true}}").getBytes();
+
+  @Test
+  void testBelowThreshold() {
+    Map<String, byte[]> stored = new HashMap<>();
+    CompressedValueMap map = new CompressedValueMap(stored, 1000);
+    map.put("a", JSON);
+    assertSame(JSON, stored.get("a"));
+    assertNull(map.getGzip("a"));
+    assertArrayEquals(JSON, map.get("a"));
+  }
+
+  @Test
+  void testCompressedIsValidGzip() throws IOException {
+    Map<String, byte[]> stored = new HashMap<>();
+    CompressedValueMap map = new CompressedValueMap(stored, 16);
+    map.put("a", JSON);
+    byte[] gzip = map.getGzip("a");
+    assertNotNull(gzip);
+    assertTrue(gzip.length < JSON.length);
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+      assertArrayEquals(JSON, in.readAllBytes());
+    }
+    assertArrayEquals(JSON, map.get("a"));
+    assertEquals(1, map.getDecodeCount());
+    assertEquals((double) JSON.length / gzip.length, map.getCompressionRatio(), 0.001);
+  }
+
+  @Test
+  void testIncompressibleStoredRaw() {
+    Map<String, byte[]> stored = new HashMap<>();
+    CompressedValueMap map = new CompressedValueMap(stored, 1);
+    byte[] value = new byte[] { 1, 2, 3 };
+    map.put("a", value);
+    assertSame(value, stored.get("a"));
+  }
+
+  @Test
+  void testRawValueWithGzipMagic() {
+    CompressedValueMap map = new CompressedValueMap(new HashMap<>(), 1000);
+    byte[] value = new byte[] { 0x1f, (byte) 0x8b, 0 };
+    map.put("a", value);
+    assertArrayEquals(value, map.get("a"), "Values that look compressed must be wrapped to be told apart");
+    assertNotNull(map.getGzip("a"));
+  }
+
+  @Test
+  void testOverwriteAndRemoveStats() {
+    CompressedValueMap map = new CompressedValueMap(new HashMap<>(), 16);
+    map.put("a", JSON);
+    map.put("a", JSON);
+    map.put("b", JSON);
+    double ratio = map.getCompressionRatio();
+    assertArrayEquals(JSON, map.remove("b"));
+    assertEquals(ratio, map.getCompressionRatio(), 0.001);
+    map.remove("a");
+    assertTrue(Double.isNaN(map.getCompressionRatio()));
+  }
+
+  @Test
+  void testLengthsWithoutDecoding() {
+    CompressedValueMap map = new CompressedValueMap(new HashMap<>(), 16);
+    assertEquals(ValueLengthStore.ABSENT, map.putForLength("a", JSON));
+    assertEquals(JSON.length, map.getLength("a"));
+    assertEquals(JSON.length, map.putForLength("a", new byte[] { 1 }));
+    map.put("b", JSON);
+    assertArrayEquals(JSON, map.put("b", JSON));
+    assertEquals(JSON.length, map.removeForLength("b"));
+    assertEquals(ValueLengthStore.ABSENT, map.removeForLength("b"));
+    assertEquals(0, map.getDecodeCount(), "Writes shouldn't count as decodes");
+  }
+
+  @Test
+  void testLargeValue() {
+    CompressedValueMap map = new CompressedValueMap(new HashMap<>(), 16);
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < 100000; i++) s.append(i % 10 == 0 ? "\n" : "x" + i);
+    byte[] value = s.toString().getBytes();
+    map.put("a", value);
+    assertArrayEquals(value, map.get("a"));
+  }
+
+  @Test
+  void testFind() {
+    Map<String, byte[]> stored = new SingleWriterHashMap(0);
+    CompressedValueMap map = new CompressedValueMap(stored, 16);
+    assertSame(map, DelegatingStore.find(map, CompressedValueMap.class));
+    assertSame(stored, DelegatingStore.find(map, SingleWriterHashMap.class));
+    assertNull(DelegatingStore.find(map, CheckpointStore.class));
+  }
+
+}
@@ -0,0 +1,57 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class DedupValueMapTest {
+
+  @Test
+  void testSharedValues() {
+    DedupValueMap map = new DedupValueMap(new SingleWriterHashMap(0));
+    map.put("a", "{}".getBytes());
+    map.put("b", "{}".getBytes());
+    map.put("c", "{\"x\":1}".getBytes());
+    assertSame(map.get("a"), map.get("b"));
+    assertEquals(2, map.getSavedBytes());
+    assertEquals(2, map.getPooledCount());
+
+    assertEquals("{}", new String(map.put("a", "{\"x\":1}".getBytes())));
+    assertSame(map.get("a"), map.get("c"));
+    assertEquals("{}", new String(map.get("b")));
+    assertEquals(7, map.getSavedBytes());
+
+    map.remove("b");
+    assertEquals(1, map.getPooledCount(), "Unreferenced values should leave the pool");
+    map.put("c", null);
+    assertEquals(0, map.getSavedBytes());
+    assertEquals("{\"x\":1}", new String(map.get("a")));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  void testSameValueAgain() {
+    DedupValueMap map = new DedupValueMap(new SingleWriterHashMap(0));
+    map.put("a", "1".getBytes());
+    map.put("a", "1".getBytes());
+    assertEquals(0, map.getSavedBytes());
+    assertEquals(1, map.getPooledCount());
+    map.remove("a");
+    assertEquals(0, map.getPooledCount());
+  }
+
+}
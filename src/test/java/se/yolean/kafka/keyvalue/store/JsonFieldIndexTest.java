@@ -0,0 +1,71 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class JsonFieldIndexTest {
+
+  private static void update(JsonFieldIndex index, String key, String value) {
+    index.update(key, value == null ? null : JsonFieldIndex.read(value.getBytes()));
+  }
+
+  @Test
+  void testOverwriteAndTombstone() {
+    JsonFieldIndex index = new JsonFieldIndex("status", "/status");
+    update(index, "a", "{\"status\":\"open\"}");
+    update(index, "b", "{\"status\":\"open\",\"x\":1}");
+    update(index, "c", "{\"status\":\"closed\"}");
+    assertEquals(Set.of("a", "b"), index.getKeys("open"));
+    update(index, "a", "{\"status\":\"closed\"}");
+    assertEquals(Set.of("b"), index.getKeys("open"));
+    assertEquals(Set.of("a", "c"), index.getKeys("closed"));
+    update(index, "b", null);
+    assertEquals(Set.of(), index.getKeys("open"));
+    update(index, "c", "not json");
+    assertEquals(Set.of("a"), index.getKeys("closed"));
+    update(index, "a", "{\"other\":true}");
+    assertEquals(Set.of(), index.getKeys("closed"));
+  }
+
+  @Test
+  void testNestedAndScalars() {
+    JsonFieldIndex index = new JsonFieldIndex("n", "/meta/n");
+    update(index, "a", "{\"meta\":{\"n\":12}}");
+    update(index, "b", "{\"meta\":{\"n\":true}}");
+    update(index, "c", "{\"meta\":{\"n\":null}}");
+    update(index, "d", "{\"meta\":{\"n\":{\"deeper\":1}}}");
+    update(index, "e", "[1]");
+    assertEquals(Set.of("a"), index.getKeys("12"));
+    assertEquals(Set.of("b"), index.getKeys("true"));
+    assertEquals(Set.of("c"), index.getKeys("null"));
+    assertEquals(Set.of(), index.getKeys("{\"deeper\":1}"), "Objects aren't indexed");
+  }
+
+  @Test
+  void testParse() {
+    List<JsonFieldIndex> indexes = JsonFieldIndex.parse("status=/status, tenant=/meta/tenant");
+    assertEquals(2, indexes.size());
+    assertEquals("tenant", indexes.get(1).getName());
+    assertThrows(RuntimeException.class, () -> JsonFieldIndex.parse("/status"));
+    assertThrows(RuntimeException.class, () -> JsonFieldIndex.parse("status=status"));
+  }
+
+}
@@ -0,0 +1,70 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+class KeyMetadataTest {
+
+  @Test
+  void testPutGetRemove() {
+    KeyMetadata metadata = new KeyMetadata(0);
+    TopicPartition t1 = new TopicPartition("t", 1);
+    metadata.put("a", t1, 10, 1000);
+    metadata.put("b", new TopicPartition("u", 0), 11, 1001);
+    assertEquals(t1, metadata.get("a").getTopicPartition());
+    assertEquals(10, metadata.get("a").getOffset());
+    assertEquals(1000, metadata.get("a").getTimestamp());
+    metadata.put("a", t1, 12, 1002);
+    assertEquals(12, metadata.get("a").getOffset());
+    assertEquals("u", metadata.get("b").getTopicPartition().topic());
+    metadata.remove("a");
+    assertNull(metadata.get("a"));
+    metadata.remove("a");
+    assertEquals(1, metadata.size());
+  }
+
+  @Test
+  void testAgainstHashMap() {
+    KeyMetadata metadata = new KeyMetadata(0);
+    TopicPartition p = new TopicPartition("t", 0);
+    Map<String, Long> expected = new HashMap<>();
+    Random random = new Random(1);
+    for (long offset = 0; offset < 50000; offset++) {
+      String key = "k" + random.nextInt(3000);
+      if (random.nextInt(3) == 0) {
+        expected.remove(key);
+        metadata.remove(key);
+      } else {
+        expected.put(key, offset);
+        metadata.put(key, p, offset, offset);
+      }
+    }
+    assertEquals(expected.size(), metadata.size());
+    for (int i = 0; i < 3000; i++) {
+      String key = "k" + i;
+      KeyMetadata.Source source = metadata.get(key);
+      assertEquals(expected.get(key), source == null ? null : source.getOffset(), key);
+    }
+  }
+
+}
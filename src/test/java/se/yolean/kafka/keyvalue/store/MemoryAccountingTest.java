@@ -0,0 +1,83 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+class MemoryAccountingTest {
+
+  @Test
+  void testPutOverwriteRemove() {
+    TopicPartition p0 = new TopicPartition("t", 0);
+    TopicPartition p1 = new TopicPartition("t", 1);
+    MemoryAccounting memory = new MemoryAccounting();
+    memory.onChange(p0, "å", ValueLengthStore.ABSENT, 10);
+    assertEquals(12, memory.getTotalBytes(), "Key bytes should be UTF-8");
+    memory.onChange(p0, "å", 10, 4);
+    assertEquals(6, memory.getTotalBytes());
+    memory.onChange(p1, "b", ValueLengthStore.ABSENT, 3);
+    assertEquals(10, memory.getTotalBytes());
+    assertEquals(6, memory.getPartitionBytes(p0).get());
+    assertEquals(4, memory.getPartitionBytes(p1).get());
+    memory.onChange(p0, "å", 4, ValueLengthStore.ABSENT);
+    assertEquals(0, memory.getPartitionBytes(p0).get());
+    assertEquals(4, memory.getTotalBytes());
+    memory.onChange(p1, "nope", ValueLengthStore.ABSENT, ValueLengthStore.ABSENT);
+    assertEquals(4, memory.getTotalBytes(), "Removing a missing key changes nothing");
+  }
+
+  @Test
+  void testRestored() {
+    MemoryAccounting memory = new MemoryAccounting();
+    memory.onRestored("a", 2);
+    assertEquals(3, memory.getTotalBytes());
+    assertEquals(3, memory.getRestoredBytes().get());
+    memory.onChange(new TopicPartition("t", 0), "a", 2, ValueLengthStore.ABSENT);
+    assertEquals(0, memory.getTotalBytes());
+    assertEquals(0, memory.getRestoredBytes().get());
+    assertEquals(0, memory.getPartitionBytes(new TopicPartition("t", 0)).get());
+  }
+
+  @Test
+  void testRestoredThenOverwritten() {
+    TopicPartition p0 = new TopicPartition("t", 0);
+    MemoryAccounting memory = new MemoryAccounting();
+    memory.onRestored("a", 9);
+    memory.onRestored("b", 9);
+    memory.onChange(p0, "a", 9, 4);
+    assertEquals(5, memory.getPartitionBytes(p0).get(), "The restored entry moves to the partition that overwrote it");
+    assertEquals(10, memory.getRestoredBytes().get());
+    assertEquals(15, memory.getTotalBytes());
+    memory.onChange(p0, "a", 4, 2);
+    assertEquals(3, memory.getPartitionBytes(p0).get(), "Only once");
+    memory.onChange(p0, "b", 9, ValueLengthStore.ABSENT);
+    assertEquals(3, memory.getPartitionBytes(p0).get());
+    assertEquals(0, memory.getRestoredBytes().get());
+    assertEquals(3, memory.getTotalBytes());
+  }
+
+  @Test
+  void testDelta() {
+    assertEquals(4, MemoryAccounting.delta("a", ValueLengthStore.ABSENT, 3));
+    assertEquals(0, MemoryAccounting.delta("a", 3, 3));
+    assertEquals(-1, MemoryAccounting.delta("a", 3, 2));
+    assertEquals(-4, MemoryAccounting.delta("a", 3, ValueLengthStore.ABSENT));
+    assertEquals(0, MemoryAccounting.delta("a", ValueLengthStore.ABSENT, ValueLengthStore.ABSENT));
+  }
+
+}
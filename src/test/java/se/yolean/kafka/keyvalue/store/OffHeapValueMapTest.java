@@ -0,0 +1,81 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Iterator;
+
+import org.junit.jupiter.api.Test;
+
+class OffHeapValueMapTest {
+
+  @Test
+  void testPutGetRemove() {
+    OffHeapValueMap map = new OffHeapValueMap(0, 1024);
+    assertNull(map.put("a", "v1".getBytes()));
+    assertEquals("v1", new String(map.get("a")));
+    assertEquals("v1", new String(map.put("a", "v2".getBytes())));
+    assertEquals("v2", new String(map.get("a")));
+    assertEquals("v2", new String(map.remove("a")));
+    assertNull(map.get("a"));
+    assertEquals(0, map.getChunkBytes());
+  }
+
+  @Test
+  void testNullValueRemoves() {
+    OffHeapValueMap map = new OffHeapValueMap(0, 1024);
+    map.put("a", new byte[0]);
+    assertEquals(0, map.get("a").length);
+    map.put("a", null);
+    assertFalse(map.containsKey("a"));
+  }
+
+  @Test
+  void testChunkReuse() {
+    OffHeapValueMap map = new OffHeapValueMap(0, 4096);
+    for (int i = 0; i < 1000; i++) {
+      map.put("k" + (i % 10), new byte[100 + i % 20]);
+    }
+    assertEquals(10, map.size());
+    assertEquals(4096, map.getReservedBytes(), "Freed chunks should be reused instead of growing");
+    assertEquals(10 * 128, map.getChunkBytes(), "Every value rounds up to 128 bytes");
+  }
+
+  @Test
+  void testLargerThanArena() {
+    OffHeapValueMap map = new OffHeapValueMap(0, 64);
+    byte[] big = new byte[1000];
+    big[999] = 9;
+    map.put("big", big);
+    assertEquals(9, map.get("big")[999]);
+    assertEquals(1000, map.getReservedBytes());
+    map.remove("big");
+    assertEquals(0, map.getReservedBytes());
+  }
+
+  @Test
+  void testIteration() {
+    OffHeapValueMap map = new OffHeapValueMap(0, 1024);
+    map.put("a", "1".getBytes());
+    map.put("b", "2".getBytes());
+    Iterator<byte[]> values = map.values().iterator();
+    int sum = 0;
+    while (values.hasNext()) sum += Integer.parseInt(new String(values.next()));
+    assertEquals(3, sum);
+    assertEquals(2, map.keySet().size());
+  }
+
+}
@@ -0,0 +1,119 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PersistentMappedMapTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testRestartFromCheckpoint() {
+    TopicPartition tp = new TopicPartition("topic.with-dashes", 3);
+    PersistentMappedMap map = new PersistentMappedMap(dir, 0, 1024);
+    assertTrue(map.getCheckpointOffsets().isEmpty());
+    assertNull(map.getCheckpointTime());
+    map.put("a", "1".getBytes());
+    map.put("b", "2".getBytes());
+    map.put("a", "3".getBytes());
+    map.put("b", null);
+    map.put("", new byte[0]);
+    Instant before = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    map.checkpoint(Collections.singletonMap(tp, 41L));
+
+    PersistentMappedMap restarted = new PersistentMappedMap(dir, 0, 1024);
+    assertEquals(Map.of(tp, 41L), restarted.getCheckpointOffsets());
+    assertFalse(restarted.getCheckpointTime().isBefore(before));
+    assertEquals("3", new String(restarted.get("a")));
+    assertFalse(restarted.containsKey("b"));
+    assertEquals(0, restarted.get("").length);
+    assertEquals(2, restarted.size());
+
+    restarted.put("c", "4".getBytes());
+    assertEquals("4", new String(restarted.get("c")), "Should append after replayed records");
+  }
+
+  @Test
+  void testNoCheckpointStartsEmpty() {
+    PersistentMappedMap map = new PersistentMappedMap(dir, 0, 1024);
+    map.put("a", "1".getBytes());
+    PersistentMappedMap restarted = new PersistentMappedMap(dir, 0, 1024);
+    assertEquals(0, restarted.size(), "Records without a checkpoint can't be trusted");
+  }
+
+  @Test
+  void testTornRecordStopsReplay() throws IOException {
+    PersistentMappedMap map = new PersistentMappedMap(dir, 0, 1024);
+    map.put("a", "1".getBytes());
+    map.put("b", "2".getBytes());
+    map.checkpoint(Collections.emptyMap());
+    Path segment = dir.resolve("segment-0-00000000.kkv");
+    byte[] bytes = Files.readAllBytes(segment);
+    bytes[PersistentMappedMap.HEADER_SIZE + 1 + 1 + PersistentMappedMap.HEADER_SIZE + 1] ^= 1;
+    Files.write(segment, bytes);
+    PersistentMappedMap restarted = new PersistentMappedMap(dir, 0, 1024);
+    assertEquals("1", new String(restarted.get("a")));
+    assertFalse(restarted.containsKey("b"));
+    restarted.put("c", "3".getBytes());
+    restarted.checkpoint(Collections.emptyMap());
+    assertEquals(2, new PersistentMappedMap(dir, 0, 1024).size());
+  }
+
+  @Test
+  void testLengths() {
+    PersistentMappedMap map = new PersistentMappedMap(dir, 0, 1024);
+    assertEquals(ValueLengthStore.ABSENT, map.putForLength("a", "12".getBytes()));
+    assertEquals(2, map.getLength("a"));
+    assertEquals(2, map.putForLength("a", "345".getBytes()));
+    assertEquals(3, map.removeForLength("a"));
+    assertEquals(ValueLengthStore.ABSENT, map.removeForLength("a"));
+    assertEquals(ValueLengthStore.ABSENT, map.getLength("a"));
+    assertEquals(0, map.size());
+  }
+
+  @Test
+  void testCompaction() throws IOException {
+    PersistentMappedMap map = new PersistentMappedMap(dir, 0, 256);
+    for (int i = 0; i < 100; i++) {
+      map.put("k" + (i % 3), new byte[20]);
+    }
+    long before = map.getLogBytes();
+    map.checkpoint(Collections.emptyMap());
+    assertEquals(map.getLiveBytes(), map.getLogBytes());
+    assertTrue(map.getLogBytes() < before);
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(2, files.count(), "Expected one compacted segment and the checkpoint");
+    }
+    PersistentMappedMap restarted = new PersistentMappedMap(dir, 0, 256);
+    assertEquals(3, restarted.size());
+    assertEquals(20, restarted.get("k2").length);
+  }
+
+}
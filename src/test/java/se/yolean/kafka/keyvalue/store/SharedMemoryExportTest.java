@@ -0,0 +1,142 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharedMemoryExportTest {
+
+  /**
+   * The reader module's tests read this file, so that the layout and hash it copies can't drift from the writer's.
+   * Run with -Dkkv.shm.fixture.write=true from the root to regenerate it after a deliberate layout change.
+   */
+  static final Path READER_FIXTURE = Path.of("shm", "src", "test", "resources", "export-v1.kkv");
+
+  @TempDir
+  Path dir;
+
+  static ByteBuffer header(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, SharedMemoryExport.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  @Test
+  void testPutGetRemove() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    SharedMemoryExport shm = new SharedMemoryExport(path, 0, 0);
+    shm.put("a", "1".getBytes());
+    shm.put("å", new byte[0]);
+    shm.put("a", "2".getBytes());
+    assertEquals("2", new String(shm.get("a")));
+    assertEquals(0, shm.get("å").length);
+    assertNull(shm.get("b"));
+    shm.remove("a");
+    shm.remove("b");
+    assertNull(shm.get("a"));
+    assertEquals(1, shm.size());
+
+    ByteBuffer header = header(path);
+    assertEquals(SharedMemoryExport.MAGIC, header.getInt(SharedMemoryExport.MAGIC_POSITION));
+    assertEquals(SharedMemoryExport.VERSION, header.getInt(SharedMemoryExport.VERSION_POSITION));
+    assertEquals(1, header.getLong(SharedMemoryExport.COUNT_POSITION));
+    assertEquals(0, header.getLong(SharedMemoryExport.SEQUENCE_POSITION) % 2, "No write in progress");
+    assertEquals(0, header.getLong(SharedMemoryExport.READY_POSITION));
+    shm.setReady(true);
+    assertEquals(1, header.getLong(SharedMemoryExport.READY_POSITION));
+  }
+
+  @Test
+  void testRebuild() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    SharedMemoryExport shm = new SharedMemoryExport(path, 0, 0);
+    ByteBuffer first = header(path);
+    Map<String, byte[]> expected = new HashMap<>();
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      String key = "key" + random.nextInt(2000);
+      if (random.nextInt(5) == 0) {
+        expected.remove(key);
+        shm.remove(key);
+      } else {
+        byte[] value = new byte[random.nextInt(100)];
+        random.nextBytes(value);
+        expected.put(key, value);
+        shm.put(key, value);
+      }
+    }
+    assertEquals(expected.size(), shm.size());
+    expected.forEach((k, v) -> assertArrayEquals(v, shm.get(k), k));
+    assertTrue(shm.getCapacity() >= 2048);
+    assertEquals(1, first.getLong(SharedMemoryExport.STALE_POSITION), "Replaced files should be flagged");
+    assertEquals(0, header(path).getLong(SharedMemoryExport.STALE_POSITION));
+    assertEquals(expected.size(), header(path).getLong(SharedMemoryExport.COUNT_POSITION));
+  }
+
+  @Test
+  void testRestartFlagsPrevious() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    new SharedMemoryExport(path, 0, 0).put("a", "1".getBytes());
+    ByteBuffer previous = header(path);
+    SharedMemoryExport restarted = new SharedMemoryExport(path, 0, 0);
+    assertEquals(1, previous.getLong(SharedMemoryExport.STALE_POSITION));
+    assertNull(restarted.get("a"));
+    assertEquals(0, header(path).getLong(SharedMemoryExport.STALE_POSITION));
+  }
+
+  @Test
+  void testMatchesReaderFixture() throws IOException {
+    Path path = dir.resolve("cache.kkv");
+    SharedMemoryExport shm = new SharedMemoryExport(path, 0, 0);
+    shm.put("a", "1".getBytes(StandardCharsets.UTF_8));
+    shm.put("å", "{\"x\":2}".getBytes(StandardCharsets.UTF_8));
+    shm.put("empty", new byte[0]);
+    shm.put("removed", "x".getBytes(StandardCharsets.UTF_8));
+    shm.put("a", "2".getBytes(StandardCharsets.UTF_8));
+    shm.remove("removed");
+    for (int i = 0; i < 8; i++) {
+      shm.put("k" + i, ("v" + i).getBytes(StandardCharsets.UTF_8));
+    }
+    shm.setReady(true);
+    if (Boolean.getBoolean("kkv.shm.fixture.write")) {
+      Files.write(READER_FIXTURE, Files.readAllBytes(path));
+    }
+    assertArrayEquals(Files.readAllBytes(READER_FIXTURE), Files.readAllBytes(path),
+        "Readers depend on the layout; bump VERSION and update the shm module before regenerating " + READER_FIXTURE);
+  }
+
+  @Test
+  void testHashReservesEmptyAndDeleted() {
+    assertNotEquals(SharedMemoryExport.EMPTY, SharedMemoryExport.hash(new byte[0]));
+    assertEquals(0x82a2a958a9bece5bL, SharedMemoryExport.hash("a".getBytes()), "Readers depend on the hash function");
+    assertEquals(0x8f06410810eeac89L, SharedMemoryExport.hash("å".getBytes(StandardCharsets.UTF_8)));
+  }
+
+}
@@ -0,0 +1,210 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class SingleWriterHashMapTest {
+
+  @Test
+  void testPutGetRemove() {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    assertNull(map.put("a", new byte[] { 1 }));
+    assertArrayEquals(new byte[] { 1 }, map.get("a"));
+    assertArrayEquals(new byte[] { 1 }, map.put("a", new byte[] { 2 }));
+    assertArrayEquals(new byte[] { 2 }, map.get("a"));
+    assertEquals(1, map.size());
+    assertArrayEquals(new byte[] { 2 }, map.remove("a"));
+    assertNull(map.get("a"));
+    assertFalse(map.containsKey("a"));
+    assertEquals(0, map.size());
+    assertNull(map.get(3), "Non-string keys are never found");
+  }
+
+  @Test
+  void testGrowAndReuseDeleted() {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    for (int i = 0; i < 10000; i++) {
+      map.put("k" + i, new byte[] { (byte) i });
+      if (i % 3 == 0) map.remove("k" + i);
+    }
+    assertEquals(6666, map.size());
+    for (int i = 0; i < 10000; i++) {
+      if (i % 3 == 0) {
+        assertNull(map.get("k" + i));
+      } else {
+        assertEquals((byte) i, map.get("k" + i)[0]);
+      }
+    }
+    Set<String> keys = new HashSet<>(map.keySet());
+    assertEquals(6666, keys.size());
+  }
+
+  @Test
+  void testShrinkAfterRemoves() {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    for (int i = 0; i < 10000; i++) {
+      map.put("k" + i, new byte[0]);
+    }
+    for (int i = 0; i < 10000; i++) {
+      if (i != 5000) map.remove("k" + i);
+    }
+    assertEquals(1, map.size());
+    assertEquals("SingleWriterHashMap[size=1,capacity=16]", map.toString());
+    assertNotNull(map.get("k5000"));
+  }
+
+  @Test
+  void testIteratorIsWeaklyConsistent() {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    for (int i = 0; i < 100; i++) {
+      map.put("k" + i, new byte[0]);
+    }
+    Iterator<String> keys = map.keySet().iterator();
+    int seen = 0;
+    while (keys.hasNext()) {
+      keys.next();
+      map.put("x" + seen++, new byte[0]);
+    }
+    assertTrue(seen >= 100, "Iteration should complete despite writes, got " + seen);
+  }
+
+  @Test
+  void testConcurrentReaders() throws InterruptedException {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    AtomicBoolean done = new AtomicBoolean(false);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    map.put("stable", new byte[] { 42 });
+    Runnable reader = () -> {
+      try {
+        while (!done.get()) {
+          assertEquals(42, map.get("stable")[0]);
+          Iterator<byte[]> values = map.values().iterator();
+          while (values.hasNext()) values.next();
+        }
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    };
+    Thread r1 = new Thread(reader);
+    Thread r2 = new Thread(reader);
+    r1.start();
+    r2.start();
+    for (int i = 0; i < 200000; i++) {
+      map.put("k" + (i % 5000), new byte[] { (byte) i });
+      if (i % 7 == 0) map.remove("k" + (i % 5000));
+    }
+    done.set(true);
+    r1.join();
+    r2.join();
+    assertNull(failure.get());
+  }
+
+  @Test
+  void testSnapshot() {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    map.put("a", "1".getBytes());
+    map.put("b", "2".getBytes());
+    map.put("c", "3".getBytes());
+    Map<String, String> expected = Map.of("a", "1", "b", "2", "c", "3");
+    Snapshot snapshot = map.snapshot();
+    map.put("a", "4".getBytes());
+    map.put("a", "5".getBytes());
+    map.remove("b");
+    map.put("b", "6".getBytes());
+    map.remove("c");
+    for (int i = 0; i < 100; i++) {
+      map.put("new" + i, "7".getBytes());
+    }
+    map.remove("new0");
+    assertEquals(expected, toStrings(snapshot), "Snapshot should survive overwrites, removes and rehash");
+    Snapshot later = map.snapshot();
+    assertEquals(101, toStrings(later).size());
+    snapshot.close();
+    map.put("a", "8".getBytes());
+    assertEquals("5", toStrings(later).get("a"));
+    later.close();
+    assertEquals("8", new String(map.get("a")));
+    assertFalse(map.containsKey("c"));
+    assertEquals(101, map.size());
+    map.put("a", "9".getBytes());
+    SingleWriterHashMap.Entry head = (SingleWriterHashMap.Entry) map.entrySet().stream()
+        .filter(e -> e.getKey().equals("a")).findFirst().get();
+    assertNull(head.older, "History should be dropped when no snapshot needs it");
+  }
+
+  @Test
+  void testRemovesWhilePinned() {
+    SingleWriterHashMap map = new SingleWriterHashMap(0);
+    for (int i = 0; i < 700; i++) {
+      map.put("k" + i, "v".getBytes());
+    }
+    Snapshot snapshot = map.snapshot();
+    assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      for (int i = 0; i < 690; i++) {
+        map.remove("k" + i);
+      }
+      for (int i = 0; i < 1000; i++) {
+        map.put("new" + i, "v".getBytes());
+      }
+    }, "Removed entries that the snapshot reads must fit in the table");
+    assertEquals(1010, map.size());
+    assertEquals(700, toStrings(snapshot).size());
+    snapshot.close();
+    for (int i = 0; i < 1000; i++) {
+      map.remove("new" + i);
+    }
+    assertEquals(10, map.size());
+    assertEquals("SingleWriterHashMap[size=10,capacity=64]", map.toString());
+  }
+
+  @Test
+  void testSnapshotExpires() throws InterruptedException {
+    SingleWriterHashMap map = new SingleWriterHashMap(0, Duration.ofMillis(1));
+    map.put("a", "1".getBytes());
+    Snapshot snapshot = map.snapshot();
+    Iterator<Map.Entry<String, byte[]>> entries = snapshot.iterator();
+    Thread.sleep(10);
+    map.put("a", "2".getBytes());
+    assertThrows(IllegalStateException.class, () -> entries.hasNext(),
+        "The writer should have released the snapshot instead of keeping history");
+    SingleWriterHashMap.Entry head = (SingleWriterHashMap.Entry) map.entrySet().iterator().next();
+    assertNull(head.older);
+    snapshot.close();
+    Snapshot fresh = map.snapshot();
+    assertEquals(Map.of("a", "2"), toStrings(fresh));
+    fresh.close();
+  }
+
+  static Map<String, String> toStrings(Snapshot snapshot) {
+    Map<String, String> all = new HashMap<>();
+    for (Map.Entry<String, byte[]> e : snapshot) {
+      assertNull(all.put(e.getKey(), new String(e.getValue())), "Duplicate " + e.getKey());
+    }
+    return all;
+  }
+
+}
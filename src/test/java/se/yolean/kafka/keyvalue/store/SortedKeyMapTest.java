@@ -0,0 +1,67 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class SortedKeyMapTest {
+
+  @Test
+  void testPrefixAndRange() {
+    SortedKeyMap map = new SortedKeyMap(new SingleWriterHashMap(0));
+    map.put("tenant:2:x", new byte[1]);
+    map.put("tenant:1:b", new byte[1]);
+    map.put("tenant:1:a", new byte[1]);
+    map.put("tenant:10:a", new byte[1]);
+    map.put("tenant:1", new byte[1]);
+    assertEquals(List.of("tenant:1:a", "tenant:1:b"), List.copyOf(map.prefix("tenant:1:")));
+    assertEquals(List.of("tenant:10:a", "tenant:1:a"), List.copyOf(map.range("tenant:10", "tenant:1:b")));
+    assertEquals(List.of("tenant:1", "tenant:10:a", "tenant:1:a"), List.copyOf(map.range(null, "tenant:1:b")));
+    assertEquals(List.of("tenant:2:x"), List.copyOf(map.range("tenant:2", null)));
+    assertEquals(0, map.range("b", "a").size());
+    assertEquals(5, map.prefix("").size());
+
+    map.remove("tenant:1:a");
+    map.put("tenant:1:b", null);
+    map.put("tenant:10:a", new byte[2]);
+    assertEquals(0, map.prefix("tenant:1:").size());
+    assertEquals(List.of("tenant:1", "tenant:10:a", "tenant:2:x"), List.copyOf(map.keySet()));
+    assertEquals(3, map.size());
+  }
+
+  @Test
+  void testRestoredKeys() {
+    Map<String, byte[]> restored = new HashMap<>();
+    restored.put("b", new byte[1]);
+    restored.put("a", new byte[1]);
+    SortedKeyMap map = new SortedKeyMap(restored);
+    assertEquals(List.of("a", "b"), List.copyOf(map.keySet()));
+  }
+
+  @Test
+  void testPrefixEnd() {
+    assertEquals("ab", SortedKeyMap.prefixEnd("aa"));
+    assertEquals("b", SortedKeyMap.prefixEnd("a\uffff"));
+    assertNull(SortedKeyMap.prefixEnd("\uffff"));
+    assertNull(SortedKeyMap.prefixEnd(""));
+  }
+
+}
@@ -0,0 +1,126 @@
+// Copyright 2019 Yolean AB
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package se.yolean.kafka.keyvalue.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TieredMapTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testEvictAndReadBack() {
+    TieredMap map = new TieredMap(dir, 0, 8192);
+    for (int i = 0; i < 1000; i++) {
+      map.put("k" + i, ("v" + i).getBytes());
+    }
+    assertEquals(1000, map.size());
+    assertTrue(map.getHotBytes() <= 8192);
+    assertTrue(map.getSegmentCount() > 0);
+    assertTrue(map.getSegmentCount() < 10, "Segments should be merged, got " + map.getSegmentCount());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("v" + i, new String(map.get("k" + i)));
+    }
+    assertEquals("v3", new String(map.put("k3", "w3".getBytes())), "Previous value from disk");
+    assertEquals("w3", new String(map.get("k3")));
+    assertEquals(1000, map.size());
+  }
+
+  @Test
+  void testMissDoesNotTouchDisk() {
+    TieredMap map = new TieredMap(dir, 0, 8192);
+    for (int i = 0; i < 1000; i++) {
+      map.put("k" + i, ("v" + i).getBytes());
+    }
+    long before = map.getDiskReads();
+    for (int i = 0; i < 1000; i++) {
+      assertNull(map.get("missing" + i));
+    }
+    assertTrue(map.getDiskReads() - before < 50, "Bloom filters should stop most misses");
+  }
+
+  @Test
+  void testRemoveHidesColdValue() {
+    TieredMap map = new TieredMap(dir, 0, 4096);
+    map.put("a", "1".getBytes());
+    for (int i = 0; i < 200; i++) {
+      map.put("fill" + i, new byte[16]);
+    }
+    assertEquals("1", new String(map.remove("a")));
+    assertNull(map.get("a"));
+    for (int i = 200; i < 400; i++) {
+      map.put("fill" + i, new byte[16]);
+    }
+    assertNull(map.get("a"), "The remove should have been written to a segment");
+    assertFalse(map.containsKey("a"));
+    assertNull(map.remove("a"));
+    assertEquals(400, map.size());
+    assertEquals(400, map.entrySet().stream().count());
+  }
+
+  @Test
+  void testAgainstHashMap() {
+    TieredMap map = new TieredMap(dir, 0, 16384, 512);
+    Map<String, byte[]> expected = new HashMap<>();
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      String key = "key" + random.nextInt(2000);
+      int op = random.nextInt(10);
+      if (op < 2) {
+        assertArrayEquals(expected.remove(key), map.remove(key), key);
+      } else if (op < 4) {
+        assertArrayEquals(expected.get(key), map.get(key), key);
+      } else {
+        byte[] value = new byte[random.nextInt(120)];
+        random.nextBytes(value);
+        assertArrayEquals(expected.put(key, value), map.put(key, value), key);
+      }
+      assertEquals(expected.size(), map.size());
+    }
+    Map<String, byte[]> iterated = new HashMap<>();
+    map.forEach((k, v) -> assertNull(iterated.put(k, v), "Duplicate " + k));
+    assertEquals(expected.keySet(), iterated.keySet());
+    expected.forEach((k, v) -> assertArrayEquals(v, iterated.get(k), k));
+  }
+
+  @Test
+  void testStartupDeletesSegments() throws IOException {
+    TieredMap map = new TieredMap(dir, 0, 4096);
+    for (int i = 0; i < 500; i++) {
+      map.put("k" + i, new byte[16]);
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      assertTrue(files.count() > 0);
+    }
+    TieredMap restarted = new TieredMap(dir, 0, 4096);
+    assertEquals(0, restarted.size());
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+}